@@ -0,0 +1,234 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes a dispatch thread pool between a minimum and maximum from its queue
+ * depth, thread utilization, and estimated queueing delay. Each check
+ * smooths the signals, and the pool is only resized after several checks
+ * agree: it grows quickly, doubling after {@link #GROW_CHECKS} checks, and
+ * shrinks slowly, one thread after {@link #SHRINK_CHECKS} checks. Few threads
+ * at low rates avoid context switches and keep caches warm; more threads at
+ * high rates keep the queue short.
+ * <p>
+ * Only the core size of the pool is changed. The pool is expected to use an
+ * unbounded queue, so it never runs more than its core size; idle threads
+ * above a reduced core size exit on their own. Methods are not thread-safe
+ * and are expected to be called from a single timer thread.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class AdaptivePoolSizer {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(AdaptivePoolSizer.class);
+
+	/**
+	 * Weight of the newest measurement in the smoothed signals.
+	 */
+	static final double SMOOTHING = 0.3;
+
+	/**
+	 * Consecutive checks calling for more threads before the pool grows.
+	 */
+	static final int GROW_CHECKS = 2;
+
+	/**
+	 * Consecutive checks calling for fewer threads before the pool shrinks.
+	 */
+	static final int SHRINK_CHECKS = 8;
+
+	/**
+	 * Fraction of busy threads above which a non-empty queue grows the pool.
+	 */
+	static final double HIGH_UTILIZATION = 0.85;
+
+	/**
+	 * Fraction of busy threads below which an empty queue shrinks the pool.
+	 */
+	static final double LOW_UTILIZATION = 0.3;
+
+	private final int minThreads;
+	private final int maxThreads;
+
+	/**
+	 * Queueing delay above which the pool grows, in nanoseconds.
+	 */
+	private final long targetLatencyNanos;
+
+	/**
+	 * Current size of the pool.
+	 */
+	private int size;
+
+	private double avgActive = 0;
+	private double avgQueued = 0;
+
+	/**
+	 * Smoothed completion rate, in tasks per nanosecond.
+	 */
+	private double avgRate = 0;
+
+	private long lastCompleted = 0;
+	private long lastNanos = 0;
+
+	private int growVotes = 0;
+	private int shrinkVotes = 0;
+
+	/**
+	 * Number of resizes since the statistics were last cleared.
+	 */
+	private int numResizes = 0;
+
+	/**
+	 * Creates a new sizer for a pool that starts at its minimum size.
+	 * 
+	 * @param minThreads
+	 *            the smallest pool size.
+	 * @param maxThreads
+	 *            the largest pool size.
+	 * @param targetLatencyMillis
+	 *            the queueing delay above which the pool grows, in
+	 *            milliseconds.
+	 */
+	public AdaptivePoolSizer(final int minThreads, final int maxThreads,
+			final long targetLatencyMillis) {
+		this.minThreads = Math.max(1, minThreads);
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+		this.targetLatencyNanos = targetLatencyMillis * 1000000l;
+		this.size = this.minThreads;
+	}
+
+	/**
+	 * Updates the smoothed signals and decides the pool size.
+	 * 
+	 * @param queued
+	 *            the number of tasks waiting in the queue.
+	 * @param active
+	 *            the number of threads running tasks.
+	 * @param completed
+	 *            the total number of tasks completed.
+	 * @param nowNanos
+	 *            the current time from {@link System#nanoTime()}.
+	 * @return the new pool size.
+	 */
+	public int update(final int queued, final int active,
+			final long completed, final long nowNanos) {
+		long elapsed = nowNanos - this.lastNanos;
+		boolean first = this.lastNanos == 0;
+		this.lastNanos = nowNanos;
+		long done = completed - this.lastCompleted;
+		this.lastCompleted = completed;
+		if (first || elapsed <= 0) {
+			return this.size;
+		}
+
+		this.avgActive += SMOOTHING * (active - this.avgActive);
+		this.avgQueued += SMOOTHING * (queued - this.avgQueued);
+		this.avgRate += SMOOTHING * ((double) done / elapsed - this.avgRate);
+
+		double utilization = this.avgActive / this.size;
+		double wait = this.avgRate > 0 ? this.avgQueued / this.avgRate
+				: (this.avgQueued >= 1 ? Double.MAX_VALUE : 0);
+
+		if (this.size < this.maxThreads && this.avgQueued >= 1
+				&& (wait > this.targetLatencyNanos
+						|| utilization > HIGH_UTILIZATION)) {
+			this.shrinkVotes = 0;
+			if (++this.growVotes >= GROW_CHECKS) {
+				this.growVotes = 0;
+				this.resize(Math.min(this.maxThreads, this.size * 2));
+			}
+		} else if (this.size > this.minThreads && this.avgQueued < 1
+				&& utilization < LOW_UTILIZATION) {
+			this.growVotes = 0;
+			if (++this.shrinkVotes >= SHRINK_CHECKS) {
+				this.shrinkVotes = 0;
+				this.resize(this.size - 1);
+			}
+		} else {
+			this.growVotes = 0;
+			this.shrinkVotes = 0;
+		}
+		return this.size;
+	}
+
+	/**
+	 * Changes the decided size.
+	 */
+	private void resize(final int newSize) {
+		log.debug("Resizing dispatch pool from {} to {} threads.",
+				Integer.valueOf(this.size), Integer.valueOf(newSize));
+		this.size = newSize;
+		++this.numResizes;
+	}
+
+	/**
+	 * Measures a pool and applies the decided size to it.
+	 * 
+	 * @param pool
+	 *            the pool to resize, whose maximum size must be at least the
+	 *            maximum given to this sizer.
+	 * @return the new pool size.
+	 */
+	public int adjust(final ThreadPoolExecutor pool) {
+		int newSize = this.update(pool.getQueue().size(),
+				pool.getActiveCount(), pool.getCompletedTaskCount(),
+				System.nanoTime());
+		if (newSize != pool.getCorePoolSize()) {
+			pool.setCorePoolSize(newSize);
+		}
+		return newSize;
+	}
+
+	/**
+	 * @return the current pool size.
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Returns a description of the pool size and resizes since the last call,
+	 * then resets the resize count.
+	 * 
+	 * @return the sizing statistics.
+	 */
+	public String getAndClearStatistics() {
+		String stats = String.format(
+				"%d threads (%d-%d), %1.1f busy, %1.1f queued, %d resizes",
+				Integer.valueOf(this.size), Integer.valueOf(this.minThreads),
+				Integer.valueOf(this.maxThreads),
+				Double.valueOf(this.avgActive), Double.valueOf(this.avgQueued),
+				Integer.valueOf(this.numResizes));
+		this.numResizes = 0;
+		return stats;
+	}
+}
@@ -20,17 +20,29 @@
 package com.owlplatform.aggregator;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.codec.textline.TextLineCodecFactory;
+import org.apache.mina.transport.socket.nio.NioDatagramAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,6 +89,54 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	 */
 	private static final long STATS_REPORTING_DELAY = 10000L;
 
+	/**
+	 * How frequently to close expired reduction and aggregation windows.
+	 */
+	private static final long WINDOW_FLUSH_DELAY = 100L;
+
+	/**
+	 * How frequently to resize the dispatch pool.
+	 */
+	private static final long DISPATCH_SIZING_DELAY = 250L;
+
+	/**
+	 * Maximum number of samples waiting to be dispatched to high-priority
+	 * solvers.
+	 */
+	private static final int PRIORITY_QUEUE_CAPACITY = 10000;
+
+	/**
+	 * Counters per hash function in each heavy-hitter sketch.
+	 */
+	private static final int HEAVY_HITTER_WIDTH = 2048;
+
+	/**
+	 * Hash functions in each heavy-hitter sketch.
+	 */
+	private static final int HEAVY_HITTER_DEPTH = 4;
+
+	/**
+	 * Labels device and receiver identifiers in heavy-hitter reports.
+	 */
+	private static final HeavyHitterSketch.Labeler<byte[]> ID_LABELER = new HeavyHitterSketch.Labeler<byte[]>() {
+		@Override
+		public String getLabel(final byte[] id) {
+			StringBuffer sb = new StringBuffer();
+			SampleQueryHandler.appendHex(sb, id);
+			return sb.toString();
+		}
+	};
+
+	/**
+	 * Labels sensor sessions in heavy-hitter reports.
+	 */
+	private static final HeavyHitterSketch.Labeler<IoSession> SESSION_LABELER = new HeavyHitterSketch.Labeler<IoSession>() {
+		@Override
+		public String getLabel(final IoSession session) {
+			return String.valueOf(session.getRemoteAddress());
+		}
+	};
+
 	/**
 	 * How long to wait before declaring a sensor conection "dead". Because
 	 * there is no heartbeat back to the sensors, idle status is the only way to
@@ -84,11 +144,33 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	 */
 	private static final int SENSOR_TIMEOUT = 600;
 
+	/**
+	 * Largest datagram accepted on the UDP sensor port.
+	 */
+	private static final int MAX_DATAGRAM_SIZE = 65535;
+
+	/**
+	 * Kernel receive buffer size requested for the UDP sensor port. Datagrams
+	 * that arrive while this buffer is full are silently discarded.
+	 */
+	private static final int DATAGRAM_RECEIVE_BUFFER = 1 << 20;
+
+	/**
+	 * Handshake sent to every sensor. Shared because it never changes.
+	 */
+	private static final HandshakeMessage SENSOR_HANDSHAKE = HandshakeMessage
+			.getDefaultMessage();
+
 	/**
 	 * Map of IoSessions to the solvers.
 	 */
 	private final ConcurrentHashMap<IoSession, CachingFilteringSolverInterface> solvers = new ConcurrentHashMap<IoSession, CachingFilteringSolverInterface>();
 
+	/**
+	 * Solvers running in the same JVM as this aggregator.
+	 */
+	private final CopyOnWriteArrayList<LocalSolverInterface> localSolvers = new CopyOnWriteArrayList<LocalSolverInterface>();
+
 	/**
 	 * Map of IoSessions to the sensors.
 	 */
@@ -96,9 +178,103 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 
 	/**
 	 * Worker threads to process samples that have arrived from sensors.
+	 * Resized by {@link #dispatchSizer} once the aggregator is started.
 	 */
-	private final ExecutorService handlerPool = Executors
-			.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+	private final ThreadPoolExecutor handlerPool = new ThreadPoolExecutor(
+			Runtime.getRuntime().availableProcessors() * 2, Runtime
+					.getRuntime().availableProcessors() * 2, 0L,
+			TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/**
+	 * Worker threads dedicated to high-priority solvers, so they are never
+	 * queued behind samples for other solvers. Only dispatch is separated;
+	 * networked high-priority solvers still share the solver acceptor's I/O
+	 * processors with other solvers. Samples are dropped and counted in
+	 * {@link #numPriorityDropped} once the queue is full.
+	 */
+	private final ThreadPoolExecutor priorityPool = new ThreadPoolExecutor(
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 0L,
+			TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+					PRIORITY_QUEUE_CAPACITY), new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(final Runnable task,
+						final ThreadPoolExecutor executor) {
+					Aggregator.this.numPriorityDropped.incrementAndGet();
+				}
+			});
+
+	/**
+	 * Number of samples not dispatched to high-priority solvers because the
+	 * {@link #priorityPool} queue was full.
+	 */
+	private final AtomicLong numPriorityDropped = new AtomicLong(0);
+
+	/**
+	 * Subscribed solvers, grouped by priority and rules for dispatch.
+	 */
+	private final SolverGroupRegistry solverGroups = new SolverGroupRegistry();
+
+	/**
+	 * Number of samples not sent to low-priority solvers because the
+	 * aggregator was overloaded.
+	 */
+	private final AtomicLong numShed = new AtomicLong(0);
+
+	/**
+	 * The latest sample for each device, receiver, and physical layer, or
+	 * {@code null} if disabled.
+	 */
+	private volatile LatestSampleTable latestSamples = null;
+
+	/**
+	 * Devices sending the most samples, or {@code null} if heavy hitters are
+	 * not tracked.
+	 */
+	private volatile HeavyHitterSketch deviceHitters = null;
+
+	/**
+	 * Receivers reporting the most samples, or {@code null} if heavy hitters
+	 * are not tracked.
+	 */
+	private volatile HeavyHitterSketch receiverHitters = null;
+
+	/**
+	 * Sensor sessions sending the most samples, or {@code null} if heavy
+	 * hitters are not tracked.
+	 */
+	private volatile HeavyHitterSketch sensorHitters = null;
+
+	/**
+	 * Tracer for sampled latency traces, or {@code null} if tracing is
+	 * disabled.
+	 */
+	private volatile SampleTracer tracer = null;
+
+	/**
+	 * Sizes the {@link #handlerPool} from its load, or {@code null} if the
+	 * pool has a fixed size.
+	 */
+	private AdaptivePoolSizer dispatchSizer = null;
+
+	/**
+	 * Budget shared by the outbound buffers of all solvers.
+	 */
+	private volatile SolverBufferBudget solverBufferBudget = null;
+
+	/**
+	 * Number of samples not dispatched because they were too old for every
+	 * solver. A sample that is too old for both the high-priority solvers and
+	 * the other solvers is counted twice.
+	 */
+	private final AtomicLong numStale = new AtomicLong(0);
+
+	/**
+	 * Longest maximum sample age configured for any solver since the
+	 * aggregator started, in milliseconds. Never decreases, so a sample is
+	 * only dropped before dispatch if no solver could accept it.
+	 */
+	private final AtomicLong longestSolverSampleAge = new AtomicLong(0);
 
 	/**
 	 * Global variable to track average processing time for samples.
@@ -131,6 +307,21 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	 */
 	private final NioSocketAcceptor solverAcceptor;
 
+	/**
+	 * Acceptor for datagram sensors, if enabled.
+	 */
+	private NioDatagramAcceptor sensorDatagramAcceptor = null;
+
+	/**
+	 * Limits the rate of new sensor connections, if enabled.
+	 */
+	private SensorAdmissionFilter sensorAdmission = null;
+
+	/**
+	 * Acceptor for latest-sample queries, if enabled.
+	 */
+	private NioSocketAcceptor queryAcceptor = null;
+
 	/**
 	 * Configuration values for this aggregator.
 	 */
@@ -142,7 +333,7 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	private static final Logger log = LoggerFactory.getLogger(Aggregator.class);
 
 	private static final String CONFIG_INFO = "name: Aggregator" + "\n"
-			+ "arguments: sensor_port solver_port";
+			+ "arguments: sensor_port solver_port [sensor_udp_port]";
 
 	public static final void printConfigInfo() {
 		System.out.println(CONFIG_INFO);
@@ -152,12 +343,15 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	 * Parses the command-line arguments and starts the aggregator.
 	 * 
 	 * @param args
-	 *            sensor port, solver port. If not specified, default values are
-	 *            used.
+	 *            sensor port, solver port, and optional UDP sensor port. If
+	 *            the sensor or solver ports are not specified, default values
+	 *            are used. UDP sensors are only accepted if a UDP port is
+	 *            provided.
 	 */
 	public static void main(String[] args) {
 		int sensorPort = SENSOR_LISTEN_PORT;
 		int solverPort = SOLVER_LISTEN_PORT;
+		int datagramPort = 0;
 
 		if (args.length > 0) {
 			if ("-?".equalsIgnoreCase(args[0])) {
@@ -167,6 +361,9 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 			sensorPort = Integer.parseInt(args[0]);
 			if (args.length > 1) {
 				solverPort = Integer.parseInt(args[1]);
+				if (args.length > 2) {
+					datagramPort = Integer.parseInt(args[2]);
+				}
 			}
 		}
 
@@ -174,6 +371,7 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 		AggregatorConfiguration config = new AggregatorConfiguration();
 		config.setSensorListenPort(sensorPort);
 		config.setSolverListenPort(solverPort);
+		config.setSensorDatagramPort(datagramPort);
 
 		Aggregator agg = new Aggregator();
 		agg.setConfig(config);
@@ -225,6 +423,32 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 		// SensorIoHandler sensorIoHandler = new ThreadedSensorIoHandler(this);
 		SensorIoHandler sensorIoHandler = new SensorIoHandler(this);
 
+		if (this.configuration.getLatestSampleCapacity() > 0) {
+			this.latestSamples = new LatestSampleTable(
+					this.configuration.getLatestSampleCapacity(),
+					this.configuration.getLatestSampleMaxAge());
+		}
+
+		this.solverBufferBudget = new SolverBufferBudget(
+				this.configuration.getSolverBufferBudget());
+
+		this.configureDispatchPool();
+
+		if (this.configuration.getTraceRatio() > 0) {
+			this.tracer = new SampleTracer(this.configuration.getTraceRatio(),
+					this.configuration.getTraceCapacity());
+		}
+
+		int heavyHitters = this.configuration.getHeavyHitterCount();
+		if (heavyHitters > 0) {
+			this.deviceHitters = new HeavyHitterSketch(HEAVY_HITTER_WIDTH,
+					HEAVY_HITTER_DEPTH, heavyHitters);
+			this.receiverHitters = new HeavyHitterSketch(HEAVY_HITTER_WIDTH,
+					HEAVY_HITTER_DEPTH, heavyHitters);
+			this.sensorHitters = new HeavyHitterSketch(HEAVY_HITTER_WIDTH,
+					HEAVY_HITTER_DEPTH, heavyHitters);
+		}
+
 		this.statsTimer.scheduleAtFixedRate(new TimerTask() {
 
 			private Logger timeLog = LoggerFactory
@@ -236,7 +460,7 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 						/ Aggregator.this.numSamples;
 				float avgSampleTime = (float) Aggregator.this.sampleDelay
 						/ Aggregator.this.numSamples;
-				HashMap<IoSession, Integer> lostSamples = new HashMap<IoSession, Integer>();
+				HashMap<Object, Integer> lostSamples = new HashMap<Object, Integer>();
 				for (IoSession sess : Aggregator.this.solvers.keySet()) {
 					CachingFilteringSolverInterface solver = Aggregator.this.solvers
 							.get(sess);
@@ -245,6 +469,10 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 								.getAndClearDroppedPackets()));
 					}
 				}
+				for (LocalSolverInterface solver : Aggregator.this.localSolvers) {
+					lostSamples.put(solver,
+							Integer.valueOf(solver.getAndClearDroppedPackets()));
+				}
 
 				StringBuilder sb = new StringBuilder(String.format(
 						Aggregator.STATS_FORMAT_STRING,
@@ -253,11 +481,151 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 						Float.valueOf(avgSampleTime)));
 				if (!lostSamples.isEmpty()) {
 					sb.append("\nSolver Loss Rate:");
-					for (IoSession sess : lostSamples.keySet()) {
+					for (Object sess : lostSamples.keySet()) {
 						sb.append("\n\t").append(sess.toString()).append(": ")
 								.append(String.format("%,d",lostSamples.get(sess)));
 					}
 				}
+				boolean printedThrottled = false;
+				for (SensorInterface sensor : Aggregator.this.sensors.values()) {
+					long throttled = sensor.getAndClearThrottledSamples();
+					if (throttled == 0) {
+						continue;
+					}
+					if (!printedThrottled) {
+						sb.append("\nSensor Quota Drops:");
+						printedThrottled = true;
+					}
+					sb.append("\n\t").append(sensor.getSession().toString())
+							.append(": ")
+							.append(String.format("%,d", Long.valueOf(throttled)));
+				}
+				boolean printedDatagram = false;
+				for (SensorInterface sensor : Aggregator.this.sensors.values()) {
+					if (!(sensor instanceof DatagramSensorInterface)) {
+						continue;
+					}
+					if (!printedDatagram) {
+						sb.append("\nDatagram Sensors:");
+						printedDatagram = true;
+					}
+					sb.append("\n\t").append(sensor.getSession().toString())
+							.append(": ")
+							.append(((DatagramSensorInterface) sensor)
+									.getAndClearStatistics());
+				}
+				boolean printedCompression = false;
+				for (CachingFilteringSolverInterface solver : Aggregator.this.solvers
+						.values()) {
+					SampleCompressionFilter compression = solver
+							.getCompressionFilter();
+					if (compression == null) {
+						continue;
+					}
+					if (!printedCompression) {
+						sb.append("\nSolver Compression:");
+						printedCompression = true;
+					}
+					sb.append("\n\t").append(solver.getSession().toString())
+							.append(": ")
+							.append(compression.getAndClearStatistics());
+				}
+
+				sb.append(String.format("\nSensors: %,d connected",
+						Integer.valueOf(Aggregator.this.sensors.size())));
+				if (Aggregator.this.sensorAdmission != null) {
+					sb.append(", ").append(
+							Aggregator.this.sensorAdmission
+									.getAndClearStatistics());
+				}
+				this.appendHeavyHitters(sb, "Top Devices: ",
+						Aggregator.this.deviceHitters);
+				this.appendHeavyHitters(sb, "Top Receivers: ",
+						Aggregator.this.receiverHitters);
+				this.appendHeavyHitters(sb, "Top Sensors: ",
+						Aggregator.this.sensorHitters);
+				if (Aggregator.this.dispatchSizer != null) {
+					sb.append("\nDispatch Pool: ").append(
+							Aggregator.this.dispatchSizer
+									.getAndClearStatistics());
+				}
+				sb.append("\nSolver Groups: ").append(
+						Aggregator.this.solverGroups.getStatistics());
+				sb.append("\nSolver Buffers: ").append(
+						Aggregator.this.solverBufferBudget
+								.getAndClearStatistics());
+
+				boolean printedStale = false;
+				for (CachingFilteringSolverInterface solver : Aggregator.this.solvers
+						.values()) {
+					printedStale = this.appendStaleSamples(sb, solver,
+							printedStale);
+				}
+				for (LocalSolverInterface solver : Aggregator.this.localSolvers) {
+					printedStale = this.appendStaleSamples(sb, solver,
+							printedStale);
+				}
+				boolean printedCost = false;
+				boolean printedReorder = false;
+				boolean printedReduction = false;
+				boolean printedSpill = false;
+				for (CachingFilteringSolverInterface solver : Aggregator.this.solvers
+						.values()) {
+					printedCost = this.appendSolverStatistics(sb,
+							"Solver Costs:", solver, solver.getCostAccount()
+									.getAndClearStatistics(), printedCost);
+					printedReorder = this.appendSolverStatistics(sb,
+							"Reorder Buffers:", solver,
+							solver.getAndClearReorderStatistics(),
+							printedReorder);
+					printedReduction = this.appendSolverStatistics(sb,
+							"Receiver Reduction:", solver,
+							solver.getAndClearReductionStatistics(),
+							printedReduction);
+					printedSpill = this.appendSolverStatistics(sb,
+							"Spill Queues:", solver,
+							solver.getAndClearSpillStatistics(), printedSpill);
+				}
+				for (LocalSolverInterface solver : Aggregator.this.localSolvers) {
+					printedCost = this.appendSolverStatistics(sb,
+							"Solver Costs:", solver, solver.getCostAccount()
+									.getAndClearStatistics(), printedCost);
+					printedReorder = this.appendSolverStatistics(sb,
+							"Reorder Buffers:", solver,
+							solver.getAndClearReorderStatistics(),
+							printedReorder);
+					printedReduction = this.appendSolverStatistics(sb,
+							"Receiver Reduction:", solver,
+							solver.getAndClearReductionStatistics(),
+							printedReduction);
+				}
+				long stale = Aggregator.this.numStale.getAndSet(0);
+				if (stale > 0) {
+					sb.append(String.format(
+							"\nDropped %,d stale samples before dispatch.",
+							Long.valueOf(stale)));
+				}
+
+				SampleTracer sampleTracer = Aggregator.this.tracer;
+				if (sampleTracer != null) {
+					sb.append(String.format("\nTraced %,d samples.",
+							Integer.valueOf(sampleTracer.getAndClearCompleted())));
+				}
+
+				long priorityDropped = Aggregator.this.numPriorityDropped
+						.getAndSet(0);
+				if (priorityDropped > 0) {
+					sb.append(String.format(
+							"\nDropped %,d samples for high-priority solvers with a full queue.",
+							Long.valueOf(priorityDropped)));
+				}
+
+				long shed = Aggregator.this.numShed.getAndSet(0);
+				if (shed > 0) {
+					sb.append(String.format(
+							"\nShed %,d samples for low-priority solvers.",
+							Long.valueOf(shed)));
+				}
 
 				this.timeLog.info(sb.toString());
 				Aggregator.this.numSamples = 0L;
@@ -265,7 +633,91 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 				Aggregator.this.sampleDelay = 0L;
 
 			}
+
+			/**
+			 * Appends a solver's stale sample count if it is non-zero.
+			 * 
+			 * @return {@code true} if the section header has been printed.
+			 */
+			private boolean appendStaleSamples(final StringBuilder sb,
+					final CachingFilteringSolverInterface solver,
+					final boolean printedHeader) {
+				int stale = solver.getAndClearStaleSamples();
+				if (stale == 0) {
+					return printedHeader;
+				}
+				if (!printedHeader) {
+					sb.append("\nStale Samples:");
+				}
+				sb.append("\n\t").append(solver.toString()).append(": ")
+						.append(String.format("%,d", Integer.valueOf(stale)));
+				return true;
+			}
+
+			/**
+			 * Appends the top entries of a heavy-hitter sketch and starts a
+			 * new interval, if heavy hitters are tracked.
+			 */
+			private void appendHeavyHitters(final StringBuilder sb,
+					final String header, final HeavyHitterSketch sketch) {
+				if (sketch == null) {
+					return;
+				}
+				HeavyHitterSketch.HeavyHitter[] top = sketch.getAndClear();
+				if (top.length == 0) {
+					return;
+				}
+				sb.append('\n').append(header);
+				for (int i = 0; i < top.length; ++i) {
+					if (i > 0) {
+						sb.append(", ");
+					}
+					sb.append(top[i]);
+				}
+			}
+
+			/**
+			 * Appends a solver's statistics for an optional feature if the
+			 * feature is enabled.
+			 * 
+			 * @return {@code true} if the section header has been printed.
+			 */
+			private boolean appendSolverStatistics(final StringBuilder sb,
+					final String header,
+					final CachingFilteringSolverInterface solver,
+					final String stats, final boolean printedHeader) {
+				if (stats == null) {
+					return printedHeader;
+				}
+				if (!printedHeader) {
+					sb.append('\n').append(header);
+				}
+				sb.append("\n\t").append(solver.toString()).append(": ")
+						.append(stats);
+				return true;
+			}
 		}, STATS_REPORTING_DELAY, STATS_REPORTING_DELAY);
+		this.statsTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				for (CachingFilteringSolverInterface solver : Aggregator.this.solvers
+						.values()) {
+					solver.flushWindows();
+				}
+				for (LocalSolverInterface solver : Aggregator.this.localSolvers) {
+					solver.flushWindows();
+				}
+			}
+		}, WINDOW_FLUSH_DELAY, WINDOW_FLUSH_DELAY);
+		if (this.configuration.getSensorAcceptRate() > 0) {
+			this.sensorAdmission = new SensorAdmissionFilter(
+					this.configuration.getSensorAcceptRate(),
+					this.configuration.getSensorAcceptBurst());
+			this.sensorAcceptor.getFilterChain().addFirst(
+					SensorAdmissionFilter.FILTER_NAME, this.sensorAdmission);
+		}
+		this.sensorAcceptor.setBacklog(this.configuration
+				.getSensorAcceptBacklog());
 		this.sensorAcceptor.getFilterChain().addLast(
 				"sensor codec",
 				new ProtocolCodecFilter(
@@ -298,6 +750,50 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 					Integer.valueOf(this.configuration.getSolverListenPort()));
 			System.exit(1);
 		}
+		if (this.configuration.getSensorDatagramPort() > 0) {
+			this.sensorDatagramAcceptor = new NioDatagramAcceptor();
+			this.sensorDatagramAcceptor.getSessionConfig().setReuseAddress(true);
+			this.sensorDatagramAcceptor.getSessionConfig().setReadBufferSize(
+					MAX_DATAGRAM_SIZE);
+			this.sensorDatagramAcceptor.getSessionConfig()
+					.setReceiveBufferSize(DATAGRAM_RECEIVE_BUFFER);
+			this.sensorDatagramAcceptor.getSessionConfig().setIdleTime(
+					IdleStatus.READER_IDLE, SENSOR_TIMEOUT);
+			this.sensorDatagramAcceptor.setHandler(new DatagramSensorHandler(
+					this));
+			try {
+				this.sensorDatagramAcceptor.bind(new InetSocketAddress(
+						this.configuration.getSensorDatagramPort()));
+			} catch (IOException ioe) {
+				log.error("Unable to bind to UDP port {}.",
+						Integer.valueOf(this.configuration
+								.getSensorDatagramPort()));
+				System.exit(1);
+			}
+			log.info(
+					"GRAIL Aggregator is listening for sensor datagrams on port {}.",
+					Integer.valueOf(this.configuration.getSensorDatagramPort()));
+		}
+		if (this.configuration.getQueryListenPort() > 0) {
+			this.queryAcceptor = new NioSocketAcceptor();
+			this.queryAcceptor.setReuseAddress(true);
+			this.queryAcceptor.getFilterChain().addLast(
+					"query codec",
+					new ProtocolCodecFilter(new TextLineCodecFactory(Charset
+							.forName("US-ASCII"))));
+			this.queryAcceptor.setHandler(new SampleQueryHandler(this));
+			try {
+				this.queryAcceptor.bind(new InetSocketAddress(InetAddress
+						.getByName(null), this.configuration
+						.getQueryListenPort()));
+			} catch (IOException ioe) {
+				log.error("Unable to bind to query port {}.",
+						Integer.valueOf(this.configuration.getQueryListenPort()));
+				System.exit(1);
+			}
+			log.info("GRAIL Aggregator is listening for queries on port {}.",
+					Integer.valueOf(this.configuration.getQueryListenPort()));
+		}
 		log.info("GRAIL Aggregator is listening for sensors on on port {}.",
 				Integer.valueOf(this.configuration.getSensorListenPort()));
 		log.info("GRAIL Aggregator is listening for solvers on on port {}.",
@@ -316,7 +812,7 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 		// this.sensorSampleReceived.put(session,
 		// Long.valueOf(System.currentTimeMillis()));
 
-		log.info("Received handshake message from sensor {}.", session);
+		log.debug("Received handshake message from sensor {}.", session);
 		sensor.setReceivedHandshake(handshakeMessage);
 
 		this.checkHandshakeMessages(sensor);
@@ -350,7 +846,35 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	@Override
 	public void sensorSampleReceived(final IoSession session,
 			final SampleMessage sampleMessage) {
+		SensorInterface sensor = this.sensors.get(session);
+		if (sensor != null && !sensor.admitSample()) {
+			return;
+		}
+		SampleTracer sampleTracer = this.tracer;
+		if (sampleTracer != null) {
+			sampleTracer.mark(sampleMessage, SampleTracer.DECODED);
+		}
 		++this.numSamples;
+		LatestSampleTable latest = this.latestSamples;
+		if (latest != null) {
+			latest.update(sampleMessage, System.currentTimeMillis());
+		}
+		if (this.solverGroups.hasSolvers(SolverPriority.HIGH)) {
+			this.priorityPool.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					if (Aggregator.this.isStale(sampleMessage)) {
+						Aggregator.this.numStale.incrementAndGet();
+					} else {
+						Aggregator.this.sendHighPrioritySample(sampleMessage);
+					}
+				}
+			});
+		}
+		if (sampleTracer != null) {
+			sampleTracer.mark(sampleMessage, SampleTracer.ENQUEUED);
+		}
 		this.handlerPool.execute(new Runnable() {
 
 			@Override
@@ -367,30 +891,192 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	 */
 	protected void handleSampleMessage(final IoSession session,
 			final SampleMessage sampleMessage) {
+		this.countHeavyHitters(session, sampleMessage);
+		SampleTracer sampleTracer = this.tracer;
+		if (sampleTracer != null) {
+			sampleTracer.mark(sampleMessage, SampleTracer.DISPATCHED);
+		}
+		if (this.isStale(sampleMessage)) {
+			this.numStale.incrementAndGet();
+			if (sampleTracer != null) {
+				sampleTracer.endDispatch(sampleMessage);
+			}
+			return;
+		}
 		long start = System.nanoTime();
-		this.sendSample(sampleMessage);
+		this.sendSample(sampleMessage, SolverPriority.NORMAL);
+		if (this.handlerPool.getQueue().size() > this.configuration
+				.getOverloadQueueDepth()) {
+			this.shedSample(sampleMessage);
+		} else {
+			this.sendSample(sampleMessage, SolverPriority.LOW);
+		}
+		if (sampleTracer != null) {
+			sampleTracer.endDispatch(sampleMessage);
+		}
 		long nowNano = System.nanoTime();
 		long nowMilli = System.currentTimeMillis();
 		this.processingTime += nowNano - start;
 		this.sampleDelay += nowMilli - sampleMessage.getCreationTimestamp();
 	}
 
+	/**
+	 * Applies the configured dispatch thread limits to the
+	 * {@link #handlerPool}. If the limits differ, the pool starts at its
+	 * minimum size and is resized periodically by an
+	 * {@link AdaptivePoolSizer}.
+	 */
+	private void configureDispatchPool() {
+		int maxThreads = Math.max(1,
+				this.configuration.getDispatchMaxThreads());
+		int minThreads = Math.max(1, Math.min(maxThreads,
+				this.configuration.getDispatchMinThreads()));
+		// The core size may never exceed the maximum size
+		if (maxThreads < this.handlerPool.getCorePoolSize()) {
+			this.handlerPool.setCorePoolSize(minThreads);
+			this.handlerPool.setMaximumPoolSize(maxThreads);
+		} else {
+			this.handlerPool.setMaximumPoolSize(maxThreads);
+			this.handlerPool.setCorePoolSize(minThreads);
+		}
+		if (minThreads == maxThreads) {
+			return;
+		}
+		final AdaptivePoolSizer sizer = new AdaptivePoolSizer(minThreads,
+				maxThreads, this.configuration.getDispatchTargetLatency());
+		this.dispatchSizer = sizer;
+		this.statsTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				sizer.adjust(Aggregator.this.handlerPool);
+			}
+		}, DISPATCH_SIZING_DELAY, DISPATCH_SIZING_DELAY);
+	}
+
+	/**
+	 * Counts a sample's device, receiver, and sensor in the heavy-hitter
+	 * sketches, if heavy hitters are tracked.
+	 */
+	private void countHeavyHitters(final IoSession session,
+			final SampleMessage sampleMessage) {
+		HeavyHitterSketch devices = this.deviceHitters;
+		if (devices == null) {
+			return;
+		}
+		byte[] deviceId = sampleMessage.getDeviceId();
+		if (deviceId != null) {
+			devices.add(HeavyHitterSketch.hashId(deviceId), deviceId,
+					ID_LABELER);
+		}
+		byte[] receiverId = sampleMessage.getReceiverId();
+		if (receiverId != null) {
+			this.receiverHitters.add(HeavyHitterSketch.hashId(receiverId),
+					receiverId, ID_LABELER);
+		}
+		if (session != null) {
+			this.sensorHitters.add(HeavyHitterSketch.hashLong(session.getId()),
+					session, SESSION_LABELER);
+		}
+	}
+
+	/**
+	 * Returns the top devices, receivers, and sensors of the last completed
+	 * statistics interval.
+	 * 
+	 * @return the device, receiver, and sensor heavy hitters, in that order,
+	 *         or {@code null} if heavy hitters are not tracked.
+	 */
+	public HeavyHitterSketch.HeavyHitter[][] getHeavyHitters() {
+		HeavyHitterSketch devices = this.deviceHitters;
+		if (devices == null) {
+			return null;
+		}
+		return new HeavyHitterSketch.HeavyHitter[][] {
+				devices.getLastInterval(),
+				this.receiverHitters.getLastInterval(),
+				this.sensorHitters.getLastInterval() };
+	}
+
+	/**
+	 * @return the tracer for sampled latency traces, or {@code null} if
+	 *         tracing is disabled.
+	 */
+	public SampleTracer getTracer() {
+		return this.tracer;
+	}
+
+	/**
+	 * Checks whether a sample is too old for every solver. Samples older than
+	 * the aggregator's maximum sample age are still dispatched if a solver
+	 * has a longer limit of its own.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return {@code true} if the sample should not be dispatched.
+	 */
+	boolean isStale(final SampleMessage sampleMessage) {
+		long maxAge = this.configuration.getMaxSampleAge();
+		if (maxAge <= 0) {
+			return false;
+		}
+		maxAge = Math.max(maxAge, this.longestSolverSampleAge.get());
+		return System.currentTimeMillis()
+				- sampleMessage.getCreationTimestamp() > maxAge;
+	}
+
+	/**
+	 * Applies the maximum sample age to a new solver. A solver's own limit is
+	 * used if it has one, and may be longer or shorter than the aggregator's;
+	 * otherwise the aggregator's limit applies.
+	 * 
+	 * @param solver
+	 *            the new solver.
+	 */
+	private void setMaxSampleAge(final CachingFilteringSolverInterface solver) {
+		long maxAge = solver.getOptions().getMaxSampleAge();
+		if (maxAge > 0) {
+			long longest = this.longestSolverSampleAge.get();
+			while (maxAge > longest
+					&& !this.longestSolverSampleAge.compareAndSet(longest,
+							maxAge)) {
+				longest = this.longestSolverSampleAge.get();
+			}
+		}
+		solver.setMaxSampleAge(maxAge > 0 ? maxAge : this.configuration
+				.getMaxSampleAge());
+	}
+
 	@Override
 	public void sensorConnected(final IoSession session) {
 		SensorInterface sensor = new SensorInterface();
 		sensor.setSession(session);
+		sensor.setOptions(this.configuration.getSensorOptions(session
+				.getRemoteAddress()));
 
 		this.sensors.put(session, sensor);
-		log.info("{} connected.", sensor);
+		log.debug("{} connected.", sensor);
 
 		// this.sensorSampleReceived.put(session,
 		// Long.valueOf(System.currentTimeMillis()));
 
-		HandshakeMessage handshakeMsg = HandshakeMessage.getDefaultMessage();
-		session.write(handshakeMsg);
+		session.write(SENSOR_HANDSHAKE);
 
 	}
 
+	/**
+	 * Registers a sensor that has sent its first datagram. Datagram sensors do
+	 * not exchange handshakes.
+	 * 
+	 * @param sensor
+	 *            the new datagram sensor.
+	 */
+	void datagramSensorConnected(final DatagramSensorInterface sensor) {
+		sensor.setOptions(this.configuration.getSensorOptions(sensor
+				.getSession().getRemoteAddress()));
+		this.sensors.put(sensor.getSession(), sensor);
+		log.info("{} connected.", sensor);
+	}
+
 	@Override
 	public void sensorDisconnected(final IoSession session) {
 		SensorInterface sensor = this.sensors.get(session);
@@ -398,7 +1084,7 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 			log.error("Unable to retrieve disconnecting sensor for {}.",
 					session);
 		}
-		log.info("{} disconnected.", sensor);
+		log.debug("{} disconnected.", sensor);
 		this.sensors.remove(session);
 		// this.sensorSampleReceived.remove(session);
 
@@ -415,6 +1101,11 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	public void connectionOpened(final IoSession session) {
 		CachingFilteringSolverInterface solver = new CachingFilteringSolverInterface();
 		solver.setSession(session);
+		solver.setOptions(this.configuration.getSolverOptions(session
+				.getRemoteAddress()));
+		this.setMaxSampleAge(solver);
+		solver.setTracer(this.tracer);
+		this.registerBufferBudget(solver);
 		this.solvers.put(session, solver);
 		com.owlplatform.solver.protocol.messages.HandshakeMessage handshake = com.owlplatform.solver.protocol.messages.HandshakeMessage
 				.getDefaultMessage();
@@ -424,20 +1115,66 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 
 	@Override
 	public void connectionClosed(final IoSession session) {
-		this.solvers.remove(session);
+		CachingFilteringSolverInterface solver = this.solvers.remove(session);
+		if (solver == null) {
+			return;
+		}
+		this.solverGroups.leave(solver);
+		solver.closeSpillQueue();
+		this.unregisterBufferBudget(solver);
+		if (solver.getCompressionFilter() != null) {
+			solver.getCompressionFilter().dispose();
+		}
+	}
+
+	/**
+	 * Adds a networked solver to the aggregator-wide buffer budget. Local
+	 * solvers are not added, so they do not reduce the fair share of the
+	 * solvers that queue bytes for their sockets.
+	 * 
+	 * @param solver
+	 *            the new solver.
+	 */
+	private void registerBufferBudget(final SolverInterface solver) {
+		SolverBufferBudget budget = this.solverBufferBudget;
+		if (budget != null) {
+			budget.register();
+			solver.setBufferBudget(budget);
+		}
+	}
+
+	/**
+	 * Removes a solver from the aggregator-wide buffer budget, releasing any
+	 * bytes it still has queued.
+	 * 
+	 * @param solver
+	 *            the departing solver.
+	 */
+	private void unregisterBufferBudget(final SolverInterface solver) {
+		SolverBufferBudget budget = solver.getBufferBudget();
+		if (budget != null) {
+			solver.setBufferBudget(null);
+			budget.unregister(solver.getQueuedBytes());
+		}
 	}
 
 	@Override
 	public void subscriptionRequestReceived(final IoSession session,
 			final SubscriptionMessage subscriptionRequestMessage) {
 		CachingFilteringSolverInterface solver = this.solvers.get(session);
+		if (solver.isSentSubscriptionResponse()) {
+			this.updateSubscription(solver, subscriptionRequestMessage);
+			return;
+		}
 		subscriptionRequestMessage
 				.setMessageType(SubscriptionMessage.RESPONSE_MESSAGE_ID);
 		session.write(subscriptionRequestMessage);
 		log.info("(Solver {}) Responded to subscription request with {}.",
 				solver, subscriptionRequestMessage);
+		this.enableCompression(solver);
 		solver.setSentSubscriptionResponse(true);
 
+		// A request without any rules subscribes to every sample
 		if (subscriptionRequestMessage.getRules() != null) {
 			for (SubscriptionRequestRule rule : subscriptionRequestMessage
 					.getRules()) {
@@ -445,12 +1182,248 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 				log.info("Added {} to {}.", rule, solver);
 			}
 		}
+		this.solverGroups.join(solver);
+		this.replayLatestSamples(solver);
+	}
+
+	/**
+	 * @return the latest sample for each device, receiver, and physical layer,
+	 *         or {@code null} if latest samples are not recorded.
+	 */
+	public LatestSampleTable getLatestSamples() {
+		return this.latestSamples;
+	}
+
+	/**
+	 * @return the connected solvers, followed by the local solvers.
+	 */
+	public List<CachingFilteringSolverInterface> getSolvers() {
+		List<CachingFilteringSolverInterface> all = new ArrayList<CachingFilteringSolverInterface>(
+				this.solvers.values());
+		all.addAll(this.localSolvers);
+		return all;
+	}
+
+	/**
+	 * Sends a newly-subscribed solver the latest sample for each device and
+	 * receiver that matches its rules, if its options request it.
+	 * 
+	 * @param solver
+	 *            the solver that has just subscribed.
+	 */
+	private void replayLatestSamples(
+			final CachingFilteringSolverInterface solver) {
+		LatestSampleTable latest = this.latestSamples;
+		SolverOptions options = solver.getOptions();
+		if (latest == null || options == null
+				|| !options.isReplayLatestSamples()) {
+			return;
+		}
+		List<SampleMessage> snapshot = new ArrayList<SampleMessage>();
+		latest.snapshot(snapshot, System.currentTimeMillis());
+		int replayed = 0;
+		for (SampleMessage sample : snapshot) {
+			if (solver.replaySample(sample)) {
+				++replayed;
+			}
+		}
+		log.info("Replayed {} of {} latest samples to {}.", new Object[] {
+				Integer.valueOf(replayed), Integer.valueOf(snapshot.size()),
+				solver });
+	}
+
+	/**
+	 * Handles a subscription request from a solver that is already
+	 * subscribed. The rules in the request replace the solver's current rules,
+	 * in the order given, so a solver can narrow or widen its subscription
+	 * without reconnecting. As with a first request, a request without any
+	 * rules subscribes the solver to every sample.
+	 * <p>
+	 * The new rules take effect before the response is written, so no samples
+	 * that only matched the old rules are sent after the response.
+	 * </p>
+	 * 
+	 * @param solver
+	 *            the subscribed solver.
+	 * @param subscriptionRequestMessage
+	 *            the new subscription request.
+	 */
+	private void updateSubscription(
+			final CachingFilteringSolverInterface solver,
+			final SubscriptionMessage subscriptionRequestMessage) {
+		SubscriptionRequestRule[] rules = subscriptionRequestMessage
+				.getRules();
+		if (rules == null) {
+			rules = new SubscriptionRequestRule[0];
+		}
+		solver.replaceEffectiveRules(Arrays.asList(rules));
+		subscriptionRequestMessage
+				.setMessageType(SubscriptionMessage.RESPONSE_MESSAGE_ID);
+		solver.getSession().write(subscriptionRequestMessage);
+		log.info("(Solver {}) Responded to subscription update with {}.",
+				solver, subscriptionRequestMessage);
+	}
+
+	/**
+	 * Installs a compression filter on the solver's session if its options
+	 * request one. The filter is added after the subscription response has
+	 * been written, so the handshake and response are always uncompressed and
+	 * every sample after the response is compressed.
+	 * 
+	 * @param solver
+	 *            the solver that has just been sent its subscription response.
+	 */
+	private void enableCompression(final CachingFilteringSolverInterface solver) {
+		SolverOptions options = solver.getOptions();
+		if (options == null || !options.isCompressionEnabled()
+				|| solver.getCompressionFilter() != null) {
+			return;
+		}
+		SampleCompressionFilter filter = new SampleCompressionFilter(
+				options.getCompressionLevel());
+		solver.getSession().getFilterChain()
+				.addFirst(SampleCompressionFilter.FILTER_NAME, filter);
+		solver.setCompressionFilter(filter);
+		log.info("Enabled level {} compression for {}.",
+				Integer.valueOf(options.getCompressionLevel()), solver);
 	}
 
 	public void sendSample(
 			final com.owlplatform.common.SampleMessage solverSample) {
+		this.sendHighPrioritySample(solverSample);
+		this.sendSample(solverSample, SolverPriority.NORMAL);
+		this.sendSample(solverSample, SolverPriority.LOW);
+	}
+
+	/**
+	 * Sends a sample to every high-priority solver.
+	 * 
+	 * @param solverSample
+	 *            the sample to send.
+	 */
+	void sendHighPrioritySample(final SampleMessage solverSample) {
+		this.solverGroups.dispatch(solverSample, SolverPriority.HIGH);
+	}
+
+	/**
+	 * Sends a sample to every solver with the specified priority. High-priority
+	 * solvers are handled by {@link #sendHighPrioritySample(SampleMessage)}.
+	 * 
+	 * @param solverSample
+	 *            the sample to send.
+	 * @param priority
+	 *            the priority of the solvers to send to.
+	 */
+	private void sendSample(final SampleMessage solverSample,
+			final SolverPriority priority) {
+		this.solverGroups.dispatch(solverSample, priority);
+	}
+
+	/**
+	 * Drops a sample for all low-priority solvers, counting it against each of
+	 * them.
+	 * 
+	 * @param solverSample
+	 *            the sample to drop.
+	 */
+	private void shedSample(final SampleMessage solverSample) {
+		boolean shed = false;
 		for (CachingFilteringSolverInterface solver : this.solvers.values()) {
-			solver.sendSample(solverSample);
+			if (solver.getOptions().getPriority() == SolverPriority.LOW) {
+				solver.numDropped.incrementAndGet();
+				shed = true;
+			}
+		}
+		for (LocalSolverInterface solver : this.localSolvers) {
+			if (solver.getOptions().getPriority() == SolverPriority.LOW) {
+				solver.numDropped.incrementAndGet();
+				shed = true;
+			}
+		}
+		if (shed) {
+			this.numShed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Registers a solver running in the same JVM as this aggregator. The
+	 * solver receives samples that pass its rules, with the same filtering
+	 * and rate limiting applied to networked solvers, but without any
+	 * encoding or network transfer.
+	 * 
+	 * @param solver
+	 *            the solver to register.
+	 * @param rules
+	 *            the subscription rules for the solver. If {@code null} or
+	 *            empty, the solver receives every sample.
+	 * @param queueCapacity
+	 *            the number of samples that can be queued for the solver, or 0
+	 *            to call the solver directly on the aggregator's dispatch
+	 *            threads. A direct solver must return quickly since it delays
+	 *            every other solver.
+	 * @return the interface for the solver, used to remove it later.
+	 */
+	public LocalSolverInterface addLocalSolver(final LocalSolver solver,
+			final SubscriptionRequestRule[] rules, final int queueCapacity) {
+		return this.addLocalSolver(solver, rules, queueCapacity,
+				this.configuration.getDefaultSolverOptions());
+	}
+
+	/**
+	 * Registers a solver running in the same JVM as this aggregator, with
+	 * explicit solver options.
+	 * 
+	 * @param solver
+	 *            the solver to register.
+	 * @param rules
+	 *            the subscription rules for the solver. If {@code null} or
+	 *            empty, the solver receives every sample.
+	 * @param queueCapacity
+	 *            the number of samples that can be queued for the solver, or 0
+	 *            to call the solver directly on the aggregator's dispatch
+	 *            threads.
+	 * @param solverOptions
+	 *            the options for the solver, such as its priority, or
+	 *            {@code null} to use the default solver options.
+	 * @return the interface for the solver, used to remove it later.
+	 * @see #addLocalSolver(LocalSolver, SubscriptionRequestRule[], int)
+	 */
+	public LocalSolverInterface addLocalSolver(final LocalSolver solver,
+			final SubscriptionRequestRule[] rules, final int queueCapacity,
+			final SolverOptions solverOptions) {
+		SolverOptions options = solverOptions;
+		if (options == null) {
+			options = this.configuration.getDefaultSolverOptions();
+		}
+		LocalSolverInterface solverInterface = new LocalSolverInterface(
+				solver, queueCapacity);
+		solverInterface.setOptions(options);
+		if (rules != null) {
+			for (SubscriptionRequestRule rule : rules) {
+				solverInterface.addEffectiveRule(rule);
+			}
+		}
+		this.setMaxSampleAge(solverInterface);
+		solverInterface.setTracer(this.tracer);
+		// Local solvers are bounded by their own queues, not socket buffers
+		this.localSolvers.add(solverInterface);
+		this.solverGroups.join(solverInterface);
+		this.replayLatestSamples(solverInterface);
+		log.info("Registered {}.", solverInterface);
+		return solverInterface;
+	}
+
+	/**
+	 * Unregisters a local solver and stops delivery to it.
+	 * 
+	 * @param solver
+	 *            the interface returned when the solver was registered.
+	 */
+	public void removeLocalSolver(final LocalSolverInterface solver) {
+		if (this.localSolvers.remove(solver)) {
+			this.solverGroups.leave(solver);
+			solver.close();
+			log.info("Removed {}.", solver);
 		}
 	}
 
@@ -495,7 +1468,7 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 			log.error("No sensor available for {}.", session);
 			return;
 		}
-		log.info("Sent {} to {}.", handshakeMessage, sensor);
+		log.debug("Sent {} to {}.", handshakeMessage, sensor);
 
 		this.checkHandshakeMessages(sensor);
 	}
@@ -503,7 +1476,10 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 	@Override
 	public void solverSampleSent(final IoSession session,
 			final com.owlplatform.common.SampleMessage sampleMessage) {
-		// No-Op
+		CachingFilteringSolverInterface solver = this.solvers.get(session);
+		if (solver != null) {
+			solver.sampleSent(sampleMessage);
+		}
 	}
 
 	@Override
@@ -561,8 +1537,26 @@ public final class Aggregator implements SensorIoAdapter, SolverIoAdapter {
 			this.solverAcceptor.dispose();
 			log.info("{} disposed of solver acceptor.", this);
 		}
+		for (LocalSolverInterface solver : this.localSolvers) {
+			this.removeLocalSolver(solver);
+		}
+
+		if (this.queryAcceptor != null && !this.queryAcceptor.isDisposed()) {
+			this.queryAcceptor.unbind();
+			this.queryAcceptor.dispose();
+			log.info("{} disposed of query acceptor.", this);
+		}
+
+		if (this.sensorDatagramAcceptor != null
+				&& !this.sensorDatagramAcceptor.isDisposed()) {
+			this.sensorDatagramAcceptor.unbind();
+			this.sensorDatagramAcceptor.dispose();
+			log.info("{} disposed of sensor datagram acceptor.", this);
+		}
+
 		if (!this.handlerPool.isShutdown()) {
 			this.handlerPool.shutdownNow();
+			this.priorityPool.shutdownNow();
 			log.info("{} shut down workers.", this);
 		}
 		this.statsTimer.cancel();
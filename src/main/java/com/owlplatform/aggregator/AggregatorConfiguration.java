@@ -19,10 +19,124 @@
 
 package com.owlplatform.aggregator;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class AggregatorConfiguration {
 	private int sensorListenPort = Aggregator.SENSOR_LISTEN_PORT;
 	private int solverListenPort = Aggregator.SOLVER_LISTEN_PORT;
-	
+
+	/**
+	 * Number of pending sensor connections the operating system may queue.
+	 */
+	private int sensorAcceptBacklog = 1024;
+
+	/**
+	 * Sensor connections admitted per second, or 0 for no limit.
+	 */
+	private double sensorAcceptRate = 0;
+
+	/**
+	 * Number of sensor connections that may be admitted at once when
+	 * {@link #sensorAcceptRate} is set.
+	 */
+	private int sensorAcceptBurst = 100;
+
+	/**
+	 * UDP port for datagram sensors, or 0 to disable datagram ingest.
+	 */
+	private int sensorDatagramPort = 0;
+
+	/**
+	 * Number of samples waiting for dispatch above which low-priority solvers
+	 * are shed.
+	 */
+	private int overloadQueueDepth = 10000;
+
+	/**
+	 * Maximum age of a sample dispatched to solvers, in milliseconds, or 0 for
+	 * no limit.
+	 */
+	private long maxSampleAge = 0;
+
+	/**
+	 * Number of entries in the latest-sample table, or 0 to disable it.
+	 */
+	private int latestSampleCapacity = 0;
+
+	/**
+	 * Maximum age of a sample in the latest-sample table, in milliseconds.
+	 */
+	private long latestSampleMaxAge = 60000l;
+
+	/**
+	 * Loopback TCP port for latest-sample queries, or 0 to disable queries.
+	 */
+	private int queryListenPort = 0;
+
+	/**
+	 * Maximum number of bytes queued for all solvers, or 0 for no limit.
+	 */
+	private long solverBufferBudget = 64l * 1024 * 1024;
+
+	/**
+	 * Number of top devices, receivers, and sensors reported in each
+	 * statistics interval, or 0 to disable heavy-hitter tracking.
+	 */
+	private int heavyHitterCount = 0;
+
+	/**
+	 * Fraction of samples traced through the aggregator, or 0 to disable
+	 * tracing.
+	 */
+	private double traceRatio = 0;
+
+	/**
+	 * Number of completed traces kept for dumping.
+	 */
+	private int traceCapacity = 1024;
+
+	/**
+	 * Smallest number of sample dispatch threads. Equal to the largest by
+	 * default, so the pool has a fixed size unless adaptive sizing is enabled
+	 * by lowering it.
+	 */
+	private int dispatchMinThreads = Runtime.getRuntime()
+			.availableProcessors() * 2;
+
+	/**
+	 * Largest number of sample dispatch threads.
+	 */
+	private int dispatchMaxThreads = Runtime.getRuntime()
+			.availableProcessors() * 2;
+
+	/**
+	 * Queueing delay for samples above which more dispatch threads are
+	 * started, in milliseconds.
+	 */
+	private long dispatchTargetLatency = 5;
+
+	/**
+	 * Options applied to sensors without an address-specific entry.
+	 */
+	private SensorOptions defaultSensorOptions = new SensorOptions();
+
+	/**
+	 * Sensor options keyed by the sensor's host address.
+	 */
+	private final ConcurrentHashMap<String, SensorOptions> sensorOptions = new ConcurrentHashMap<String, SensorOptions>();
+
+	/**
+	 * Options applied to solvers without an address-specific entry.
+	 */
+	private SolverOptions defaultSolverOptions = new SolverOptions();
+
+	/**
+	 * Solver options keyed by the solver's host address.
+	 */
+	private final ConcurrentHashMap<String, SolverOptions> solverOptions = new ConcurrentHashMap<String, SolverOptions>();
+
 	public int getSolverListenPort() {
 		return this.solverListenPort;
 	}
@@ -38,4 +152,239 @@ public class AggregatorConfiguration {
 	public void setSensorListenPort(int listenPort) {
 		this.sensorListenPort = listenPort;
 	}
+
+	public int getSensorAcceptBacklog() {
+		return this.sensorAcceptBacklog;
+	}
+
+	public void setSensorAcceptBacklog(int sensorAcceptBacklog) {
+		this.sensorAcceptBacklog = sensorAcceptBacklog;
+	}
+
+	public double getSensorAcceptRate() {
+		return this.sensorAcceptRate;
+	}
+
+	public void setSensorAcceptRate(double sensorAcceptRate) {
+		this.sensorAcceptRate = sensorAcceptRate;
+	}
+
+	public int getSensorAcceptBurst() {
+		return this.sensorAcceptBurst;
+	}
+
+	public void setSensorAcceptBurst(int sensorAcceptBurst) {
+		this.sensorAcceptBurst = sensorAcceptBurst;
+	}
+
+	public int getSensorDatagramPort() {
+		return this.sensorDatagramPort;
+	}
+
+	public void setSensorDatagramPort(int sensorDatagramPort) {
+		this.sensorDatagramPort = sensorDatagramPort;
+	}
+
+	public int getOverloadQueueDepth() {
+		return this.overloadQueueDepth;
+	}
+
+	public void setOverloadQueueDepth(int overloadQueueDepth) {
+		this.overloadQueueDepth = overloadQueueDepth;
+	}
+
+	public long getMaxSampleAge() {
+		return this.maxSampleAge;
+	}
+
+	public void setMaxSampleAge(long maxSampleAge) {
+		this.maxSampleAge = maxSampleAge;
+	}
+
+	public int getLatestSampleCapacity() {
+		return this.latestSampleCapacity;
+	}
+
+	public void setLatestSampleCapacity(int latestSampleCapacity) {
+		this.latestSampleCapacity = latestSampleCapacity;
+	}
+
+	public long getLatestSampleMaxAge() {
+		return this.latestSampleMaxAge;
+	}
+
+	public void setLatestSampleMaxAge(long latestSampleMaxAge) {
+		this.latestSampleMaxAge = latestSampleMaxAge;
+	}
+
+	public int getQueryListenPort() {
+		return this.queryListenPort;
+	}
+
+	public void setQueryListenPort(int queryListenPort) {
+		this.queryListenPort = queryListenPort;
+	}
+
+	public long getSolverBufferBudget() {
+		return this.solverBufferBudget;
+	}
+
+	public void setSolverBufferBudget(long solverBufferBudget) {
+		this.solverBufferBudget = solverBufferBudget;
+	}
+
+	public int getHeavyHitterCount() {
+		return this.heavyHitterCount;
+	}
+
+	public void setHeavyHitterCount(int heavyHitterCount) {
+		this.heavyHitterCount = heavyHitterCount;
+	}
+
+	public double getTraceRatio() {
+		return this.traceRatio;
+	}
+
+	public void setTraceRatio(double traceRatio) {
+		this.traceRatio = traceRatio;
+	}
+
+	public int getTraceCapacity() {
+		return this.traceCapacity;
+	}
+
+	public void setTraceCapacity(int traceCapacity) {
+		this.traceCapacity = traceCapacity;
+	}
+
+	public int getDispatchMinThreads() {
+		return this.dispatchMinThreads;
+	}
+
+	public void setDispatchMinThreads(int dispatchMinThreads) {
+		this.dispatchMinThreads = dispatchMinThreads;
+	}
+
+	public int getDispatchMaxThreads() {
+		return this.dispatchMaxThreads;
+	}
+
+	public void setDispatchMaxThreads(int dispatchMaxThreads) {
+		this.dispatchMaxThreads = dispatchMaxThreads;
+	}
+
+	public long getDispatchTargetLatency() {
+		return this.dispatchTargetLatency;
+	}
+
+	public void setDispatchTargetLatency(long dispatchTargetLatency) {
+		this.dispatchTargetLatency = dispatchTargetLatency;
+	}
+
+	public SensorOptions getDefaultSensorOptions() {
+		return this.defaultSensorOptions;
+	}
+
+	public void setDefaultSensorOptions(SensorOptions defaultSensorOptions) {
+		this.defaultSensorOptions = defaultSensorOptions;
+	}
+
+	/**
+	 * Assigns options to sensors connecting from a specific host.
+	 * 
+	 * @param hostAddress
+	 *            the textual IP address of the sensor host, as returned by
+	 *            {@link java.net.InetAddress#getHostAddress()}.
+	 * @param options
+	 *            the options for that host, or {@code null} to revert to the
+	 *            default options.
+	 */
+	public void setSensorOptions(String hostAddress, SensorOptions options) {
+		if (options == null) {
+			this.sensorOptions.remove(hostAddress);
+		} else {
+			this.sensorOptions.put(hostAddress, options);
+		}
+	}
+
+	/**
+	 * Returns the options for a sensor connected from {@code remoteAddress}.
+	 * 
+	 * @param remoteAddress
+	 *            the remote address of the sensor session.
+	 * @return the address-specific options, or the default options if none
+	 *         were assigned.
+	 */
+	public SensorOptions getSensorOptions(SocketAddress remoteAddress) {
+		String host = getHostAddress(remoteAddress);
+		if (host != null) {
+			SensorOptions options = this.sensorOptions.get(host);
+			if (options != null) {
+				return options;
+			}
+		}
+		return this.defaultSensorOptions;
+	}
+
+	public SolverOptions getDefaultSolverOptions() {
+		return this.defaultSolverOptions;
+	}
+
+	public void setDefaultSolverOptions(SolverOptions defaultSolverOptions) {
+		this.defaultSolverOptions = defaultSolverOptions;
+	}
+
+	/**
+	 * Assigns options to solvers connecting from a specific host.
+	 *
+	 * @param hostAddress
+	 *            the textual IP address of the solver host, as returned by
+	 *            {@link java.net.InetAddress#getHostAddress()}.
+	 * @param options
+	 *            the options for that host, or {@code null} to revert to the
+	 *            default options.
+	 */
+	public void setSolverOptions(String hostAddress, SolverOptions options) {
+		if (options == null) {
+			this.solverOptions.remove(hostAddress);
+		} else {
+			this.solverOptions.put(hostAddress, options);
+		}
+	}
+
+	/**
+	 * Returns the options for a solver connected from {@code remoteAddress}.
+	 *
+	 * @param remoteAddress
+	 *            the remote address of the solver session.
+	 * @return the address-specific options, or the default options if none
+	 *         were assigned.
+	 */
+	public SolverOptions getSolverOptions(SocketAddress remoteAddress) {
+		String host = getHostAddress(remoteAddress);
+		if (host != null) {
+			SolverOptions options = this.solverOptions.get(host);
+			if (options != null) {
+				return options;
+			}
+		}
+		return this.defaultSolverOptions;
+	}
+
+	/**
+	 * Returns the textual IP address of a session's remote address.
+	 * 
+	 * @param remoteAddress
+	 *            the remote address of a session.
+	 * @return the host address, or {@code null} if it is not an IP address.
+	 */
+	private static String getHostAddress(SocketAddress remoteAddress) {
+		if (remoteAddress instanceof InetSocketAddress) {
+			InetSocketAddress inetAddress = (InetSocketAddress) remoteAddress;
+			if (inetAddress.getAddress() != null) {
+				return inetAddress.getAddress().getHostAddress();
+			}
+		}
+		return null;
+	}
 }
@@ -19,18 +19,15 @@
 
 package com.owlplatform.aggregator;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.owlplatform.common.SampleMessage;
-import com.owlplatform.common.util.HashableByteArray;
-import com.owlplatform.common.util.LRUCache;
 import com.owlplatform.solver.rules.SubscriptionRequestRule;
 
 public class CachingFilteringSolverInterface extends SolverInterface {
@@ -41,107 +38,538 @@ public class CachingFilteringSolverInterface extends SolverInterface {
 	private static final Logger log = LoggerFactory
 			.getLogger(CachingFilteringSolverInterface.class);
 
-	private static final int MAX_DEVICES = 200;
-
-	ConcurrentLinkedQueue<SubscriptionRequestRule> effectiveRules = new ConcurrentLinkedQueue<SubscriptionRequestRule>();
-
-	Map<HashableByteArray, DeviceIdHashEntry> ruleCache = Collections
-			.synchronizedMap(new LRUCache<HashableByteArray, DeviceIdHashEntry>(
-					MAX_DEVICES));
+	/**
+	 * The rules of this solver and their cached results. Shared with other
+	 * solvers that have identical rules while this solver is registered with
+	 * a {@link SolverGroupRegistry}.
+	 */
+	protected volatile RuleEvaluationGroup group = new RuleEvaluationGroup();
 
-	protected boolean hasEffectiveRules = false;
+	/**
+	 * The registry this solver's group belongs to, or {@code null} if the
+	 * group is private to this solver.
+	 */
+	protected volatile SolverGroupRegistry groupRegistry = null;
 
 	protected volatile boolean reportedDrop = false;
 
 	protected volatile AtomicInteger numDropped = new AtomicInteger(0);
 
+	/**
+	 * Maximum age of a sample sent to this solver, in milliseconds, or 0 for
+	 * no limit.
+	 */
+	protected volatile long maxSampleAge = 0;
+
+	/**
+	 * Number of samples not sent because they were too old.
+	 */
+	protected final AtomicInteger numStale = new AtomicInteger(0);
+
+	/**
+	 * Windowed RSSI aggregator for this solver, or {@code null} if samples are
+	 * sent as they arrive.
+	 */
+	protected RssiWindowAggregator aggregator = null;
+
+	/**
+	 * Buffer that collapses copies of a transmission heard by several
+	 * receivers, or {@code null} if every copy is sent.
+	 */
+	protected ReceiverReductionBuffer reducer = null;
+
+	/**
+	 * On-disk queue for samples that arrive while the solver is backed up, or
+	 * {@code null} if such samples are dropped.
+	 */
+	protected SpillQueue spillQueue = null;
+
+	/**
+	 * Buffer that releases samples in creation timestamp order, or
+	 * {@code null} if samples are sent in the order they are dispatched.
+	 */
+	protected ReorderBuffer reorderer = null;
+
+	/**
+	 * Samples released by {@link #reorderer}, reused for each sample.
+	 */
+	private final ArrayList<SampleMessage> ordered = new ArrayList<SampleMessage>();
+
+	/**
+	 * Samples released by {@link #reducer}, reused for each sample.
+	 */
+	private final ArrayList<SampleMessage> released = new ArrayList<SampleMessage>();
+
+	@Override
+	public synchronized void setOptions(SolverOptions options) {
+		super.setOptions(options);
+		SampleFilter filter = SampleFilter.forOptions(options);
+		if (!filter.getCanonicalKey().equals(
+				this.group.getFilter().getCanonicalKey())) {
+			SolverGroupRegistry registry = this.groupRegistry;
+			if (registry != null) {
+				registry.leave(this);
+			}
+			this.group.setFilter(filter);
+			if (registry != null) {
+				registry.join(this);
+			}
+		}
+		if (options.getAggregationWindow() > 0) {
+			this.aggregator = new RssiWindowAggregator(
+					options.getAggregationWindow(),
+					options.getAggregationCapacity());
+		} else {
+			this.aggregator = null;
+		}
+		if (options.getSpillDirectory() != null && this.spillQueue == null) {
+			this.spillQueue = new SpillQueue(new File(
+					options.getSpillDirectory()),
+					options.getSpillSegmentSize(), options.getMaxSpillBytes());
+		}
+		if (options.getReorderWindow() > 0) {
+			this.reorderer = new ReorderBuffer(options.getReorderWindow(),
+					options.getReorderCapacity());
+		} else {
+			this.reorderer = null;
+		}
+		if (options.getReductionWindow() > 0) {
+			this.reducer = new ReceiverReductionBuffer(
+					options.getReductionWindow(),
+					options.getReductionReceivers(),
+					options.getReductionCapacity());
+		} else {
+			this.reducer = null;
+		}
+	}
+
 	@Override
 	public synchronized boolean sendSample(SampleMessage sampleMessage) {
+		if (!this.isReady()) {
+			return false;
+		}
+		// Checked first so that stale samples do not use up update intervals
+		if (this.isStale(sampleMessage)) {
+			this.numStale.incrementAndGet();
+			return false;
+		}
+		if (!this.group.accepts(sampleMessage)) {
+			return false;
+		}
+		this.trace(sampleMessage, SampleTracer.ACCEPTED);
+		return this.writeIfFresh(sampleMessage);
+	}
 
-		if (this.session.getScheduledWriteMessages() > SolverInterface.MAX_OUTSTANDING_SAMPLES) {
+	/**
+	 * Sends a sample that has already been accepted by this solver's group.
+	 * 
+	 * @param sampleMessage
+	 *            the accepted sample.
+	 * @return {@code true} if the sample was sent.
+	 */
+	public synchronized boolean deliverSample(SampleMessage sampleMessage) {
+		if (!this.isReady()) {
+			return false;
+		}
+		this.trace(sampleMessage, SampleTracer.ACCEPTED);
+		return this.writeIfFresh(sampleMessage);
+	}
+
+	/**
+	 * Checks whether this solver can be sent a sample, counting a drop if the
+	 * solver is backed up and has no spill queue.
+	 * 
+	 * @return {@code true} if the solver is subscribed and either not backed
+	 *         up or able to spill.
+	 */
+	private boolean isReady() {
+		if (this.spillQueue == null && this.isBackedUp()) {
 			this.numDropped.incrementAndGet();
-			
+
 			return false;
 		}
 
-		if (!this.sentSubscriptionResponse) {
+		return this.sentSubscriptionResponse;
+	}
+
+	/**
+	 * @return {@code true} if more samples are waiting to be sent than this
+	 *         solver's priority allows.
+	 */
+	private boolean isBackedUp() {
+		return this.getScheduledSamples() > this.options.getPriority()
+				.getMaxOutstandingSamples();
+	}
+
+	/**
+	 * Writes a sample, or adds it to the spill queue if the solver is backed
+	 * up, over its buffer budget, or earlier samples are still spilled, so
+	 * that samples stay in order. Spilled samples are sent from here and from
+	 * {@link #flushWindows()}, never from the I/O processor.
+	 */
+	@Override
+	protected synchronized boolean write(SampleMessage sampleMessage) {
+		if (this.spillQueue == null) {
+			return super.write(sampleMessage);
+		}
+		if (!this.spillQueue.isEmpty()) {
+			this.drainSpillQueue();
+		}
+		if (this.spillQueue.isEmpty() && !this.isBackedUp()) {
+			if (!this.isWritable()) {
+				return false;
+			}
+			if (this.reserve(sampleMessage)) {
+				this.writeReserved(sampleMessage);
+				return true;
+			}
+		}
+		return this.spillQueue.offer(sampleMessage, System.currentTimeMillis());
+	}
+
+	/**
+	 * Sends spilled samples, oldest first, until the solver is backed up
+	 * again, its buffer budget is exhausted, or the spill queue is empty. A
+	 * sample is only removed from the spill queue once it has been written.
+	 * 
+	 * @return the number of samples sent.
+	 */
+	public synchronized int drainSpillQueue() {
+		if (this.spillQueue == null) {
+			return 0;
+		}
+		int sent = 0;
+		while (!this.spillQueue.isEmpty() && !this.isBackedUp()
+				&& this.isWritable()) {
+			SampleMessage sample = this.spillQueue.peek();
+			if (sample == null || !this.reserve(sample)) {
+				break;
+			}
+			this.spillQueue.poll();
+			this.writeReserved(sample);
+			++sent;
+		}
+		return sent;
+	}
+
+	/**
+	 * Discards any spilled samples and deletes the spill files.
+	 */
+	public synchronized void closeSpillQueue() {
+		if (this.spillQueue != null) {
+			this.spillQueue.close();
+		}
+	}
+
+	/**
+	 * Returns the spill queue's backlog and dropped samples since the last
+	 * call, then resets the dropped count.
+	 * 
+	 * @return the statistics, or {@code null} if spilling is disabled.
+	 */
+	public synchronized String getAndClearSpillStatistics() {
+		if (this.spillQueue == null) {
+			return null;
+		}
+		return this.spillQueue.getAndClearStatistics(System
+				.currentTimeMillis());
+	}
+
+	/**
+	 * Writes a sample unless it is older than {@link #maxSampleAge}. If
+	 * reordering is enabled, the sample is held until it can be sent in
+	 * creation timestamp order.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to write.
+	 * @return {@code true} if the sample was written, reordered, reduced, or
+	 *         aggregated.
+	 */
+	private boolean writeIfFresh(SampleMessage sampleMessage) {
+		if (this.isStale(sampleMessage)) {
+			this.numStale.incrementAndGet();
 			return false;
 		}
+		if (this.reorderer != null) {
+			boolean inOrder = this.reorderer.add(sampleMessage,
+					sampleMessage.getCreationTimestamp(),
+					System.currentTimeMillis(), this.ordered);
+			this.reduceOrdered();
+			return inOrder;
+		}
+		return this.reduce(sampleMessage);
+	}
 
-		if (!this.hasEffectiveRules) {
-			return super.sendSample(sampleMessage);
+	/**
+	 * Reduces and clears the samples released by {@link #reorderer}.
+	 */
+	private void reduceOrdered() {
+		for (SampleMessage sample : this.ordered) {
+			this.reduce(sample);
 		}
+		this.ordered.clear();
+	}
 
-		HashableByteArray deviceHasher = new HashableByteArray(
-				sampleMessage.getDeviceId());
+	/**
+	 * Emits a sample, unless receiver reduction is enabled, in which case the
+	 * sample is held until the strongest copies of its transmission are
+	 * known.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to reduce.
+	 * @return {@code true} if the sample was written, reduced, or aggregated.
+	 */
+	private boolean reduce(SampleMessage sampleMessage) {
+		if (this.reducer != null) {
+			this.reducer.add(sampleMessage, System.currentTimeMillis(),
+					this.released);
+			this.emitReleased();
+			return true;
+		}
+		return this.emit(sampleMessage);
+	}
 
-		DeviceIdHashEntry cacheResult = this.ruleCache.get(deviceHasher);
+	/**
+	 * Emits and clears the samples released by {@link #reducer}.
+	 */
+	private void emitReleased() {
+		for (SampleMessage sample : this.released) {
+			this.emit(sample);
+		}
+		this.released.clear();
+	}
 
-		if (cacheResult == null) {
-			SubscriptionRequestRule passedRule = null;
-			for (SubscriptionRequestRule rule : this.effectiveRules) {
-				log.debug("Checking rule {}.", rule);
-				if (SubscriptionRuleFilter.applyRule(rule, sampleMessage)) {
-					passedRule = rule;
-					break;
-				}
+	/**
+	 * Writes a sample, or adds it to its aggregation window if aggregation is
+	 * enabled. Only a closed window's summary is written.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to write.
+	 * @return {@code true} if the sample was written or aggregated.
+	 */
+	private boolean emit(SampleMessage sampleMessage) {
+		if (this.aggregator != null) {
+			SampleMessage summary = this.aggregator.add(sampleMessage,
+					System.currentTimeMillis());
+			if (summary != null) {
+				this.write(summary);
 			}
+			return true;
+		}
+		return this.write(sampleMessage);
+	}
 
-			if (passedRule != null) {
-				log.debug("{} passed all rules.", sampleMessage);
-				DeviceIdHashEntry hashEntry = new DeviceIdHashEntry();
-				hashEntry.setPassedRules(true);
-				hashEntry.setUpdateInterval(passedRule.getUpdateInterval());
-				hashEntry.setNextPermittedTransmit(
-						sampleMessage.getReceiverId(),
-						System.currentTimeMillis()
-								+ passedRule.getUpdateInterval());
-				this.ruleCache.put(deviceHasher, hashEntry);
-				return super.sendSample(sampleMessage);
+	/**
+	 * Closes all reorder, reduction and aggregation windows that have reached
+	 * their full length, sending the samples they release, and sends any
+	 * spilled samples the solver has room for.
+	 */
+	public synchronized void flushWindows() {
+		this.drainSpillQueue();
+		long now = System.currentTimeMillis();
+		if (this.reorderer != null) {
+			this.reorderer.flush(now, this.ordered);
+			this.reduceOrdered();
+		}
+		if (this.reducer != null) {
+			this.reducer.flush(now, this.released);
+			this.emitReleased();
+		}
+		if (this.aggregator != null) {
+			ArrayList<SampleMessage> summaries = new ArrayList<SampleMessage>();
+			this.aggregator.flush(now, summaries);
+			for (SampleMessage summary : summaries) {
+				this.write(summary);
 			}
-			DeviceIdHashEntry hashEntry = new DeviceIdHashEntry();
-			hashEntry.setPassedRules(false);
-			this.ruleCache.put(deviceHasher, hashEntry);
+		}
+	}
+
+	/**
+	 * Returns the reorder statistics since the last call, then resets them.
+	 * 
+	 * @return the statistics, or {@code null} if reordering is disabled.
+	 */
+	public synchronized String getAndClearReorderStatistics() {
+		if (this.reorderer == null) {
+			return null;
+		}
+		return this.reorderer.getAndClearStatistics();
+	}
+
+	/**
+	 * Returns the receiver reduction statistics since the last call, then
+	 * resets them.
+	 * 
+	 * @return the statistics, or {@code null} if reduction is disabled.
+	 */
+	public synchronized String getAndClearReductionStatistics() {
+		if (this.reducer == null) {
+			return null;
+		}
+		return this.reducer.getAndClearStatistics();
+	}
+
+	/**
+	 * Checks whether a sample is too old to be sent to this solver.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return {@code true} if the sample is older than {@link #maxSampleAge}.
+	 */
+	protected boolean isStale(SampleMessage sampleMessage) {
+		long maxAge = this.maxSampleAge;
+		return maxAge > 0
+				&& System.currentTimeMillis()
+						- sampleMessage.getCreationTimestamp() > maxAge;
+	}
+
+	/**
+	 * Counts a sample that was not sent to this solver because it was stale,
+	 * when the staleness was checked by the solver's group.
+	 */
+	void countStale() {
+		this.numStale.incrementAndGet();
+	}
+
+	/**
+	 * @param maxSampleAge
+	 *            the maximum age of a sample sent to this solver, in
+	 *            milliseconds, or 0 for no limit.
+	 */
+	public void setMaxSampleAge(long maxSampleAge) {
+		this.maxSampleAge = maxSampleAge;
+	}
+
+	/**
+	 * @return the maximum age of a sample sent to this solver, in
+	 *         milliseconds, or 0 for no limit.
+	 */
+	public long getMaxSampleAge() {
+		return this.maxSampleAge;
+	}
+
+	/**
+	 * Sends a previously-received sample if it passes the effective rules.
+	 * Unlike {@link #sendSample(SampleMessage)}, replayed samples are not
+	 * limited by update intervals or outstanding samples and do not affect the
+	 * rule cache.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to replay.
+	 * @return {@code true} if the sample was sent.
+	 */
+	public synchronized boolean replaySample(SampleMessage sampleMessage) {
+		if (!this.sentSubscriptionResponse) {
 			return false;
 		}
-		if (cacheResult.isPassedRules()) {
-			long now = System.currentTimeMillis();
-			long nextTransmit = cacheResult
-					.getNextPermittedTransmit(sampleMessage.getReceiverId());
-			if (nextTransmit <= now) {
-				cacheResult.setNextPermittedTransmit(
-						sampleMessage.getReceiverId(),
-						now + cacheResult.getUpdateInterval());
-				return super.sendSample(sampleMessage);
-			}
+		if (!this.group.matches(sampleMessage)) {
 			return false;
 		}
-
-		return false;
+		return this.write(sampleMessage);
 	}
 
 	public Collection<SubscriptionRequestRule> getEffectiveRules() {
-		return this.effectiveRules;
+		return this.group.getEffectiveRules();
 	}
 
 	/**
-	 * A convenience method for adding a single rule to this Solver.
+	 * @return the rules of this solver and their cached results.
+	 */
+	public RuleEvaluationGroup getGroup() {
+		return this.group;
+	}
+
+	/**
+	 * @param group
+	 *            the rules of this solver and their cached results.
+	 */
+	void setGroup(RuleEvaluationGroup group) {
+		this.group = group;
+	}
+
+	/**
+	 * @return the registry this solver's group belongs to, or {@code null} if
+	 *         the group is private to this solver.
+	 */
+	public SolverGroupRegistry getGroupRegistry() {
+		return this.groupRegistry;
+	}
+
+	/**
+	 * @param groupRegistry
+	 *            the registry this solver's group belongs to.
+	 */
+	void setGroupRegistry(SolverGroupRegistry groupRegistry) {
+		this.groupRegistry = groupRegistry;
+	}
+
+	/**
+	 * A convenience method for adding a single rule to this Solver. Devices
+	 * that were rejected by the previous rules are checked again; cached
+	 * results for devices that passed are kept, since rules are evaluated in
+	 * order and the new rule is last.
 	 * 
 	 * @param newRule
 	 *            the rule to add to this Solver.
 	 */
-	public void addEffectiveRule(SubscriptionRequestRule newRule) {
+	public synchronized void addEffectiveRule(SubscriptionRequestRule newRule) {
+		SolverGroupRegistry registry = this.groupRegistry;
+		if (registry != null) {
+			registry.leave(this);
+		}
+		this.group.addRule(newRule);
+		if (registry != null) {
+			registry.join(this);
+		}
+		log.info("Added {} to {}.", newRule, this);
+	}
 
-		this.effectiveRules.add(newRule);
+	/**
+	 * Removes a single rule from this Solver. Devices that passed the rule are
+	 * checked against the remaining rules the next time they are seen; other
+	 * cached results are not affected.
+	 * 
+	 * @param oldRule
+	 *            the rule to remove.
+	 * @return {@code true} if the rule was one of the effective rules.
+	 */
+	public synchronized boolean removeEffectiveRule(
+			SubscriptionRequestRule oldRule) {
+		SolverGroupRegistry registry = this.groupRegistry;
+		if (registry != null) {
+			registry.leave(this);
+		}
+		boolean removed = this.group.removeRule(oldRule);
+		if (registry != null) {
+			registry.join(this);
+		}
+		if (removed) {
+			log.info("Removed {} from {}.", oldRule, this);
+		}
+		return removed;
+	}
 
-		for (SubscriptionRequestRule rule : this.effectiveRules) {
-			if (rule.getNumTransmitters() > 0 || rule.getPhysicalLayer() != 0
-					|| rule.getUpdateInterval() > 0) {
-				this.hasEffectiveRules = true;
-				break;
-			}
+	/**
+	 * Atomically replaces the effective rules of this Solver, keeping the
+	 * order of {@code newRules}. Cached results are kept where the change
+	 * cannot affect them; see {@link RuleEvaluationGroup#replaceRules}.
+	 * 
+	 * @param newRules
+	 *            the complete set of rules for this Solver, in evaluation
+	 *            order.
+	 */
+	public synchronized void replaceEffectiveRules(
+			Collection<SubscriptionRequestRule> newRules) {
+		SolverGroupRegistry registry = this.groupRegistry;
+		if (registry != null) {
+			registry.leave(this);
 		}
-		log.info("Added {} to {}.", newRule, this);
+		int[] changes = this.group.replaceRules(newRules);
+		if (registry != null) {
+			registry.join(this);
+		}
+		log.info("Replaced rules of {}: {} added, {} removed.", new Object[] {
+				this, Integer.valueOf(changes[0]), Integer.valueOf(changes[1]) });
 	}
 
 	public int getAndClearDroppedPackets() {
@@ -149,9 +577,19 @@ public class CachingFilteringSolverInterface extends SolverInterface {
 		return this.numDropped.getAndSet(0);
 	}
 
-	public void clearEffectiveRules() {
-		this.effectiveRules.clear();
-		this.hasEffectiveRules = false;
+	public int getAndClearStaleSamples() {
+		return this.numStale.getAndSet(0);
+	}
+
+	public synchronized void clearEffectiveRules() {
+		SolverGroupRegistry registry = this.groupRegistry;
+		if (registry != null) {
+			registry.leave(this);
+		}
+		this.group.clearRules();
+		if (registry != null) {
+			registry.join(this);
+		}
 		log.debug("Cleared effective rules.");
 	}
 
@@ -0,0 +1,262 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.solver.protocol.messages.Transmitter;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+/**
+ * A {@link SubscriptionRequestRule} that has been validated and packed for
+ * fast matching. Each transmitter base ID and mask is stored as a pair of
+ * {@code long} words, so matching a device ID against a transmitter takes two
+ * masked comparisons instead of a byte-by-byte loop. Malformed transmitters
+ * are reported once, when the rule is compiled, and then discarded.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class CompiledRule {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(CompiledRule.class);
+
+	/**
+	 * Longest identifier that can be packed, in bytes.
+	 */
+	public static final int MAX_ID_LENGTH = 16;
+
+	/**
+	 * The rule this was compiled from.
+	 */
+	private final SubscriptionRequestRule rule;
+
+	/**
+	 * Physical layer of the rule, or 0 for any physical layer.
+	 */
+	private final byte physicalLayer;
+
+	/**
+	 * Minimum interval between samples for a device/receiver pair.
+	 */
+	private final long updateInterval;
+
+	/**
+	 * {@code true} if the rule did not restrict transmitters.
+	 */
+	private final boolean matchesAllTransmitters;
+
+	/**
+	 * Length of each transmitter ID, in bytes.
+	 */
+	private final int[] idLengths;
+
+	/**
+	 * High-order words of the transmitter base IDs.
+	 */
+	private final long[] baseHigh;
+
+	/**
+	 * Low-order words of the transmitter base IDs.
+	 */
+	private final long[] baseLow;
+
+	/**
+	 * High-order words of the transmitter masks.
+	 */
+	private final long[] maskHigh;
+
+	/**
+	 * Low-order words of the transmitter masks.
+	 */
+	private final long[] maskLow;
+
+	/**
+	 * Set once the rule has been removed from its solver. Cached results that
+	 * refer to a retired rule must be re-evaluated.
+	 */
+	private volatile boolean retired = false;
+
+	/**
+	 * Compiles a rule.
+	 * 
+	 * @param rule
+	 *            the rule to compile.
+	 */
+	public CompiledRule(final SubscriptionRequestRule rule) {
+		this.rule = rule;
+		this.physicalLayer = rule.getPhysicalLayer();
+		this.updateInterval = rule.getUpdateInterval();
+
+		Transmitter[] transmitters = rule.getTransmitters();
+		this.matchesAllTransmitters = transmitters == null
+				|| transmitters.length == 0;
+
+		List<Transmitter> valid = new ArrayList<Transmitter>();
+		if (transmitters != null) {
+			for (Transmitter transmitter : transmitters) {
+				byte[] baseId = transmitter.getBaseId();
+				byte[] mask = transmitter.getMask();
+				if (baseId == null || mask == null) {
+					log.warn("Base ID or mask is null in {}, ignoring it.",
+							rule);
+					continue;
+				}
+				if (baseId.length != mask.length
+						|| baseId.length > MAX_ID_LENGTH) {
+					log.warn(
+							"Base ID/mask lengths ({}/{}) are invalid in {}, ignoring it.",
+							new Object[] { Integer.valueOf(baseId.length),
+									Integer.valueOf(mask.length), rule });
+					continue;
+				}
+				valid.add(transmitter);
+			}
+		}
+
+		int numValid = valid.size();
+		this.idLengths = new int[numValid];
+		this.baseHigh = new long[numValid];
+		this.baseLow = new long[numValid];
+		this.maskHigh = new long[numValid];
+		this.maskLow = new long[numValid];
+		for (int i = 0; i < numValid; ++i) {
+			byte[] baseId = valid.get(i).getBaseId();
+			byte[] mask = valid.get(i).getMask();
+			this.idLengths[i] = baseId.length;
+			this.baseHigh[i] = packHigh(baseId);
+			this.baseLow[i] = packLow(baseId);
+			this.maskHigh[i] = packHigh(mask);
+			this.maskLow[i] = packLow(mask);
+		}
+	}
+
+	/**
+	 * Returns the high-order word of an identifier, right-aligned in
+	 * {@link #MAX_ID_LENGTH} bytes.
+	 * 
+	 * @param id
+	 *            an identifier of at most {@link #MAX_ID_LENGTH} bytes.
+	 * @return the first 8 bytes of the aligned identifier.
+	 */
+	public static long packHigh(final byte[] id) {
+		long word = 0;
+		int offset = MAX_ID_LENGTH - id.length;
+		for (int i = 0; i < id.length && offset + i < 8; ++i) {
+			word |= (id[i] & 0xFFL) << (8 * (7 - offset - i));
+		}
+		return word;
+	}
+
+	/**
+	 * Returns the low-order word of an identifier, right-aligned in
+	 * {@link #MAX_ID_LENGTH} bytes.
+	 * 
+	 * @param id
+	 *            an identifier of at most {@link #MAX_ID_LENGTH} bytes.
+	 * @return the last 8 bytes of the aligned identifier.
+	 */
+	public static long packLow(final byte[] id) {
+		long word = 0;
+		int start = Math.max(0, id.length - 8);
+		for (int i = start; i < id.length; ++i) {
+			word |= (id[i] & 0xFFL) << (8 * (id.length - 1 - i));
+		}
+		return word;
+	}
+
+	/**
+	 * Checks a packed device ID against this rule's transmitters. The physical
+	 * layer must be checked separately.
+	 * 
+	 * @param idLength
+	 *            the length of the device ID, or -1 if it could not be packed.
+	 * @param idHigh
+	 *            the high-order word of the device ID.
+	 * @param idLow
+	 *            the low-order word of the device ID.
+	 * @return {@code true} if the device matches this rule.
+	 */
+	public boolean matches(final int idLength, final long idHigh,
+			final long idLow) {
+		if (this.matchesAllTransmitters) {
+			return true;
+		}
+		for (int i = 0; i < this.idLengths.length; ++i) {
+			if ((idLow & this.maskLow[i]) == this.baseLow[i]
+					&& (idHigh & this.maskHigh[i]) == this.baseHigh[i]
+					&& idLength == this.idLengths[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the rule this was compiled from.
+	 */
+	public SubscriptionRequestRule getRule() {
+		return this.rule;
+	}
+
+	/**
+	 * @return the physical layer of the rule, or 0 for any physical layer.
+	 */
+	public byte getPhysicalLayer() {
+		return this.physicalLayer;
+	}
+
+	/**
+	 * @return the minimum interval between samples for a device/receiver
+	 *         pair.
+	 */
+	public long getUpdateInterval() {
+		return this.updateInterval;
+	}
+
+	/**
+	 * @return {@code true} if the rule has been removed from its solver.
+	 */
+	public boolean isRetired() {
+		return this.retired;
+	}
+
+	/**
+	 * Marks the rule as removed from its solver.
+	 */
+	void retire() {
+		this.retired = true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Compiled ").append(this.rule);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+/**
+ * An immutable, ordered set of {@link CompiledRule}s for a single solver.
+ * Rules are grouped by physical layer when the set is built, so matching a
+ * sample only considers rules for the sample's physical layer and rules that
+ * accept any physical layer. The sample's device ID is packed once per
+ * evaluation.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class CompiledRuleSet {
+
+	/**
+	 * A rule set without any rules.
+	 */
+	public static final CompiledRuleSet EMPTY = new CompiledRuleSet(
+			new ArrayList<SubscriptionRequestRule>());
+
+	/**
+	 * Number of distinct physical layer values.
+	 */
+	private static final int NUM_PHYSICAL_LAYERS = 256;
+
+	/**
+	 * Rules that accept any physical layer, in their original order.
+	 */
+	private final CompiledRule[] anyLayerRules;
+
+	/**
+	 * Rules that apply to each physical layer, in their original order,
+	 * including rules that accept any physical layer. An entry is {@code null}
+	 * if no rule names that physical layer.
+	 */
+	private final CompiledRule[][] rulesByLayer = new CompiledRule[NUM_PHYSICAL_LAYERS][];
+
+	/**
+	 * Total number of rules.
+	 */
+	private final int numRules;
+
+	/**
+	 * Compiles a set of rules.
+	 * 
+	 * @param rules
+	 *            the rules, in the order they should be evaluated.
+	 */
+	public CompiledRuleSet(final Collection<SubscriptionRequestRule> rules) {
+		this(compile(rules));
+	}
+
+	/**
+	 * Creates a set from rules that have already been compiled, so that
+	 * unchanged rules keep their identity when a solver's rules are updated.
+	 * 
+	 * @param rules
+	 *            the compiled rules, in the order they should be evaluated.
+	 */
+	public CompiledRuleSet(final CompiledRule[] rules) {
+		List<CompiledRule> compiled = Arrays.asList(rules);
+		this.numRules = compiled.size();
+
+		List<CompiledRule> anyLayer = new ArrayList<CompiledRule>();
+		for (CompiledRule rule : compiled) {
+			if (rule.getPhysicalLayer() == 0) {
+				anyLayer.add(rule);
+			}
+		}
+		this.anyLayerRules = anyLayer.toArray(new CompiledRule[anyLayer
+				.size()]);
+
+		for (CompiledRule rule : compiled) {
+			int layer = rule.getPhysicalLayer() & 0xFF;
+			if (layer == 0 || this.rulesByLayer[layer] != null) {
+				continue;
+			}
+			List<CompiledRule> layerRules = new ArrayList<CompiledRule>();
+			for (CompiledRule other : compiled) {
+				if (other.getPhysicalLayer() == 0
+						|| (other.getPhysicalLayer() & 0xFF) == layer) {
+					layerRules.add(other);
+				}
+			}
+			this.rulesByLayer[layer] = layerRules
+					.toArray(new CompiledRule[layerRules.size()]);
+		}
+	}
+
+	/**
+	 * Compiles each rule of a collection.
+	 */
+	private static CompiledRule[] compile(
+			final Collection<SubscriptionRequestRule> rules) {
+		List<CompiledRule> compiled = new ArrayList<CompiledRule>(rules.size());
+		for (SubscriptionRequestRule rule : rules) {
+			compiled.add(new CompiledRule(rule));
+		}
+		return compiled.toArray(new CompiledRule[compiled.size()]);
+	}
+
+	/**
+	 * Finds the first rule that a sample passes.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return the first matching rule, or {@code null} if the sample does not
+	 *         pass any rule.
+	 */
+	public CompiledRule match(final SampleMessage sampleMessage) {
+		CompiledRule[] candidates = this.rulesByLayer[sampleMessage
+				.getPhysicalLayer() & 0xFF];
+		if (candidates == null) {
+			candidates = this.anyLayerRules;
+		}
+		if (candidates.length == 0) {
+			return null;
+		}
+
+		byte[] deviceId = sampleMessage.getDeviceId();
+		int idLength = -1;
+		long idHigh = 0;
+		long idLow = 0;
+		if (deviceId != null && deviceId.length <= CompiledRule.MAX_ID_LENGTH) {
+			idLength = deviceId.length;
+			idHigh = CompiledRule.packHigh(deviceId);
+			idLow = CompiledRule.packLow(deviceId);
+		}
+
+		for (CompiledRule rule : candidates) {
+			if (rule.matches(idLength, idHigh, idLow)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of rules in this set.
+	 */
+	public int size() {
+		return this.numRules;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Handles datagram sessions on the aggregator's UDP sensor port. Each datagram
+ * may contain one or more samples in the {@link SampleEncoding} format.
+ * Decoded samples are passed to
+ * {@link Aggregator#sensorSampleReceived(IoSession, SampleMessage)}, the same
+ * path used by TCP sensors.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class DatagramSensorHandler extends IoHandlerAdapter {
+
+	/**
+	 * Session attribute holding the {@link DatagramSensorInterface}.
+	 */
+	private static final AttributeKey SENSOR_KEY = new AttributeKey(
+			DatagramSensorHandler.class, "sensor");
+
+	/**
+	 * The aggregator that receives decoded samples.
+	 */
+	private final Aggregator aggregator;
+
+	/**
+	 * Creates a new handler for the aggregator.
+	 * 
+	 * @param aggregator
+	 *            the aggregator that receives decoded samples.
+	 */
+	public DatagramSensorHandler(final Aggregator aggregator) {
+		this.aggregator = aggregator;
+	}
+
+	@Override
+	public void sessionCreated(final IoSession session) throws Exception {
+		DatagramSensorInterface sensor = new DatagramSensorInterface();
+		sensor.setSession(session);
+		session.setAttribute(SENSOR_KEY, sensor);
+		this.aggregator.datagramSensorConnected(sensor);
+	}
+
+	@Override
+	public void messageReceived(final IoSession session, final Object message)
+			throws Exception {
+		DatagramSensorInterface sensor = (DatagramSensorInterface) session
+				.getAttribute(SENSOR_KEY);
+		if (sensor == null || !(message instanceof IoBuffer)) {
+			return;
+		}
+		IoBuffer buffer = (IoBuffer) message;
+		sensor.datagramReceived(System.nanoTime());
+		while (buffer.hasRemaining()) {
+			SampleMessage sample = SampleEncoding.decode(buffer);
+			if (sample == null) {
+				sensor.malformedDatagram();
+				break;
+			}
+			sensor.sampleDecoded();
+			this.aggregator.sensorSampleReceived(session, sample);
+		}
+	}
+
+	@Override
+	public void sessionIdle(final IoSession session, final IdleStatus status)
+			throws Exception {
+		this.aggregator.sessionIdle(session, status);
+	}
+
+	@Override
+	public void sessionClosed(final IoSession session) throws Exception {
+		this.aggregator.sensorDisconnected(session);
+	}
+}
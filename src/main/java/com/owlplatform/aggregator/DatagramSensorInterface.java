@@ -0,0 +1,156 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sensor that sends samples to the aggregator in UDP datagrams. Each remote
+ * address is treated as a separate sensor.
+ * <p>
+ * Datagram sensors do not exchange handshakes and the sample encoding carries
+ * no sequence numbers, so lost datagrams can only be estimated. Most
+ * receivers report at a steady rate, so the interval between datagrams is
+ * tracked with a moving average and a gap of several average intervals is
+ * counted as that many missing datagrams. Gaps longer than
+ * {@link #MAX_LOSS_GAP} intervals are treated as the sensor going quiet rather
+ * than as loss.
+ * </p>
+ * <p>
+ * The accounting methods are called from the I/O processor thread of the
+ * datagram session, so the interval tracking is not synchronized. The
+ * counters are atomic because they are reported and reset from the
+ * statistics thread.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class DatagramSensorInterface extends SensorInterface {
+
+	/**
+	 * Longest gap, in average intervals, that is counted as loss.
+	 */
+	static final int MAX_LOSS_GAP = 16;
+
+	/**
+	 * Datagrams received since the last report.
+	 */
+	private final AtomicLong numDatagrams = new AtomicLong(0);
+
+	/**
+	 * Samples decoded since the last report.
+	 */
+	private final AtomicLong numSamples = new AtomicLong(0);
+
+	/**
+	 * Datagrams that were truncated or could not be decoded since the last
+	 * report.
+	 */
+	private final AtomicLong numMalformed = new AtomicLong(0);
+
+	/**
+	 * Estimated number of datagrams lost since the last report.
+	 */
+	private final AtomicLong estimatedLost = new AtomicLong(0);
+
+	/**
+	 * Arrival time of the previous datagram, in nanoseconds.
+	 */
+	private long lastArrival = 0;
+
+	/**
+	 * Moving average of the interval between datagrams, in nanoseconds.
+	 */
+	private long meanInterval = 0;
+
+	/**
+	 * Records the arrival of a datagram and updates the loss estimate.
+	 * 
+	 * @param arrivalNanos
+	 *            the arrival time of the datagram from
+	 *            {@link System#nanoTime()}.
+	 */
+	public void datagramReceived(final long arrivalNanos) {
+		this.numDatagrams.incrementAndGet();
+		if (this.lastArrival != 0) {
+			long gap = arrivalNanos - this.lastArrival;
+			if (this.meanInterval > 0 && gap > this.meanInterval * 3 / 2) {
+				long missed = (gap + this.meanInterval / 2) / this.meanInterval
+						- 1;
+				if (missed < MAX_LOSS_GAP) {
+					this.estimatedLost.addAndGet(missed);
+					gap = gap / (missed + 1);
+				} else {
+					gap = this.meanInterval;
+				}
+			}
+			if (this.meanInterval == 0) {
+				this.meanInterval = gap;
+			} else {
+				this.meanInterval += (gap - this.meanInterval) / 8;
+			}
+		}
+		this.lastArrival = arrivalNanos;
+	}
+
+	/**
+	 * Records a sample decoded from a datagram.
+	 */
+	public void sampleDecoded() {
+		this.numSamples.incrementAndGet();
+	}
+
+	/**
+	 * Records a datagram, or the remainder of one, that could not be decoded.
+	 */
+	public void malformedDatagram() {
+		this.numMalformed.incrementAndGet();
+	}
+
+	/**
+	 * Returns a summary of the accounting values since the last call and
+	 * resets them.
+	 * 
+	 * @return a human-readable summary of recent datagram statistics.
+	 */
+	public String getAndClearStatistics() {
+		long datagrams = this.numDatagrams.getAndSet(0);
+		long samples = this.numSamples.getAndSet(0);
+		long malformed = this.numMalformed.getAndSet(0);
+		long lost = this.estimatedLost.getAndSet(0);
+		return String.format(
+				"%,d datagrams, %,d samples, %,d malformed, ~%,d lost (%1.2f%%)",
+				Long.valueOf(datagrams), Long.valueOf(samples),
+				Long.valueOf(malformed), Long.valueOf(lost),
+				Float.valueOf(datagrams + lost == 0 ? 0f : (100f * lost)
+						/ (datagrams + lost)));
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+
+		sb.append("Datagram Sensor Interface @ ").append(
+				this.session.getRemoteAddress());
+
+		return sb.toString();
+	}
+}
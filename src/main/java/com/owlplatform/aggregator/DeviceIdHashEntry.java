@@ -19,6 +19,7 @@
 
 package com.owlplatform.aggregator;
 
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.owlplatform.common.util.HashableByteArray;
@@ -28,6 +29,11 @@ public class DeviceIdHashEntry {
 	private boolean passedRules = false;
 
 	private long updateInterval = 0l;
+
+	/**
+	 * The rule the device passed, used to detect that the rule was removed.
+	 */
+	private CompiledRule rule = null;
 	
 	private ConcurrentHashMap<HashableByteArray, Long> nextPermittedTransmit = new ConcurrentHashMap<HashableByteArray, Long>();
 
@@ -47,6 +53,36 @@ public class DeviceIdHashEntry {
 		this.updateInterval = updateInterval;
 	}
 
+	/**
+	 * Changes the update interval after the device passes a different rule.
+	 * Each receiver's next permitted transmit time is moved by the
+	 * difference, so it stays one new interval after the last sample sent.
+	 * 
+	 * @param updateInterval
+	 *            the update interval of the new rule.
+	 */
+	public void changeUpdateInterval(long updateInterval) {
+		long delta = updateInterval - this.updateInterval;
+		if (delta != 0) {
+			for (Map.Entry<HashableByteArray, Long> entry : this.nextPermittedTransmit
+					.entrySet()) {
+				long next = entry.getValue().longValue();
+				if (next != Long.MIN_VALUE) {
+					entry.setValue(Long.valueOf(next + delta));
+				}
+			}
+		}
+		this.updateInterval = updateInterval;
+	}
+
+	public CompiledRule getRule() {
+		return this.rule;
+	}
+
+	public void setRule(CompiledRule rule) {
+		this.rule = rule;
+	}
+
 	public long getNextPermittedTransmit(byte[] receiverId) {
 		HashableByteArray hash = new HashableByteArray(receiverId);
 		
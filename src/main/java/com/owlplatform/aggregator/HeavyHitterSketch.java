@@ -0,0 +1,264 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the most frequent keys in a stream, such as the devices or
+ * sensors sending the most samples, using fixed memory. Counts are kept in a
+ * Count-Min Sketch, which may overestimate but never underestimates a key's
+ * count. The {@code k} keys with the highest estimates are tracked alongside
+ * the sketch, together with a label used when reporting them.
+ * <p>
+ * Keys are 64-bit hashes. A label is only created when its key enters the
+ * top {@code k}, so the labels of most samples are never built.
+ * </p>
+ * <p>
+ * Counting starts over each time {@link #getAndClear()} is called, so the
+ * results describe a single reporting interval. All methods are synchronized.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class HeavyHitterSketch {
+
+	/**
+	 * Creates the label of a key when the key enters the top {@code k}.
+	 * 
+	 * @param <T>
+	 *            the type of object the key was computed from.
+	 */
+	public interface Labeler<T> {
+		/**
+		 * @param source
+		 *            the object the key was computed from.
+		 * @return a label for reports.
+		 */
+		String getLabel(T source);
+	}
+
+	/**
+	 * A key and its estimated count.
+	 */
+	public static final class HeavyHitter implements Comparable<HeavyHitter> {
+		private final String label;
+		private final long count;
+
+		HeavyHitter(final String label, final long count) {
+			this.label = label;
+			this.count = count;
+		}
+
+		/**
+		 * @return the label of the key.
+		 */
+		public String getLabel() {
+			return this.label;
+		}
+
+		/**
+		 * @return the estimated count of the key.
+		 */
+		public long getCount() {
+			return this.count;
+		}
+
+		@Override
+		public int compareTo(final HeavyHitter other) {
+			return this.count > other.count ? -1 : this.count < other.count ? 1
+					: 0;
+		}
+
+		@Override
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(this.label).append(": ")
+					.append(String.format("%,d", Long.valueOf(this.count)));
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Number of hash functions in the sketch.
+	 */
+	private final int depth;
+
+	/**
+	 * Counters of the sketch, {@code depth} rows of {@code width} entries.
+	 */
+	private final int[] counters;
+
+	private final int widthMask;
+
+	/**
+	 * Keys of the current top entries; only the first {@link #numTop} are
+	 * valid.
+	 */
+	private final long[] topKeys;
+
+	/**
+	 * Estimated counts of the current top entries.
+	 */
+	private final long[] topCounts;
+
+	/**
+	 * Labels of the current top entries.
+	 */
+	private final String[] topLabels;
+
+	/**
+	 * Number of valid top entries.
+	 */
+	private int numTop = 0;
+
+	/**
+	 * Top entries of the last completed interval, highest first.
+	 */
+	private HeavyHitter[] lastInterval = new HeavyHitter[0];
+
+	/**
+	 * Creates a new, empty sketch.
+	 * 
+	 * @param width
+	 *            the number of counters per hash function, rounded up to a
+	 *            power of two.
+	 * @param depth
+	 *            the number of hash functions.
+	 * @param k
+	 *            the number of top keys to track.
+	 */
+	public HeavyHitterSketch(final int width, final int depth, final int k) {
+		int columns = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+		this.depth = depth;
+		this.counters = new int[columns * depth];
+		this.widthMask = columns - 1;
+		this.topKeys = new long[k];
+		this.topCounts = new long[k];
+		this.topLabels = new String[k];
+	}
+
+	/**
+	 * Counts one occurrence of a key.
+	 * 
+	 * @param key
+	 *            the 64-bit hash of the key.
+	 * @param source
+	 *            the object the key was computed from.
+	 * @param labeler
+	 *            creates the label if the key enters the top entries.
+	 */
+	public synchronized <T> void add(final long key, final T source,
+			final Labeler<T> labeler) {
+		// Derive each row's index from two halves of the key
+		int h1 = (int) key;
+		int h2 = (int) (key >>> 32) | 1;
+		int width = this.widthMask + 1;
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < this.depth; ++row) {
+			int index = row * width + ((h1 + row * h2) & this.widthMask);
+			int count = this.counters[index];
+			if (count != Integer.MAX_VALUE) {
+				this.counters[index] = ++count;
+			}
+			if (count < estimate) {
+				estimate = count;
+			}
+		}
+
+		int smallest = -1;
+		for (int i = 0; i < this.numTop; ++i) {
+			if (this.topKeys[i] == key) {
+				this.topCounts[i] = estimate;
+				return;
+			}
+			if (smallest < 0 || this.topCounts[i] < this.topCounts[smallest]) {
+				smallest = i;
+			}
+		}
+		if (this.numTop < this.topKeys.length) {
+			smallest = this.numTop++;
+		} else if (smallest < 0 || estimate <= this.topCounts[smallest]) {
+			return;
+		}
+		this.topKeys[smallest] = key;
+		this.topCounts[smallest] = estimate;
+		this.topLabels[smallest] = labeler.getLabel(source);
+	}
+
+	/**
+	 * Ends the current interval, returning its top entries and starting a new
+	 * count.
+	 * 
+	 * @return the top entries of the interval, highest first.
+	 */
+	public synchronized HeavyHitter[] getAndClear() {
+		HeavyHitter[] top = new HeavyHitter[this.numTop];
+		for (int i = 0; i < this.numTop; ++i) {
+			top[i] = new HeavyHitter(this.topLabels[i], this.topCounts[i]);
+			this.topLabels[i] = null;
+		}
+		Arrays.sort(top);
+		this.numTop = 0;
+		Arrays.fill(this.counters, 0);
+		this.lastInterval = top;
+		return top;
+	}
+
+	/**
+	 * @return the top entries of the last completed interval, highest first.
+	 */
+	public synchronized HeavyHitter[] getLastInterval() {
+		return this.lastInterval.clone();
+	}
+
+	/**
+	 * Hashes an identifier of any length to a 64-bit key.
+	 * 
+	 * @param id
+	 *            the identifier.
+	 * @return the key of the identifier.
+	 */
+	public static long hashId(final byte[] id) {
+		long hash = 0xCBF29CE484222325L;
+		for (byte b : id) {
+			hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+		}
+		// Spread the low-order bits into the high half
+		hash ^= hash >>> 29;
+		hash *= 0xBF58476D1CE4E5B9L;
+		return hash ^ (hash >>> 32);
+	}
+
+	/**
+	 * Hashes a number, such as a session ID, to a 64-bit key.
+	 * 
+	 * @param value
+	 *            the number.
+	 * @return the key of the number.
+	 */
+	public static long hashLong(final long value) {
+		long hash = value * 0x9E3779B97F4A7C15L;
+		hash ^= hash >>> 31;
+		hash *= 0xBF58476D1CE4E5B9L;
+		return hash ^ (hash >>> 32);
+	}
+}
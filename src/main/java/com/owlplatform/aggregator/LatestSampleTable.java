@@ -0,0 +1,292 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.Collection;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * A bounded table of the most recent sample for each combination of device,
+ * receiver, and physical layer. New solvers can be sent a snapshot of the
+ * table so that they do not have to wait a full update cycle for each device.
+ * <p>
+ * Keys are packed into primitive arrays and the table stores references to
+ * samples that already exist, so an update does not allocate. The table is
+ * split into {@link #NUM_STRIPES} independently-locked stripes, each with
+ * open addressing over a short probe window. When no free slot is found, the
+ * oldest entry in the window is evicted. Entries older than the maximum age
+ * are never included in a snapshot, and are the first to be evicted.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class LatestSampleTable {
+
+	/**
+	 * Number of independently-locked stripes.
+	 */
+	static final int NUM_STRIPES = 16;
+
+	/**
+	 * Number of slots examined for each update.
+	 */
+	static final int MAX_PROBES = 8;
+
+	/**
+	 * The stripes of the table.
+	 */
+	private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+	/**
+	 * Maximum age of a usable entry, in milliseconds.
+	 */
+	private final long maxAge;
+
+	/**
+	 * Creates a new table.
+	 * 
+	 * @param capacity
+	 *            the total number of entries, rounded up so that each stripe
+	 *            holds a power of two.
+	 * @param maxAge
+	 *            the maximum age of an entry, in milliseconds.
+	 */
+	public LatestSampleTable(final int capacity, final long maxAge) {
+		int perStripe = Math.max(MAX_PROBES, capacity / NUM_STRIPES);
+		int slots = Integer.highestOneBit(perStripe - 1) << 1;
+		for (int i = 0; i < NUM_STRIPES; ++i) {
+			this.stripes[i] = new Stripe(slots);
+		}
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Records a sample as the latest for its device, receiver, and physical
+	 * layer.
+	 * 
+	 * @param sample
+	 *            the sample.
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @return {@code false} if the sample's identifiers are too long to be
+	 *         stored.
+	 */
+	public boolean update(final SampleMessage sample, final long now) {
+		byte[] deviceId = sample.getDeviceId();
+		byte[] receiverId = sample.getReceiverId();
+		if (deviceId == null || receiverId == null
+				|| deviceId.length > CompiledRule.MAX_ID_LENGTH
+				|| receiverId.length > CompiledRule.MAX_ID_LENGTH) {
+			return false;
+		}
+		long devHigh = CompiledRule.packHigh(deviceId);
+		long devLow = CompiledRule.packLow(deviceId);
+		long rxHigh = CompiledRule.packHigh(receiverId);
+		long rxLow = CompiledRule.packLow(receiverId);
+		int meta = ((sample.getPhysicalLayer() & 0xFF) << 16)
+				| (deviceId.length << 8) | receiverId.length;
+
+		int mixed = hashKey(devHigh, devLow, rxHigh, rxLow, meta);
+
+		Stripe stripe = this.stripes[mixed & (NUM_STRIPES - 1)];
+		synchronized (stripe) {
+			stripe.put(mixed >>> 4, devHigh, devLow, rxHigh, rxLow, meta,
+					sample, now);
+		}
+		return true;
+	}
+
+	/**
+	 * Hashes a packed (device, receiver, physical layer) key.
+	 * 
+	 * @return a well-mixed hash of the key.
+	 */
+	static int hashKey(final long devHigh, final long devLow,
+			final long rxHigh, final long rxLow, final int meta) {
+		long hash = (devHigh * 0x9E3779B97F4A7C15L) ^ devLow;
+		hash = (hash * 0xC2B2AE3D27D4EB4FL) ^ rxHigh;
+		hash = (hash * 0x9E3779B97F4A7C15L) ^ rxLow ^ meta;
+		hash *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * Adds every entry that is not older than the maximum age to a
+	 * collection. Each stripe is copied while holding its own lock, so the
+	 * snapshot is consistent per stripe but not across stripes.
+	 * 
+	 * @param samples
+	 *            the collection to add samples to.
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @return the number of samples added.
+	 */
+	public int snapshot(final Collection<SampleMessage> samples, final long now) {
+		return this.query(samples, now, null, null, null);
+	}
+
+	/**
+	 * Adds every entry that is not older than the maximum age and matches a
+	 * device and receiver to a collection. Identifiers are compared after
+	 * right-aligning them, as in {@link CompiledRule}.
+	 * 
+	 * @param samples
+	 *            the collection to add samples to.
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @param deviceId
+	 *            the device ID to match, or {@code null} for any device.
+	 * @param deviceMask
+	 *            the bits of {@code deviceId} that must match, or {@code null}
+	 *            to match the entire device ID.
+	 * @param receiverId
+	 *            the receiver ID to match, or {@code null} for any receiver.
+	 * @return the number of samples added.
+	 * @throws IllegalArgumentException
+	 *             if an identifier or mask is longer than
+	 *             {@link CompiledRule#MAX_ID_LENGTH}.
+	 */
+	public int query(final Collection<SampleMessage> samples, final long now,
+			final byte[] deviceId, final byte[] deviceMask,
+			final byte[] receiverId) {
+		checkLength(deviceId);
+		checkLength(deviceMask);
+		checkLength(receiverId);
+		long devHigh = 0;
+		long devLow = 0;
+		long devMaskHigh = 0;
+		long devMaskLow = 0;
+		if (deviceId != null) {
+			devHigh = CompiledRule.packHigh(deviceId);
+			devLow = CompiledRule.packLow(deviceId);
+			devMaskHigh = deviceMask == null ? -1L : CompiledRule
+					.packHigh(deviceMask);
+			devMaskLow = deviceMask == null ? -1L : CompiledRule
+					.packLow(deviceMask);
+		}
+		long rxHigh = 0;
+		long rxLow = 0;
+		long rxMask = receiverId == null ? 0 : -1L;
+		if (receiverId != null) {
+			rxHigh = CompiledRule.packHigh(receiverId);
+			rxLow = CompiledRule.packLow(receiverId);
+		}
+
+		long oldest = now - this.maxAge;
+		int added = 0;
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				for (int i = 0; i < stripe.samples.length; ++i) {
+					if (stripe.samples[i] == null
+							|| stripe.updated[i] < oldest
+							|| ((stripe.devLow[i] ^ devLow) & devMaskLow) != 0
+							|| ((stripe.devHigh[i] ^ devHigh) & devMaskHigh) != 0
+							|| ((stripe.rxLow[i] ^ rxLow) & rxMask) != 0
+							|| ((stripe.rxHigh[i] ^ rxHigh) & rxMask) != 0) {
+						continue;
+					}
+					samples.add(stripe.samples[i]);
+					++added;
+				}
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Checks that an identifier can be packed.
+	 */
+	private static void checkLength(final byte[] id) {
+		if (id != null && id.length > CompiledRule.MAX_ID_LENGTH) {
+			throw new IllegalArgumentException("Identifiers longer than "
+					+ CompiledRule.MAX_ID_LENGTH + " bytes are not supported.");
+		}
+	}
+
+	/**
+	 * One independently-locked part of the table.
+	 */
+	private static final class Stripe {
+		final long[] devHigh;
+		final long[] devLow;
+		final long[] rxHigh;
+		final long[] rxLow;
+
+		/**
+		 * Physical layer and identifier lengths of each key.
+		 */
+		final int[] meta;
+
+		/**
+		 * Time each entry was last updated, in milliseconds.
+		 */
+		final long[] updated;
+
+		/**
+		 * The latest sample for each key, or {@code null} for an empty slot.
+		 */
+		final SampleMessage[] samples;
+
+		final int slotMask;
+
+		Stripe(final int slots) {
+			this.devHigh = new long[slots];
+			this.devLow = new long[slots];
+			this.rxHigh = new long[slots];
+			this.rxLow = new long[slots];
+			this.meta = new int[slots];
+			this.updated = new long[slots];
+			this.samples = new SampleMessage[slots];
+			this.slotMask = slots - 1;
+		}
+
+		void put(final int hash, final long dh, final long dl, final long rh,
+				final long rl, final int m, final SampleMessage sample,
+				final long now) {
+			// Slots are never emptied, so a key cannot be past an empty slot
+			int victim = -1;
+			for (int i = 0; i < MAX_PROBES; ++i) {
+				int index = (hash + i) & this.slotMask;
+				if (this.samples[index] == null) {
+					victim = index;
+					break;
+				}
+				if (this.devLow[index] == dl && this.rxLow[index] == rl
+						&& this.devHigh[index] == dh
+						&& this.rxHigh[index] == rh && this.meta[index] == m) {
+					victim = index;
+					break;
+				}
+				if (victim < 0 || this.updated[index] < this.updated[victim]) {
+					victim = index;
+				}
+			}
+			this.devHigh[victim] = dh;
+			this.devLow[victim] = dl;
+			this.rxHigh[victim] = rh;
+			this.rxLow[victim] = rl;
+			this.meta[victim] = m;
+			this.updated[victim] = now;
+			this.samples[victim] = sample;
+		}
+	}
+}
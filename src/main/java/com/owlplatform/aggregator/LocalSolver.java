@@ -0,0 +1,45 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * A solver running in the same JVM as the aggregator. Local solvers are
+ * registered with {@link Aggregator#addLocalSolver(LocalSolver, com.owlplatform.solver.rules.SubscriptionRequestRule[], int)}
+ * and receive samples without encoding or a network connection. They are
+ * subject to the same filtering and rate limiting as networked solvers.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public interface LocalSolver {
+
+	/**
+	 * Called for each sample that passes this solver's subscription rules.
+	 * Depending on how the solver was registered, this is invoked either
+	 * directly on an aggregator dispatch thread or on a dedicated delivery
+	 * thread. Samples are shared with other solvers and must not be modified.
+	 * 
+	 * @param sample
+	 *            the sample.
+	 */
+	public void sampleReceived(SampleMessage sample);
+}
@@ -0,0 +1,184 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Adapts a {@link LocalSolver} to the aggregator's solver handling. Samples
+ * are filtered exactly as for networked solvers and then either passed
+ * directly to the solver on the dispatching thread, or placed in a bounded
+ * queue that is drained by a dedicated delivery thread. When the queue is
+ * full, samples are dropped and counted like samples for a backed-up network
+ * session.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class LocalSolverInterface extends CachingFilteringSolverInterface {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(LocalSolverInterface.class);
+
+	/**
+	 * The solver receiving samples.
+	 */
+	private final LocalSolver solver;
+
+	/**
+	 * Handoff queue, or {@code null} if samples are delivered directly.
+	 */
+	private final BlockingQueue<SampleMessage> handoffQueue;
+
+	/**
+	 * Thread draining the handoff queue, if any.
+	 */
+	private final Thread deliveryThread;
+
+	/**
+	 * Creates a new interface for a local solver.
+	 * 
+	 * @param solver
+	 *            the solver receiving samples.
+	 * @param queueCapacity
+	 *            the capacity of the handoff queue, or 0 to invoke the solver
+	 *            directly on dispatch threads.
+	 */
+	public LocalSolverInterface(final LocalSolver solver,
+			final int queueCapacity) {
+		this.solver = solver;
+		this.sentSubscriptionResponse = true;
+		if (queueCapacity > 0) {
+			this.handoffQueue = new ArrayBlockingQueue<SampleMessage>(
+					queueCapacity);
+			this.deliveryThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					LocalSolverInterface.this.deliverQueuedSamples();
+				}
+			}, "Local solver " + solver);
+			this.deliveryThread.setDaemon(true);
+			this.deliveryThread.start();
+		} else {
+			this.handoffQueue = null;
+			this.deliveryThread = null;
+		}
+	}
+
+	/**
+	 * @return the solver receiving samples.
+	 */
+	public LocalSolver getSolver() {
+		return this.solver;
+	}
+
+	@Override
+	protected int getScheduledSamples() {
+		// The handoff queue enforces its own bound
+		return 0;
+	}
+
+	@Override
+	protected boolean write(final SampleMessage sampleMessage) {
+		if (this.handoffQueue != null) {
+			if (!this.reserve(sampleMessage)) {
+				return false;
+			}
+			this.trace(sampleMessage, SampleTracer.WRITTEN);
+			if (!this.handoffQueue.offer(sampleMessage)) {
+				this.releaseReservation(sampleMessage);
+				this.numDropped.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		this.trace(sampleMessage, SampleTracer.WRITTEN);
+		this.deliver(sampleMessage);
+		this.sampleSent(sampleMessage);
+		return true;
+	}
+
+	/**
+	 * Passes a sample to the solver, logging any exception it throws.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to deliver.
+	 */
+	private void deliver(final SampleMessage sampleMessage) {
+		try {
+			this.solver.sampleReceived(sampleMessage);
+		} catch (RuntimeException re) {
+			log.error("Exception thrown by " + this + ".", re);
+		}
+	}
+
+	/**
+	 * Delivers queued samples until the thread is interrupted.
+	 */
+	void deliverQueuedSamples() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				SampleMessage sampleMessage = this.handoffQueue.take();
+				if (this.isStale(sampleMessage)) {
+					this.numStale.incrementAndGet();
+					this.releaseReservation(sampleMessage);
+				} else {
+					this.deliver(sampleMessage);
+					this.sampleSent(sampleMessage);
+				}
+			}
+		} catch (InterruptedException ie) {
+			// Shutting down
+		}
+		log.debug("{} delivery thread exiting.", this);
+	}
+
+	/**
+	 * Stops the delivery thread and discards any queued samples.
+	 */
+	public void close() {
+		this.sentSubscriptionResponse = false;
+		if (this.deliveryThread != null) {
+			this.deliveryThread.interrupt();
+			this.handoffQueue.clear();
+		}
+	}
+
+	@Override
+	public boolean equals(final SolverInterface other) {
+		return this == other;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Local Solver ").append(this.solver);
+		return sb.toString();
+	}
+}
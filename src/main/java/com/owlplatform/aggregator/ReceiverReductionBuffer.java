@@ -0,0 +1,230 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Collapses the copies of a transmission heard by several receivers. Copies
+ * are identified by device, physical layer, and sensed data, and are collected
+ * for a short window starting with the first copy. When the window closes,
+ * only the copies with the strongest RSSI are kept; by default, just the
+ * single strongest.
+ * <p>
+ * Windows are kept in fixed-size arrays indexed by the slots of a
+ * {@link WindowTable}, so memory is bounded. When no slot is free for a new
+ * transmission, the oldest window in the probe range is closed early. Copies
+ * are keyed by a hash and the length of the sensed data; a copy whose sensed
+ * data collides with a different transmission's is passed through without
+ * reduction. Windows are closed either by a
+ * later copy arriving after the window or by {@link #flush(long, Collection)}.
+ * </p>
+ * <p>
+ * This class is not thread-safe. It is only used while holding the owning
+ * solver's monitor.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class ReceiverReductionBuffer {
+
+	/**
+	 * Keys and start times of the open windows.
+	 */
+	private final WindowTable table;
+
+	/**
+	 * Number of receivers kept for each transmission.
+	 */
+	private final int receivers;
+
+	/**
+	 * Number of copies kept in each slot, or 0 for an empty slot.
+	 */
+	private final int[] kept;
+
+	/**
+	 * Copies kept for each slot, strongest first, {@link #receivers} entries
+	 * per slot.
+	 */
+	private final SampleMessage[] copies;
+
+	/**
+	 * Number of samples added since the statistics were last cleared.
+	 */
+	private long numAdded = 0;
+
+	/**
+	 * Number of samples emitted since the statistics were last cleared.
+	 */
+	private long numEmitted = 0;
+
+	/**
+	 * Creates a new reduction buffer.
+	 * 
+	 * @param window
+	 *            the length of each window, in milliseconds.
+	 * @param receivers
+	 *            the number of strongest copies kept for each transmission.
+	 * @param capacity
+	 *            the maximum number of open windows, rounded up to a power of
+	 *            two.
+	 */
+	public ReceiverReductionBuffer(final long window, final int receivers,
+			final int capacity) {
+		this.table = new WindowTable(window, capacity);
+		int slots = this.table.getSlots();
+		this.receivers = Math.max(1, receivers);
+		this.kept = new int[slots];
+		this.copies = new SampleMessage[slots * this.receivers];
+	}
+
+	/**
+	 * Adds a copy of a transmission.
+	 * 
+	 * @param sample
+	 *            the copy to add.
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @param out
+	 *            the collection to add samples that are ready to send to.
+	 * @return the number of samples added to {@code out}.
+	 */
+	public int add(final SampleMessage sample, final long now,
+			final Collection<SampleMessage> out) {
+		++this.numAdded;
+		byte[] deviceId = sample.getDeviceId();
+		if (deviceId == null || deviceId.length > CompiledRule.MAX_ID_LENGTH) {
+			out.add(sample);
+			++this.numEmitted;
+			return 1;
+		}
+		long dh = CompiledRule.packHigh(deviceId);
+		long dl = CompiledRule.packLow(deviceId);
+		int m = ((sample.getPhysicalLayer() & 0xFF) << 8) | deviceId.length;
+		byte[] data = sample.getSensedData();
+		long dataKey = ((long) (data == null ? -1 : data.length) << 32)
+				| (Arrays.hashCode(data) & 0xFFFFFFFFL);
+		int index = this.table.lookup(dh, dl, dataKey, 0, m);
+		int emitted = 0;
+		if (index >= 0) {
+			if (!this.table.isExpired(index, now)) {
+				if (!Arrays.equals(data, this.copies[index * this.receivers]
+						.getSensedData())) {
+					// A different transmission with the same key
+					out.add(sample);
+					++this.numEmitted;
+					return 1;
+				}
+				this.keep(index, sample);
+				return 0;
+			}
+			emitted = this.close(index, out);
+		} else {
+			index = ~index;
+			if (this.table.isOpen(index)) {
+				emitted = this.close(index, out);
+			}
+		}
+		this.table.open(index, dh, dl, dataKey, 0, m, now);
+		this.copies[index * this.receivers] = sample;
+		this.kept[index] = 1;
+		return emitted;
+	}
+
+	/**
+	 * Closes every window that has reached its full length.
+	 * 
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @param out
+	 *            the collection to add the kept copies to.
+	 * @return the number of samples added to {@code out}.
+	 */
+	public int flush(final long now, final Collection<SampleMessage> out) {
+		int emitted = 0;
+		for (int i = 0; i < this.kept.length; ++i) {
+			if (this.table.isOpen(i) && this.table.isExpired(i, now)) {
+				emitted += this.close(i, out);
+			}
+		}
+		return emitted;
+	}
+
+	/**
+	 * Returns a description of how many samples were removed since the last
+	 * call, then resets the counts.
+	 * 
+	 * @return the reduction statistics.
+	 */
+	public String getAndClearStatistics() {
+		long added = this.numAdded;
+		long emitted = this.numEmitted;
+		this.numAdded = 0;
+		this.numEmitted = 0;
+		return String.format("%,d samples reduced to %,d (%1.1f%%)",
+				Long.valueOf(added), Long.valueOf(emitted),
+				Float.valueOf(added == 0 ? 0f : 100f * emitted / added));
+	}
+
+	/**
+	 * Keeps a copy in an open window if it is among the strongest.
+	 */
+	private void keep(final int index, final SampleMessage sample) {
+		int base = index * this.receivers;
+		int count = this.kept[index];
+		float rssi = sample.getRssi();
+		int position = count;
+		if (count == this.receivers) {
+			if (rssi <= this.copies[base + count - 1].getRssi()) {
+				return;
+			}
+			--position;
+		} else {
+			++this.kept[index];
+		}
+		// Insertion sort, strongest first
+		while (position > 0 && this.copies[base + position - 1].getRssi() < rssi) {
+			this.copies[base + position] = this.copies[base + position - 1];
+			--position;
+		}
+		this.copies[base + position] = sample;
+	}
+
+	/**
+	 * Adds the kept copies of a window to {@code out} and empties its slot.
+	 */
+	private int close(final int index, final Collection<SampleMessage> out) {
+		int base = index * this.receivers;
+		int count = this.kept[index];
+		for (int i = 0; i < count; ++i) {
+			out.add(this.copies[base + i]);
+			this.copies[base + i] = null;
+		}
+		this.kept[index] = 0;
+		this.table.close(index);
+		this.numEmitted += count;
+		return count;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+/**
+ * A compact, fixed-size set of device IDs that did not pass any of a solver's
+ * rules. Device IDs are packed into two {@code long} words and stored in
+ * open-addressed primitive arrays, so a lookup does not allocate and touches
+ * at most {@link #MAX_PROBES} slots.
+ * <p>
+ * Unlike a Bloom or cuckoo filter, the full ID is stored, so a device that
+ * passes the rules is never reported as rejected. When no free slot is found
+ * within the probe window, an existing entry is overwritten; losing an entry
+ * only means that device is evaluated against the rules again.
+ * </p>
+ * <p>
+ * Every entry is tagged with the epoch in which it was added. Advancing the
+ * epoch with {@link #clear()} invalidates all entries in constant time, which
+ * is done whenever the solver's rules change.
+ * </p>
+ * <p>
+ * This class is not thread-safe. It is only used while holding the owning
+ * {@link RuleEvaluationGroup}'s monitor.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class RejectedDeviceSet {
+
+	/**
+	 * Number of slots examined before giving up on a lookup or evicting an
+	 * entry.
+	 */
+	static final int MAX_PROBES = 8;
+
+	/**
+	 * High-order words of the device IDs.
+	 */
+	private final long[] idHigh;
+
+	/**
+	 * Low-order words of the device IDs.
+	 */
+	private final long[] idLow;
+
+	/**
+	 * Lengths of the device IDs.
+	 */
+	private final byte[] idLength;
+
+	/**
+	 * Epoch in which each slot was written. Slots with any other epoch are
+	 * empty.
+	 */
+	private final int[] epochs;
+
+	/**
+	 * Mask applied to hash values to find a slot.
+	 */
+	private final int slotMask;
+
+	/**
+	 * The current epoch. Starts at 1 so that unwritten slots are empty.
+	 */
+	private int epoch = 1;
+
+	/**
+	 * Creates a new set.
+	 * 
+	 * @param capacity
+	 *            the number of slots, rounded up to a power of two.
+	 */
+	public RejectedDeviceSet(final int capacity) {
+		int slots = Integer.highestOneBit(Math.max(MAX_PROBES, capacity - 1)) << 1;
+		this.idHigh = new long[slots];
+		this.idLow = new long[slots];
+		this.idLength = new byte[slots];
+		this.epochs = new int[slots];
+		this.slotMask = slots - 1;
+	}
+
+	/**
+	 * Computes the first slot for a packed device ID.
+	 */
+	private int slot(final long high, final long low) {
+		long hash = (high * 0x9E3779B97F4A7C15L) ^ low;
+		hash *= 0xC2B2AE3D27D4EB4FL;
+		return (int) (hash ^ (hash >>> 32)) & this.slotMask;
+	}
+
+	/**
+	 * Checks whether a device has been recorded as rejected in the current
+	 * epoch.
+	 * 
+	 * @param deviceId
+	 *            the device ID to check.
+	 * @return {@code true} if the device was rejected since the last call to
+	 *         {@link #clear()}.
+	 */
+	public boolean contains(final byte[] deviceId) {
+		if (deviceId == null || deviceId.length > CompiledRule.MAX_ID_LENGTH) {
+			return false;
+		}
+		long high = CompiledRule.packHigh(deviceId);
+		long low = CompiledRule.packLow(deviceId);
+		int slot = this.slot(high, low);
+		for (int i = 0; i < MAX_PROBES; ++i) {
+			int index = (slot + i) & this.slotMask;
+			if (this.epochs[index] != this.epoch) {
+				return false;
+			}
+			if (this.idLow[index] == low && this.idHigh[index] == high
+					&& this.idLength[index] == deviceId.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records a device as rejected.
+	 * 
+	 * @param deviceId
+	 *            the rejected device ID.
+	 */
+	public void add(final byte[] deviceId) {
+		if (deviceId == null || deviceId.length > CompiledRule.MAX_ID_LENGTH) {
+			return;
+		}
+		long high = CompiledRule.packHigh(deviceId);
+		long low = CompiledRule.packLow(deviceId);
+		int slot = this.slot(high, low);
+		int index = slot;
+		for (int i = 0; i < MAX_PROBES; ++i) {
+			int probe = (slot + i) & this.slotMask;
+			if (this.epochs[probe] != this.epoch) {
+				index = probe;
+				break;
+			}
+		}
+		this.idHigh[index] = high;
+		this.idLow[index] = low;
+		this.idLength[index] = (byte) deviceId.length;
+		this.epochs[index] = this.epoch;
+	}
+
+	/**
+	 * Removes every entry by advancing the epoch.
+	 */
+	public void clear() {
+		++this.epoch;
+		if (this.epoch == 0) {
+			// Wrapped around, so old entries could look current again
+			java.util.Arrays.fill(this.epochs, 0);
+			this.epoch = 1;
+		}
+	}
+}
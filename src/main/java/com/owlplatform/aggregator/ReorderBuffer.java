@@ -0,0 +1,225 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.Collection;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Holds samples for a fixed window and releases them in order of creation
+ * timestamp, so that a solver sees monotonic timestamps even though samples
+ * are dispatched by several threads and arrive from sensors with different
+ * delays. Samples are kept in a binary min-heap over a primitive array of
+ * timestamps, so adding and releasing a sample takes logarithmic time and
+ * does not allocate.
+ * <p>
+ * A sample created before the last released sample cannot be delivered in
+ * order. Such late samples are dropped and counted. When the buffer is full,
+ * the oldest sample is released early.
+ * </p>
+ * <p>
+ * This class is not thread-safe. It is only used while holding the owning
+ * solver's monitor.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class ReorderBuffer {
+
+	/**
+	 * How long samples are held, in milliseconds.
+	 */
+	private final long window;
+
+	/**
+	 * Creation timestamps of the held samples, in heap order.
+	 */
+	private final long[] timestamps;
+
+	/**
+	 * Held samples, in the same order as {@link #timestamps}.
+	 */
+	private final SampleMessage[] samples;
+
+	/**
+	 * Number of samples held.
+	 */
+	private int size = 0;
+
+	/**
+	 * Creation timestamp of the last released sample.
+	 */
+	private long lastReleased = Long.MIN_VALUE;
+
+	/**
+	 * Number of late samples dropped since the statistics were last cleared.
+	 */
+	private long numLate = 0;
+
+	/**
+	 * Number of samples released early because the buffer was full, since the
+	 * statistics were last cleared.
+	 */
+	private long numForced = 0;
+
+	/**
+	 * Creates a new, empty buffer.
+	 * 
+	 * @param window
+	 *            how long samples are held, in milliseconds.
+	 * @param capacity
+	 *            the maximum number of samples held.
+	 */
+	public ReorderBuffer(final long window, final int capacity) {
+		this.window = window;
+		this.timestamps = new long[Math.max(1, capacity)];
+		this.samples = new SampleMessage[this.timestamps.length];
+	}
+
+	/**
+	 * Adds a sample and releases every sample whose window has passed.
+	 * 
+	 * @param sample
+	 *            the sample to add.
+	 * @param timestamp
+	 *            the sample's creation timestamp, in milliseconds.
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @param out
+	 *            the collection to add released samples to, in order.
+	 * @return {@code false} if the sample was late and dropped.
+	 */
+	public boolean add(final SampleMessage sample, final long timestamp,
+			final long now, final Collection<SampleMessage> out) {
+		if (timestamp < this.lastReleased) {
+			++this.numLate;
+			this.flush(now, out);
+			return false;
+		}
+		if (this.size == this.timestamps.length) {
+			++this.numForced;
+			if (timestamp <= this.timestamps[0]) {
+				// The new sample is the oldest, so release it directly
+				this.lastReleased = timestamp;
+				out.add(sample);
+				this.flush(now, out);
+				return true;
+			}
+			out.add(this.removeFirst());
+		}
+		this.insert(timestamp, sample);
+		this.flush(now, out);
+		return true;
+	}
+
+	/**
+	 * Releases every sample whose window has passed.
+	 * 
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @param out
+	 *            the collection to add released samples to, in order.
+	 * @return the number of samples released.
+	 */
+	public int flush(final long now, final Collection<SampleMessage> out) {
+		int released = 0;
+		long cutoff = now - this.window;
+		while (this.size > 0 && this.timestamps[0] <= cutoff) {
+			out.add(this.removeFirst());
+			++released;
+		}
+		return released;
+	}
+
+	/**
+	 * @return the number of samples held.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the number of late and early-released samples since the last
+	 * call, then resets the counts.
+	 * 
+	 * @return the reorder statistics.
+	 */
+	public String getAndClearStatistics() {
+		String stats = String.format(
+				"%,d held, %,d late samples dropped, %,d released early",
+				Integer.valueOf(this.size), Long.valueOf(this.numLate),
+				Long.valueOf(this.numForced));
+		this.numLate = 0;
+		this.numForced = 0;
+		return stats;
+	}
+
+	/**
+	 * Adds a sample to the heap.
+	 */
+	private void insert(final long timestamp, final SampleMessage sample) {
+		int index = this.size++;
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (this.timestamps[parent] <= timestamp) {
+				break;
+			}
+			this.timestamps[index] = this.timestamps[parent];
+			this.samples[index] = this.samples[parent];
+			index = parent;
+		}
+		this.timestamps[index] = timestamp;
+		this.samples[index] = sample;
+	}
+
+	/**
+	 * Removes the oldest sample from the heap.
+	 */
+	private SampleMessage removeFirst() {
+		SampleMessage first = this.samples[0];
+		this.lastReleased = this.timestamps[0];
+		int last = --this.size;
+		long timestamp = this.timestamps[last];
+		SampleMessage sample = this.samples[last];
+		this.samples[last] = null;
+		int index = 0;
+		int half = last >>> 1;
+		while (index < half) {
+			int child = (index << 1) + 1;
+			if (child + 1 < last
+					&& this.timestamps[child + 1] < this.timestamps[child]) {
+				++child;
+			}
+			if (timestamp <= this.timestamps[child]) {
+				break;
+			}
+			this.timestamps[index] = this.timestamps[child];
+			this.samples[index] = this.samples[child];
+			index = child;
+		}
+		if (last > 0) {
+			this.timestamps[index] = timestamp;
+			this.samples[index] = sample;
+		}
+		return first;
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Aggregates the RSSI of samples into fixed windows for each device, receiver,
+ * and physical layer. Instead of every raw sample, the solver is sent one
+ * summary sample per key and window. The summary's RSSI is the mean over the
+ * window, and its sensed data holds the minimum and maximum RSSI (4-byte
+ * floats) and the number of samples (4-byte integer), big-endian.
+ * <p>
+ * Accumulators are kept in fixed-size primitive arrays indexed by the slots
+ * of a {@link WindowTable}, so memory is bounded and adding a sample does not
+ * allocate. When no slot is free for a new key, the oldest window in the
+ * probe range is closed early.
+ * Windows start with the first sample for a key and are closed either by a
+ * later sample or by {@link #flush(long, Collection)}.
+ * </p>
+ * <p>
+ * This class is not thread-safe. It is only used while holding the owning
+ * solver's monitor.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class RssiWindowAggregator {
+
+	/**
+	 * Length of the sensed data in a summary sample.
+	 */
+	public static final int SUMMARY_LENGTH = 12;
+
+	/**
+	 * Keys and start times of the open windows.
+	 */
+	private final WindowTable table;
+
+	/**
+	 * Receiver timestamp of the most recent sample in each window.
+	 */
+	private final long[] lastTimestamp;
+
+	private final double[] sum;
+	private final float[] min;
+	private final float[] max;
+	private final int[] count;
+
+	/**
+	 * First sample of each open window, used for its identifiers.
+	 */
+	private final SampleMessage[] first;
+
+	/**
+	 * Creates a new aggregator.
+	 * 
+	 * @param window
+	 *            the length of each window, in milliseconds.
+	 * @param capacity
+	 *            the maximum number of open windows, rounded up to a power of
+	 *            two.
+	 */
+	public RssiWindowAggregator(final long window, final int capacity) {
+		this.table = new WindowTable(window, capacity);
+		int slots = this.table.getSlots();
+		this.lastTimestamp = new long[slots];
+		this.sum = new double[slots];
+		this.min = new float[slots];
+		this.max = new float[slots];
+		this.count = new int[slots];
+		this.first = new SampleMessage[slots];
+	}
+
+	/**
+	 * Adds a sample to the window for its key.
+	 * 
+	 * @param sample
+	 *            the sample to add.
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @return a sample to send now, or {@code null} if nothing is ready. This
+	 *         is the summary of a window that was closed by this sample, or the
+	 *         sample itself if its identifiers are too long to aggregate.
+	 */
+	public SampleMessage add(final SampleMessage sample, final long now) {
+		byte[] deviceId = sample.getDeviceId();
+		byte[] receiverId = sample.getReceiverId();
+		if (deviceId == null || receiverId == null
+				|| deviceId.length > CompiledRule.MAX_ID_LENGTH
+				|| receiverId.length > CompiledRule.MAX_ID_LENGTH) {
+			return sample;
+		}
+		long dh = CompiledRule.packHigh(deviceId);
+		long dl = CompiledRule.packLow(deviceId);
+		long rh = CompiledRule.packHigh(receiverId);
+		long rl = CompiledRule.packLow(receiverId);
+		int m = ((sample.getPhysicalLayer() & 0xFF) << 16)
+				| (deviceId.length << 8) | receiverId.length;
+		int index = this.table.lookup(dh, dl, rh, rl, m);
+		SampleMessage summary = null;
+		if (index >= 0) {
+			if (!this.table.isExpired(index, now)) {
+				this.accumulate(index, sample);
+				return null;
+			}
+			summary = this.close(index);
+		} else {
+			index = ~index;
+			if (this.table.isOpen(index)) {
+				summary = this.close(index);
+			}
+		}
+		this.table.open(index, dh, dl, rh, rl, m, now);
+		this.open(index, sample);
+		return summary;
+	}
+
+	/**
+	 * Closes every window that has reached its full length.
+	 * 
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @param summaries
+	 *            the collection to add summary samples to.
+	 * @return the number of windows closed.
+	 */
+	public int flush(final long now, final Collection<SampleMessage> summaries) {
+		int closed = 0;
+		for (int i = 0; i < this.first.length; ++i) {
+			if (this.table.isOpen(i) && this.table.isExpired(i, now)) {
+				summaries.add(this.close(i));
+				++closed;
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * Starts a new window in a slot.
+	 */
+	private void open(final int index, final SampleMessage sample) {
+		this.first[index] = sample;
+		float rssi = sample.getRssi();
+		this.sum[index] = rssi;
+		this.min[index] = rssi;
+		this.max[index] = rssi;
+		this.count[index] = 1;
+		this.lastTimestamp[index] = sample.getReceiverTimestamp();
+	}
+
+	/**
+	 * Adds a sample to an open window.
+	 */
+	private void accumulate(final int index, final SampleMessage sample) {
+		float rssi = sample.getRssi();
+		this.sum[index] += rssi;
+		if (rssi < this.min[index]) {
+			this.min[index] = rssi;
+		}
+		if (rssi > this.max[index]) {
+			this.max[index] = rssi;
+		}
+		++this.count[index];
+		this.lastTimestamp[index] = sample.getReceiverTimestamp();
+	}
+
+	/**
+	 * Creates the summary of a window and empties its slot.
+	 */
+	private SampleMessage close(final int index) {
+		SampleMessage firstSample = this.first[index];
+		SampleMessage summary = new SampleMessage();
+		summary.setPhysicalLayer(firstSample.getPhysicalLayer());
+		summary.setDeviceId(firstSample.getDeviceId());
+		summary.setReceiverId(firstSample.getReceiverId());
+		summary.setReceiverTimestamp(this.lastTimestamp[index]);
+		summary.setRssi((float) (this.sum[index] / this.count[index]));
+		summary.setSensedData(ByteBuffer.allocate(SUMMARY_LENGTH)
+				.putFloat(this.min[index]).putFloat(this.max[index])
+				.putInt(this.count[index]).array());
+		this.first[index] = null;
+		this.table.close(index);
+		return summary;
+	}
+}
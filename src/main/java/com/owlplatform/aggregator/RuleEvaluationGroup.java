@@ -0,0 +1,427 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.common.util.HashableByteArray;
+import com.owlplatform.common.util.LRUCache;
+import com.owlplatform.solver.protocol.messages.Transmitter;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+/**
+ * The subscription rules of one or more solvers, together with the cached
+ * results and update-interval state needed to evaluate them. Solvers with
+ * identical rules can share a group through a {@link SolverGroupRegistry}, so
+ * each sample is evaluated once for all of them.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RuleEvaluationGroup {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(RuleEvaluationGroup.class);
+
+	private static final int MAX_DEVICES = 200;
+
+	/**
+	 * Number of slots in the rejected device set.
+	 */
+	static final int MAX_REJECTED_DEVICES = 4096;
+
+	private final ConcurrentLinkedQueue<SubscriptionRequestRule> effectiveRules = new ConcurrentLinkedQueue<SubscriptionRequestRule>();
+
+	/**
+	 * The effective rules, compiled for matching. Replaced whenever the
+	 * effective rules change.
+	 */
+	private volatile CompiledRuleSet compiledRules = CompiledRuleSet.EMPTY;
+
+	/**
+	 * The compiled form of each effective rule, in the same order. Rules keep
+	 * their compiled identity across updates so that cached results for
+	 * unchanged rules remain valid.
+	 */
+	private final List<CompiledRule> activeRules = new ArrayList<CompiledRule>();
+
+	private final Map<HashableByteArray, DeviceIdHashEntry> ruleCache = Collections
+			.synchronizedMap(new LRUCache<HashableByteArray, DeviceIdHashEntry>(
+					MAX_DEVICES));
+
+	/**
+	 * Devices that passed none of the effective rules. Kept out of the
+	 * {@link #ruleCache} so that they do not evict devices that passed.
+	 */
+	private final RejectedDeviceSet rejectedDevices = new RejectedDeviceSet(
+			MAX_REJECTED_DEVICES);
+
+	private volatile boolean hasEffectiveRules = false;
+
+	/**
+	 * Receiver and RSSI restrictions applied before the rules.
+	 */
+	private volatile SampleFilter filter = SampleFilter.ANY;
+
+	/**
+	 * Solvers sharing this group through a {@link SolverGroupRegistry}.
+	 */
+	private final CopyOnWriteArrayList<CachingFilteringSolverInterface> members = new CopyOnWriteArrayList<CachingFilteringSolverInterface>();
+
+	/**
+	 * Checks whether a sample passes the rules and its update interval,
+	 * updating the cached state for its device and receiver.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return {@code true} if the sample should be sent to the group's
+	 *         solvers.
+	 */
+	public synchronized boolean accepts(SampleMessage sampleMessage) {
+		// Checked first so that filtered samples do not use up update intervals
+		if (!this.filter.matches(sampleMessage)) {
+			return false;
+		}
+
+		if (!this.hasEffectiveRules) {
+			return true;
+		}
+
+		if (this.rejectedDevices.contains(sampleMessage.getDeviceId())) {
+			return false;
+		}
+
+		HashableByteArray deviceHasher = new HashableByteArray(
+				sampleMessage.getDeviceId());
+
+		DeviceIdHashEntry cacheResult = this.ruleCache.get(deviceHasher);
+
+		// The rule this device passed was removed, so check it again
+		if (cacheResult != null && cacheResult.getRule() != null
+				&& cacheResult.getRule().isRetired()) {
+			CompiledRule passedRule = this.compiledRules.match(sampleMessage);
+			if (passedRule == null) {
+				this.ruleCache.remove(deviceHasher);
+				this.rejectedDevices.add(sampleMessage.getDeviceId());
+				return false;
+			}
+			cacheResult.setRule(passedRule);
+			cacheResult.changeUpdateInterval(passedRule.getUpdateInterval());
+		}
+
+		if (cacheResult == null) {
+			CompiledRule passedRule = this.compiledRules.match(sampleMessage);
+
+			if (passedRule != null) {
+				log.debug("{} passed all rules.", sampleMessage);
+				DeviceIdHashEntry hashEntry = new DeviceIdHashEntry();
+				hashEntry.setPassedRules(true);
+				hashEntry.setRule(passedRule);
+				hashEntry.setUpdateInterval(passedRule.getUpdateInterval());
+				hashEntry.setNextPermittedTransmit(
+						sampleMessage.getReceiverId(),
+						System.currentTimeMillis()
+								+ passedRule.getUpdateInterval());
+				this.ruleCache.put(deviceHasher, hashEntry);
+				return true;
+			}
+			this.rejectedDevices.add(sampleMessage.getDeviceId());
+			return false;
+		}
+		if (cacheResult.isPassedRules()) {
+			long now = System.currentTimeMillis();
+			long nextTransmit = cacheResult
+					.getNextPermittedTransmit(sampleMessage.getReceiverId());
+			if (nextTransmit <= now) {
+				cacheResult.setNextPermittedTransmit(
+						sampleMessage.getReceiverId(),
+						now + cacheResult.getUpdateInterval());
+				return true;
+			}
+			return false;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks whether a sample passes the filter and rules, without considering
+	 * update intervals or changing any cached state.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return {@code true} if the sample passes the filter and rules.
+	 */
+	public boolean matches(SampleMessage sampleMessage) {
+		if (!this.filter.matches(sampleMessage)) {
+			return false;
+		}
+		return !this.hasEffectiveRules
+				|| this.compiledRules.match(sampleMessage) != null;
+	}
+
+	/**
+	 * @return the receiver and RSSI restrictions applied before the rules.
+	 */
+	public SampleFilter getFilter() {
+		return this.filter;
+	}
+
+	/**
+	 * Replaces the receiver and RSSI restrictions. Cached rule results are not
+	 * affected, since the filter is checked separately.
+	 * 
+	 * @param filter
+	 *            the new restrictions.
+	 */
+	public synchronized void setFilter(SampleFilter filter) {
+		this.filter = filter;
+	}
+
+	public Collection<SubscriptionRequestRule> getEffectiveRules() {
+		return this.effectiveRules;
+	}
+
+	/**
+	 * Adds a rule after the existing rules. Devices that were rejected by the
+	 * previous rules are checked again; cached results for devices that passed
+	 * are kept, since rules are evaluated in order and the new rule is last.
+	 * 
+	 * @param newRule
+	 *            the rule to add.
+	 */
+	public synchronized void addRule(SubscriptionRequestRule newRule) {
+		this.effectiveRules.add(newRule);
+		this.activeRules.add(new CompiledRule(newRule));
+		this.updateCompiledRules();
+		// Previously-rejected devices may pass the new rule
+		this.rejectedDevices.clear();
+	}
+
+	/**
+	 * Removes a single rule. Devices that passed the rule are checked against
+	 * the remaining rules the next time they are seen; other cached results
+	 * are not affected.
+	 * 
+	 * @param oldRule
+	 *            the rule to remove.
+	 * @return {@code true} if the rule was one of the effective rules.
+	 */
+	public synchronized boolean removeRule(SubscriptionRequestRule oldRule) {
+		for (Iterator<CompiledRule> iter = this.activeRules.iterator(); iter
+				.hasNext();) {
+			CompiledRule compiled = iter.next();
+			if (compiled.getRule().equals(oldRule)) {
+				iter.remove();
+				this.effectiveRules.remove(oldRule);
+				compiled.retire();
+				this.updateCompiledRules();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Atomically replaces the rules, keeping the order of {@code newRules}.
+	 * Rules that are no longer present are retired. A rule present in both
+	 * the old and new sets keeps its cached results if no added rule comes
+	 * before it and the kept rules before it are in their old order;
+	 * otherwise a different rule may now match first, so it is retired and
+	 * compiled again.
+	 * 
+	 * @param newRules
+	 *            the complete set of rules, in evaluation order.
+	 * @return the number of rules added and removed, in that order.
+	 */
+	public synchronized int[] replaceRules(
+			Collection<SubscriptionRequestRule> newRules) {
+		List<CompiledRule> removed = new ArrayList<CompiledRule>(
+				this.activeRules);
+		List<CompiledRule> replaced = new ArrayList<CompiledRule>(
+				newRules.size());
+		int numAdded = 0;
+		boolean inOrder = true;
+		int lastKept = -1;
+		for (SubscriptionRequestRule rule : newRules) {
+			CompiledRule kept = null;
+			for (Iterator<CompiledRule> iter = removed.iterator(); iter
+					.hasNext();) {
+				CompiledRule compiled = iter.next();
+				if (compiled.getRule().equals(rule)) {
+					iter.remove();
+					kept = compiled;
+					break;
+				}
+			}
+			if (kept == null) {
+				++numAdded;
+				inOrder = false;
+				replaced.add(new CompiledRule(rule));
+				continue;
+			}
+			int oldIndex = this.activeRules.indexOf(kept);
+			if (inOrder && oldIndex > lastKept) {
+				lastKept = oldIndex;
+				replaced.add(kept);
+			} else {
+				inOrder = false;
+				kept.retire();
+				replaced.add(new CompiledRule(kept.getRule()));
+			}
+		}
+		for (CompiledRule compiled : removed) {
+			compiled.retire();
+		}
+		this.activeRules.clear();
+		this.activeRules.addAll(replaced);
+		this.effectiveRules.clear();
+		for (CompiledRule compiled : replaced) {
+			this.effectiveRules.add(compiled.getRule());
+		}
+		this.updateCompiledRules();
+		if (numAdded > 0) {
+			this.rejectedDevices.clear();
+		}
+		return new int[] { numAdded, removed.size() };
+	}
+
+	/**
+	 * Removes every rule.
+	 */
+	public synchronized void clearRules() {
+		for (CompiledRule compiled : this.activeRules) {
+			compiled.retire();
+		}
+		this.activeRules.clear();
+		this.effectiveRules.clear();
+		this.updateCompiledRules();
+		this.rejectedDevices.clear();
+	}
+
+	/**
+	 * Rebuilds {@link #compiledRules} from {@link #activeRules}. Must be called
+	 * while holding this group's monitor.
+	 */
+	private void updateCompiledRules() {
+		this.compiledRules = new CompiledRuleSet(
+				this.activeRules.toArray(new CompiledRule[this.activeRules
+						.size()]));
+
+		boolean effective = false;
+		for (SubscriptionRequestRule rule : this.effectiveRules) {
+			if (rule.getNumTransmitters() > 0 || rule.getPhysicalLayer() != 0
+					|| rule.getUpdateInterval() > 0) {
+				effective = true;
+				break;
+			}
+		}
+		this.hasEffectiveRules = effective;
+	}
+
+	/**
+	 * Creates a new group with the same rules and no cached state.
+	 * 
+	 * @return a copy of this group's rules.
+	 */
+	public synchronized RuleEvaluationGroup copy() {
+		RuleEvaluationGroup copy = new RuleEvaluationGroup();
+		copy.replaceRules(this.effectiveRules);
+		copy.setFilter(this.filter);
+		return copy;
+	}
+
+	/**
+	 * Returns a canonical description of the rules. Groups with equal keys
+	 * accept exactly the same samples. Rule order is kept, since it decides
+	 * which update interval applies, but the transmitters of each rule are
+	 * sorted and their base IDs masked. The filter's key is appended.
+	 * 
+	 * @return the canonical form of the rules and filter.
+	 */
+	public synchronized String getCanonicalKey() {
+		if (!this.hasEffectiveRules) {
+			return "*" + this.filter.getCanonicalKey();
+		}
+		StringBuffer sb = new StringBuffer();
+		for (SubscriptionRequestRule rule : this.effectiveRules) {
+			sb.append(rule.getPhysicalLayer() & 0xFF).append(':')
+					.append(rule.getUpdateInterval()).append('[');
+			List<String> transmitters = new ArrayList<String>();
+			if (rule.getTransmitters() != null) {
+				for (Transmitter txer : rule.getTransmitters()) {
+					transmitters.add(canonicalTransmitter(txer));
+				}
+			}
+			Collections.sort(transmitters);
+			for (String txer : transmitters) {
+				sb.append(txer).append(',');
+			}
+			sb.append(']');
+		}
+		sb.append(this.filter.getCanonicalKey());
+		return sb.toString();
+	}
+
+	/**
+	 * Formats a transmitter as its base ID and mask, in hexadecimal. The base
+	 * ID is not masked, since {@link CompiledRule} compares the masked device
+	 * ID to the whole base ID.
+	 */
+	private static String canonicalTransmitter(Transmitter txer) {
+		byte[] base = txer.getBaseId();
+		byte[] mask = txer.getMask();
+		StringBuffer sb = new StringBuffer();
+		if (base == null || mask == null || base.length != mask.length) {
+			// Malformed transmitters never match, but keep them distinct
+			sb.append('!').append(System.identityHashCode(txer));
+			return sb.toString();
+		}
+		for (int i = 0; i < base.length; ++i) {
+			sb.append(String.format("%02X", Integer.valueOf(base[i] & 0xFF)));
+		}
+		sb.append('/');
+		for (int i = 0; i < mask.length; ++i) {
+			sb.append(String.format("%02X", Integer.valueOf(mask[i] & 0xFF)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the solvers sharing this group.
+	 */
+	public List<CachingFilteringSolverInterface> getMembers() {
+		return this.members;
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.filter.util.WriteRequestFilter;
+
+/**
+ * Compresses the encoded solver stream of a single session. Each encoded
+ * message is written as a frame of the form
+ * {@code [compressed length][raw length][raw Deflate data]}, where both
+ * lengths are 4-byte big-endian integers.
+ * <p>
+ * Every frame is compressed with the most recent {@link #DICTIONARY_SIZE}
+ * uncompressed bytes of the stream as a preset dictionary. Consecutive
+ * samples share most of their device and receiver identifiers, so even a
+ * single sample compresses well without having to delay writes to build
+ * larger batches. The {@link Decompressor} keeps the same history on the
+ * receiving side.
+ * </p>
+ * <p>
+ * The filter must be added to a session's chain ahead of the protocol codec
+ * so that it sees encoded buffers.
+ * </p>
+ *
+ * @author Robert Moore
+ *
+ */
+public class SampleCompressionFilter extends WriteRequestFilter {
+
+	/**
+	 * Name of the filter in the session filter chain.
+	 */
+	public static final String FILTER_NAME = "solver compression";
+
+	/**
+	 * Maximum number of previously-sent bytes used as the preset dictionary.
+	 */
+	public static final int DICTIONARY_SIZE = 512;
+
+	/**
+	 * Length of the frame header.
+	 */
+	static final int FRAME_HEADER_LENGTH = 8;
+
+	/**
+	 * Compressor for this session.
+	 */
+	private final Deflater deflater;
+
+	/**
+	 * Recently-sent uncompressed bytes.
+	 */
+	private final StreamHistory history = new StreamHistory();
+
+	/**
+	 * Scratch space for compressed output.
+	 */
+	private byte[] output = new byte[256];
+
+	/**
+	 * Number of uncompressed bytes since the last report.
+	 */
+	private long rawBytes = 0;
+
+	/**
+	 * Number of compressed bytes (including frame headers) since the last
+	 * report.
+	 */
+	private long compressedBytes = 0;
+
+	/**
+	 * Time spent compressing since the last report, in nanoseconds.
+	 */
+	private long compressionNanos = 0;
+
+	/**
+	 * Number of frames since the last report.
+	 */
+	private long numFrames = 0;
+
+	/**
+	 * Set once the compressor has been released.
+	 */
+	private boolean disposed = false;
+
+	/**
+	 * Creates a new filter using the specified Deflate level.
+	 *
+	 * @param level
+	 *            the Deflate compression level.
+	 */
+	public SampleCompressionFilter(final int level) {
+		this.deflater = new Deflater(level, true);
+	}
+
+	/**
+	 * Compresses and forwards a write while holding this filter's lock. Each
+	 * frame depends on the history left by the previous one, so frames must
+	 * reach the next filter in the same order that they were compressed, even
+	 * when several threads write to the session at once.
+	 */
+	@Override
+	public synchronized void filterWrite(final NextFilter nextFilter,
+			final IoSession session, final WriteRequest writeRequest)
+			throws Exception {
+		super.filterWrite(nextFilter, session, writeRequest);
+	}
+
+	@Override
+	protected synchronized Object doFilterWrite(final NextFilter nextFilter,
+			final IoSession session, final WriteRequest writeRequest)
+			throws Exception {
+		Object message = writeRequest.getMessage();
+		if (this.disposed || !(message instanceof IoBuffer)) {
+			return null;
+		}
+		IoBuffer buffer = (IoBuffer) message;
+		int rawLength = buffer.remaining();
+		// Codec placeholder for the original message
+		if (rawLength == 0) {
+			return null;
+		}
+
+		long start = System.nanoTime();
+		byte[] raw = new byte[rawLength];
+		buffer.mark();
+		buffer.get(raw);
+		buffer.reset();
+
+		this.deflater.reset();
+		this.history.applyTo(this.deflater);
+		this.deflater.setInput(raw);
+		this.deflater.finish();
+		int compressedLength = 0;
+		while (!this.deflater.finished()) {
+			if (compressedLength == this.output.length) {
+				byte[] larger = new byte[this.output.length * 2];
+				System.arraycopy(this.output, 0, larger, 0, compressedLength);
+				this.output = larger;
+			}
+			compressedLength += this.deflater.deflate(this.output,
+					compressedLength, this.output.length - compressedLength);
+		}
+		this.history.append(raw, 0, rawLength);
+
+		IoBuffer frame = IoBuffer.allocate(FRAME_HEADER_LENGTH
+				+ compressedLength);
+		frame.putInt(compressedLength);
+		frame.putInt(rawLength);
+		frame.put(this.output, 0, compressedLength);
+		frame.flip();
+
+		this.compressionNanos += System.nanoTime() - start;
+		this.rawBytes += rawLength;
+		this.compressedBytes += FRAME_HEADER_LENGTH + compressedLength;
+		++this.numFrames;
+		return frame;
+	}
+
+	/**
+	 * Returns a summary of the compression ratio and cost since the last call
+	 * and resets the counters.
+	 *
+	 * @return a human-readable summary of recent compression statistics.
+	 */
+	public synchronized String getAndClearStatistics() {
+		String stats;
+		if (this.numFrames == 0) {
+			stats = "no frames";
+		} else {
+			stats = String.format(
+					"%,d frames, %,d -> %,d bytes (ratio %1.2f), %,1.0f ns/frame",
+					Long.valueOf(this.numFrames), Long.valueOf(this.rawBytes),
+					Long.valueOf(this.compressedBytes),
+					Float.valueOf((float) this.rawBytes / this.compressedBytes),
+					Float.valueOf((float) this.compressionNanos
+							/ this.numFrames));
+		}
+		this.numFrames = 0;
+		this.rawBytes = 0;
+		this.compressedBytes = 0;
+		this.compressionNanos = 0;
+		return stats;
+	}
+
+	/**
+	 * Releases the native resources held by the compressor.
+	 */
+	public synchronized void dispose() {
+		this.disposed = true;
+		this.deflater.end();
+	}
+
+	/**
+	 * Fixed-size history of the most recent uncompressed stream bytes.
+	 */
+	static final class StreamHistory {
+		/**
+		 * The history bytes, oldest first.
+		 */
+		private final byte[] bytes = new byte[DICTIONARY_SIZE];
+
+		/**
+		 * Number of valid bytes in {@link #bytes}.
+		 */
+		private int length = 0;
+
+		void append(final byte[] data, final int offset, final int count) {
+			if (count >= DICTIONARY_SIZE) {
+				System.arraycopy(data, offset + count - DICTIONARY_SIZE,
+						this.bytes, 0, DICTIONARY_SIZE);
+				this.length = DICTIONARY_SIZE;
+				return;
+			}
+			int keep = Math.min(this.length, DICTIONARY_SIZE - count);
+			System.arraycopy(this.bytes, this.length - keep, this.bytes, 0,
+					keep);
+			System.arraycopy(data, offset, this.bytes, keep, count);
+			this.length = keep + count;
+		}
+
+		void applyTo(final Deflater deflater) {
+			if (this.length > 0) {
+				deflater.setDictionary(this.bytes, 0, this.length);
+			}
+		}
+
+		void applyTo(final Inflater inflater) {
+			if (this.length > 0) {
+				inflater.setDictionary(this.bytes, 0, this.length);
+			}
+		}
+	}
+
+	/**
+	 * Reverses {@link SampleCompressionFilter} for a single stream. Frames must
+	 * be passed in the order they were received.
+	 */
+	public static class Decompressor {
+
+		/**
+		 * Decompressor for the stream.
+		 */
+		private final Inflater inflater = new Inflater(true);
+
+		/**
+		 * Recently-received uncompressed bytes.
+		 */
+		private final StreamHistory history = new StreamHistory();
+
+		/**
+		 * Decompresses the payload of a single frame.
+		 *
+		 * @param compressed
+		 *            the compressed bytes, without the frame header.
+		 * @param rawLength
+		 *            the uncompressed length from the frame header.
+		 * @return the uncompressed bytes of the frame.
+		 * @throws DataFormatException
+		 *             if the frame cannot be decompressed.
+		 */
+		public byte[] decompress(final byte[] compressed, final int rawLength)
+				throws DataFormatException {
+			// Raw inflaters need one extra byte of input to finish
+			byte[] input = new byte[compressed.length + 1];
+			System.arraycopy(compressed, 0, input, 0, compressed.length);
+
+			this.inflater.reset();
+			this.history.applyTo(this.inflater);
+			this.inflater.setInput(input);
+			byte[] raw = new byte[rawLength];
+			int read = 0;
+			while (read < rawLength && !this.inflater.finished()) {
+				int n = this.inflater.inflate(raw, read, rawLength - read);
+				if (n == 0 && this.inflater.needsInput()) {
+					break;
+				}
+				read += n;
+			}
+			if (read != rawLength) {
+				throw new DataFormatException("Expected " + rawLength
+						+ " bytes but decompressed " + read + ".");
+			}
+			this.history.append(raw, 0, rawLength);
+			return raw;
+		}
+
+		/**
+		 * Releases the native resources held by the decompressor.
+		 */
+		public void dispose() {
+			this.inflater.end();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Encodes and decodes samples using the layout of the sensor protocol's sample
+ * message: a 4-byte length prefix, followed by the physical layer (1 byte),
+ * device ID (16 bytes), receiver ID (16 bytes), receiver timestamp (8 bytes),
+ * RSSI (4-byte float) and any sensed data. The length prefix counts every
+ * byte after itself.
+ * <p>
+ * This is used where samples are read or written outside of a MINA protocol
+ * codec, for example when several samples are packed into one datagram.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class SampleEncoding {
+
+	/**
+	 * Length of a device or receiver identifier.
+	 */
+	public static final int ID_LENGTH = 16;
+
+	/**
+	 * Length of the message that follows the length prefix when there is no
+	 * sensed data.
+	 */
+	public static final int MIN_MESSAGE_LENGTH = 1 + ID_LENGTH + ID_LENGTH + 8 + 4;
+
+	/**
+	 * Utility class.
+	 */
+	private SampleEncoding() {
+		super();
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode a sample, including the
+	 * length prefix.
+	 * 
+	 * @param sample
+	 *            the sample to measure.
+	 * @return the encoded length of the sample.
+	 */
+	public static int getEncodedLength(final SampleMessage sample) {
+		byte[] data = sample.getSensedData();
+		return 4 + MIN_MESSAGE_LENGTH + (data == null ? 0 : data.length);
+	}
+
+	/**
+	 * Writes a sample to the buffer at its current position.
+	 * 
+	 * @param sample
+	 *            the sample to encode.
+	 * @param buffer
+	 *            the destination buffer, which must have
+	 *            {@link #getEncodedLength(SampleMessage)} bytes remaining.
+	 */
+	public static void encode(final SampleMessage sample, final IoBuffer buffer) {
+		byte[] data = sample.getSensedData();
+		buffer.putInt(MIN_MESSAGE_LENGTH + (data == null ? 0 : data.length));
+		buffer.put(sample.getPhysicalLayer());
+		putId(sample.getDeviceId(), buffer);
+		putId(sample.getReceiverId(), buffer);
+		buffer.putLong(sample.getReceiverTimestamp());
+		buffer.putFloat(sample.getRssi());
+		if (data != null) {
+			buffer.put(data);
+		}
+	}
+
+	/**
+	 * Writes an identifier as exactly {@link #ID_LENGTH} bytes, right-aligning
+	 * and zero-padding shorter values.
+	 */
+	private static void putId(final byte[] id, final IoBuffer buffer) {
+		if (id == null) {
+			buffer.put(new byte[ID_LENGTH]);
+			return;
+		}
+		if (id.length >= ID_LENGTH) {
+			buffer.put(id, id.length - ID_LENGTH, ID_LENGTH);
+			return;
+		}
+		for (int i = id.length; i < ID_LENGTH; ++i) {
+			buffer.put((byte) 0);
+		}
+		buffer.put(id);
+	}
+
+	/**
+	 * Reads one sample from the buffer at its current position.
+	 * 
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return the decoded sample, or {@code null} if the buffer does not
+	 *         contain a complete, well-formed sample. The buffer position is
+	 *         only advanced when a sample is returned.
+	 */
+	public static SampleMessage decode(final IoBuffer buffer) {
+		if (buffer.remaining() < 4 + MIN_MESSAGE_LENGTH) {
+			return null;
+		}
+		int start = buffer.position();
+		int length = buffer.getInt(start);
+		if (length < MIN_MESSAGE_LENGTH || length > buffer.remaining() - 4) {
+			return null;
+		}
+		buffer.skip(4);
+		SampleMessage sample = new SampleMessage();
+		sample.setPhysicalLayer(buffer.get());
+		byte[] deviceId = new byte[ID_LENGTH];
+		buffer.get(deviceId);
+		sample.setDeviceId(deviceId);
+		byte[] receiverId = new byte[ID_LENGTH];
+		buffer.get(receiverId);
+		sample.setReceiverId(receiverId);
+		sample.setReceiverTimestamp(buffer.getLong());
+		sample.setRssi(buffer.getFloat());
+		int dataLength = length - MIN_MESSAGE_LENGTH;
+		if (dataLength > 0) {
+			byte[] data = new byte[dataLength];
+			buffer.get(data);
+			sample.setSensedData(data);
+		}
+		return sample;
+	}
+}
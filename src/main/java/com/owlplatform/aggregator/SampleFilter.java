@@ -0,0 +1,324 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.protocol.messages.Transmitter;
+
+/**
+ * Receiver, RSSI, and sampling restrictions applied to a solver in addition to
+ * its subscription rules, which can only restrict physical layer and
+ * transmitter. Receiver base IDs and masks are packed into {@code long} words
+ * the same way as a {@link CompiledRule}'s transmitters, so checking a sample
+ * takes a few masked comparisons. Filters are immutable.
+ * <p>
+ * Sampling keeps a fixed fraction of devices, or of device/receiver pairs,
+ * chosen by a hash of their identifiers. The same devices are chosen for as
+ * long as the ratio is unchanged, including across restarts.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class SampleFilter {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(SampleFilter.class);
+
+	/**
+	 * A filter that accepts every sample.
+	 */
+	public static final SampleFilter ANY = new SampleFilter(null,
+			Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+
+	/**
+	 * {@code true} if this filter accepts every sample.
+	 */
+	private final boolean matchesAll;
+
+	/**
+	 * {@code true} if the filter did not restrict receivers.
+	 */
+	private final boolean matchesAllReceivers;
+
+	private final int[] idLengths;
+	private final long[] baseHigh;
+	private final long[] baseLow;
+	private final long[] maskHigh;
+	private final long[] maskLow;
+
+	/**
+	 * Lowest RSSI accepted.
+	 */
+	private final float minRssi;
+
+	/**
+	 * Highest RSSI accepted.
+	 */
+	private final float maxRssi;
+
+	/**
+	 * Samples are kept if the low 31 bits of their hash are below this
+	 * value, or always if it is {@link Integer#MAX_VALUE}.
+	 */
+	private final int samplingThreshold;
+
+	/**
+	 * {@code true} if the receiver ID is included in the sampling hash.
+	 */
+	private final boolean samplingByReceiver;
+
+	/**
+	 * Canonical description of this filter, used to group solvers.
+	 */
+	private final String canonicalKey;
+
+	/**
+	 * Creates a filter from a solver's options.
+	 * 
+	 * @param options
+	 *            the solver's options.
+	 * @return the filter, or {@link #ANY} if the options do not restrict
+	 *         receivers or RSSI.
+	 */
+	public static SampleFilter forOptions(final SolverOptions options) {
+		Transmitter[] receivers = options.getReceivers();
+		if ((receivers == null || receivers.length == 0)
+				&& options.getMinRssi() == Float.NEGATIVE_INFINITY
+				&& options.getMaxRssi() == Float.POSITIVE_INFINITY
+				&& options.getSamplingRatio() >= 1) {
+			return ANY;
+		}
+		return new SampleFilter(receivers, options.getMinRssi(),
+				options.getMaxRssi(), options.getSamplingRatio(),
+				options.isSamplingByReceiver());
+	}
+
+	/**
+	 * Compiles a filter.
+	 * 
+	 * @param receivers
+	 *            the receiver base IDs and masks to accept, or {@code null} to
+	 *            accept any receiver.
+	 * @param minRssi
+	 *            the lowest RSSI to accept.
+	 * @param maxRssi
+	 *            the highest RSSI to accept.
+	 */
+	public SampleFilter(final Transmitter[] receivers, final float minRssi,
+			final float maxRssi) {
+		this(receivers, minRssi, maxRssi, 1, false);
+	}
+
+	/**
+	 * Compiles a filter that also samples devices.
+	 * 
+	 * @param receivers
+	 *            the receiver base IDs and masks to accept, or {@code null} to
+	 *            accept any receiver.
+	 * @param minRssi
+	 *            the lowest RSSI to accept.
+	 * @param maxRssi
+	 *            the highest RSSI to accept.
+	 * @param samplingRatio
+	 *            the fraction of devices to accept, from 0 to 1.
+	 * @param samplingByReceiver
+	 *            {@code true} to sample device/receiver pairs instead of
+	 *            devices.
+	 */
+	public SampleFilter(final Transmitter[] receivers, final float minRssi,
+			final float maxRssi, final double samplingRatio,
+			final boolean samplingByReceiver) {
+		if (samplingRatio >= 1) {
+			this.samplingThreshold = Integer.MAX_VALUE;
+		} else if (samplingRatio <= 0) {
+			this.samplingThreshold = 0;
+		} else {
+			this.samplingThreshold = (int) (samplingRatio * Integer.MAX_VALUE);
+		}
+		this.samplingByReceiver = samplingByReceiver
+				&& this.samplingThreshold != Integer.MAX_VALUE;
+		this.minRssi = minRssi;
+		this.maxRssi = maxRssi;
+		this.matchesAllReceivers = receivers == null || receivers.length == 0;
+
+		List<Transmitter> valid = new ArrayList<Transmitter>();
+		if (receivers != null) {
+			for (Transmitter receiver : receivers) {
+				byte[] baseId = receiver.getBaseId();
+				byte[] mask = receiver.getMask();
+				if (baseId == null || mask == null
+						|| baseId.length != mask.length
+						|| baseId.length > CompiledRule.MAX_ID_LENGTH) {
+					log.warn("Receiver base ID or mask is invalid, ignoring it.");
+					continue;
+				}
+				valid.add(receiver);
+			}
+		}
+
+		int numValid = valid.size();
+		this.idLengths = new int[numValid];
+		this.baseHigh = new long[numValid];
+		this.baseLow = new long[numValid];
+		this.maskHigh = new long[numValid];
+		this.maskLow = new long[numValid];
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < numValid; ++i) {
+			byte[] baseId = valid.get(i).getBaseId();
+			byte[] mask = valid.get(i).getMask();
+			this.idLengths[i] = baseId.length;
+			this.maskHigh[i] = CompiledRule.packHigh(mask);
+			this.maskLow[i] = CompiledRule.packLow(mask);
+			this.baseHigh[i] = CompiledRule.packHigh(baseId) & this.maskHigh[i];
+			this.baseLow[i] = CompiledRule.packLow(baseId) & this.maskLow[i];
+			keys.add(String.format("%d:%016X%016X/%016X%016X", Integer
+					.valueOf(baseId.length), Long.valueOf(this.baseHigh[i]),
+					Long.valueOf(this.baseLow[i]), Long
+							.valueOf(this.maskHigh[i]), Long
+							.valueOf(this.maskLow[i])));
+		}
+		this.matchesAll = this.matchesAllReceivers
+				&& minRssi == Float.NEGATIVE_INFINITY
+				&& maxRssi == Float.POSITIVE_INFINITY
+				&& this.samplingThreshold == Integer.MAX_VALUE;
+
+		Collections.sort(keys);
+		StringBuffer sb = new StringBuffer();
+		if (!this.matchesAll) {
+			sb.append("rx[");
+			for (String key : keys) {
+				sb.append(key).append(',');
+			}
+			sb.append("]rssi[").append(minRssi).append(',').append(maxRssi)
+					.append(']');
+			if (this.samplingThreshold != Integer.MAX_VALUE) {
+				sb.append("sample[").append(this.samplingThreshold);
+				if (this.samplingByReceiver) {
+					sb.append(",rx");
+				}
+				sb.append(']');
+			}
+		}
+		this.canonicalKey = sb.toString();
+	}
+
+	/**
+	 * Checks a sample against this filter.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return {@code true} if the sample's receiver and RSSI are accepted.
+	 */
+	public boolean matches(final SampleMessage sampleMessage) {
+		if (this.matchesAll) {
+			return true;
+		}
+		float rssi = sampleMessage.getRssi();
+		if (rssi < this.minRssi || rssi > this.maxRssi) {
+			return false;
+		}
+		if (this.samplingThreshold != Integer.MAX_VALUE) {
+			int hash = this.samplingHash(sampleMessage) & Integer.MAX_VALUE;
+			if (hash >= this.samplingThreshold) {
+				return false;
+			}
+		}
+		if (this.matchesAllReceivers) {
+			return true;
+		}
+		byte[] receiverId = sampleMessage.getReceiverId();
+		if (receiverId == null
+				|| receiverId.length > CompiledRule.MAX_ID_LENGTH) {
+			return false;
+		}
+		long idHigh = CompiledRule.packHigh(receiverId);
+		long idLow = CompiledRule.packLow(receiverId);
+		for (int i = 0; i < this.idLengths.length; ++i) {
+			if ((idLow & this.maskLow[i]) == this.baseLow[i]
+					&& (idHigh & this.maskHigh[i]) == this.baseHigh[i]
+					&& receiverId.length == this.idLengths[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hashes the identifiers that decide whether a sample is sampled.
+	 */
+	private int samplingHash(final SampleMessage sampleMessage) {
+		byte[] deviceId = sampleMessage.getDeviceId();
+		byte[] receiverId = this.samplingByReceiver ? sampleMessage
+				.getReceiverId() : null;
+		if (deviceId == null
+				|| deviceId.length > CompiledRule.MAX_ID_LENGTH
+				|| (receiverId != null
+						&& receiverId.length > CompiledRule.MAX_ID_LENGTH)) {
+			// Identifiers that cannot be packed still hash consistently
+			return LatestSampleTable.hashKey(Arrays.hashCode(deviceId),
+					Arrays.hashCode(receiverId), 0, 0, 0);
+		}
+		long rxHigh = 0;
+		long rxLow = 0;
+		if (receiverId != null) {
+			rxHigh = CompiledRule.packHigh(receiverId);
+			rxLow = CompiledRule.packLow(receiverId);
+		}
+		return LatestSampleTable.hashKey(CompiledRule.packHigh(deviceId),
+				CompiledRule.packLow(deviceId), rxHigh, rxLow, deviceId.length);
+	}
+
+	/**
+	 * @return {@code true} if this filter accepts every sample.
+	 */
+	public boolean isMatchesAll() {
+		return this.matchesAll;
+	}
+
+	/**
+	 * Returns a canonical description of this filter. Filters with equal keys
+	 * accept exactly the same samples.
+	 * 
+	 * @return the canonical form of this filter, empty if it accepts every
+	 *         sample.
+	 */
+	public String getCanonicalKey() {
+		return this.canonicalKey;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("SampleFilter (").append(this.canonicalKey).append(')');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Answers text queries against the aggregator's {@link LatestSampleTable} on
+ * the query port. Each request is a single line made of keyword/value pairs:
+ * 
+ * <pre>
+ * DEVICE &lt;id&gt; [MASK &lt;mask&gt;] [RECEIVER &lt;id&gt;]
+ * RECEIVER &lt;id&gt;
+ * ALL
+ * </pre>
+ * 
+ * Identifiers and masks are hexadecimal. The response is one line per
+ * matching sample, {@code <phy> <device> <receiver> <receiver timestamp> <rssi>},
+ * followed by {@code END <count>}. Malformed requests are answered with
+ * {@code ERROR <reason>}. {@code QUIT} closes the session.
+ * <p>
+ * {@code STATS} instead reports the cumulative cost of each solver, one line
+ * per solver:
+ * {@code <evaluated> <forwarded> <bytes> <CPU nanoseconds> <solver>}. See
+ * {@link SolverCostAccount}.
+ * </p>
+ * <p>
+ * {@code TOP} reports the devices, receivers, and sensors that sent the most
+ * samples in the last statistics interval, one line per entry:
+ * {@code DEVICE|RECEIVER|SENSOR <estimated count> <label>}.
+ * </p>
+ * <p>
+ * {@code TRACE} dumps the completed latency traces; see
+ * {@link SampleTracer#dump()}.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SampleQueryHandler extends IoHandlerAdapter {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(SampleQueryHandler.class);
+
+	/**
+	 * Hexadecimal digits, used when formatting identifiers.
+	 */
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * The aggregator whose latest samples are queried.
+	 */
+	private final Aggregator aggregator;
+
+	/**
+	 * Creates a new handler for the aggregator.
+	 * 
+	 * @param aggregator
+	 *            the aggregator whose latest samples are queried.
+	 */
+	public SampleQueryHandler(final Aggregator aggregator) {
+		this.aggregator = aggregator;
+	}
+
+	@Override
+	public void messageReceived(final IoSession session, final Object message)
+			throws Exception {
+		String request = message.toString().trim();
+		if (request.length() == 0) {
+			return;
+		}
+		log.debug("Query from {}: {}", session.getRemoteAddress(), request);
+		if ("QUIT".equalsIgnoreCase(request)) {
+			session.close(false);
+			return;
+		}
+		try {
+			session.write(this.answer(request));
+		} catch (IllegalArgumentException iae) {
+			session.write("ERROR " + iae.getMessage());
+		}
+	}
+
+	@Override
+	public void exceptionCaught(final IoSession session, final Throwable cause)
+			throws Exception {
+		log.warn("Closing query session {}: {}", session, cause.toString());
+		session.close(true);
+	}
+
+	/**
+	 * Builds the response to a single query.
+	 * 
+	 * @param request
+	 *            the query line.
+	 * @return the response lines.
+	 * @throws IllegalArgumentException
+	 *             if the request is malformed or cannot be answered.
+	 */
+	String answer(final String request) {
+		if ("STATS".equalsIgnoreCase(request)) {
+			return this.answerStats();
+		}
+		if ("TOP".equalsIgnoreCase(request)) {
+			return this.answerTop();
+		}
+		if ("TRACE".equalsIgnoreCase(request)) {
+			SampleTracer tracer = this.aggregator.getTracer();
+			if (tracer == null) {
+				throw new IllegalArgumentException(
+						"Samples are not being traced.");
+			}
+			String traces = tracer.dump();
+			int count = 0;
+			for (int i = traces.indexOf('\n'); i >= 0; i = traces.indexOf(
+					'\n', i + 1)) {
+				++count;
+			}
+			return traces + "END " + count;
+		}
+		LatestSampleTable latest = this.aggregator.getLatestSamples();
+		if (latest == null) {
+			throw new IllegalArgumentException(
+					"Latest samples are not being recorded.");
+		}
+
+		byte[] deviceId = null;
+		byte[] deviceMask = null;
+		byte[] receiverId = null;
+		String[] tokens = request.split("\\s+");
+		if (!(tokens.length == 1 && "ALL".equalsIgnoreCase(tokens[0]))) {
+			if (tokens.length % 2 != 0) {
+				throw new IllegalArgumentException(
+						"Expected keyword/value pairs.");
+			}
+			for (int i = 0; i < tokens.length; i += 2) {
+				String keyword = tokens[i].toUpperCase();
+				byte[] value = parseHex(tokens[i + 1]);
+				if ("DEVICE".equals(keyword)) {
+					deviceId = value;
+				} else if ("MASK".equals(keyword)) {
+					deviceMask = value;
+				} else if ("RECEIVER".equals(keyword)) {
+					receiverId = value;
+				} else {
+					throw new IllegalArgumentException("Unknown keyword "
+							+ tokens[i] + ".");
+				}
+			}
+			if (deviceMask != null && deviceId == null) {
+				throw new IllegalArgumentException("MASK requires DEVICE.");
+			}
+		}
+
+		List<SampleMessage> samples = new ArrayList<SampleMessage>();
+		latest.query(samples, System.currentTimeMillis(), deviceId,
+				deviceMask, receiverId);
+
+		StringBuffer sb = new StringBuffer();
+		for (SampleMessage sample : samples) {
+			sb.append(sample.getPhysicalLayer() & 0xFF).append(' ');
+			appendHex(sb, sample.getDeviceId());
+			sb.append(' ');
+			appendHex(sb, sample.getReceiverId());
+			sb.append(' ').append(sample.getReceiverTimestamp()).append(' ')
+					.append(sample.getRssi()).append('\n');
+		}
+		sb.append("END ").append(samples.size());
+		return sb.toString();
+	}
+
+	/**
+	 * Builds the response to a {@code STATS} query.
+	 * 
+	 * @return one line per solver, followed by {@code END <count>}.
+	 */
+	private String answerStats() {
+		List<CachingFilteringSolverInterface> solvers = this.aggregator
+				.getSolvers();
+		StringBuffer sb = new StringBuffer();
+		for (CachingFilteringSolverInterface solver : solvers) {
+			SolverCostAccount cost = solver.getCostAccount();
+			sb.append(cost.getEvaluated()).append(' ')
+					.append(cost.getForwarded()).append(' ')
+					.append(cost.getBytes()).append(' ')
+					.append(cost.getCpuNanos()).append(' ').append(solver)
+					.append('\n');
+		}
+		sb.append("END ").append(solvers.size());
+		return sb.toString();
+	}
+
+	/**
+	 * Builds the response to a {@code TOP} query.
+	 * 
+	 * @return one line per heavy hitter, followed by {@code END <count>}.
+	 * @throws IllegalArgumentException
+	 *             if heavy hitters are not tracked.
+	 */
+	private String answerTop() {
+		HeavyHitterSketch.HeavyHitter[][] hitters = this.aggregator
+				.getHeavyHitters();
+		if (hitters == null) {
+			throw new IllegalArgumentException(
+					"Heavy hitters are not being tracked.");
+		}
+		String[] kinds = { "DEVICE", "RECEIVER", "SENSOR" };
+		StringBuffer sb = new StringBuffer();
+		int count = 0;
+		for (int i = 0; i < hitters.length; ++i) {
+			for (HeavyHitterSketch.HeavyHitter hitter : hitters[i]) {
+				sb.append(kinds[i]).append(' ').append(hitter.getCount())
+						.append(' ').append(hitter.getLabel()).append('\n');
+				++count;
+			}
+		}
+		sb.append("END ").append(count);
+		return sb.toString();
+	}
+
+	/**
+	 * Parses a hexadecimal identifier, with or without a leading "0x".
+	 * 
+	 * @param hex
+	 *            the identifier text.
+	 * @return the identifier bytes.
+	 * @throws IllegalArgumentException
+	 *             if the text is not hexadecimal.
+	 */
+	static byte[] parseHex(final String hex) {
+		String digits = hex;
+		if (digits.startsWith("0x") || digits.startsWith("0X")) {
+			digits = digits.substring(2);
+		}
+		if (digits.length() == 0) {
+			throw new IllegalArgumentException("Empty identifier.");
+		}
+		if (digits.length() % 2 != 0) {
+			digits = "0" + digits;
+		}
+		byte[] bytes = new byte[digits.length() / 2];
+		for (int i = 0; i < bytes.length; ++i) {
+			int high = Character.digit(digits.charAt(2 * i), 16);
+			int low = Character.digit(digits.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("Invalid identifier " + hex
+						+ ".");
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Appends an identifier as hexadecimal digits.
+	 */
+	static void appendHex(final StringBuffer sb, final byte[] bytes) {
+		for (byte b : bytes) {
+			sb.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Traces a fraction of samples through the aggregator, recording when each
+ * traced sample was decoded, queued for dispatch, dispatched, accepted for a
+ * solver, written to that solver, and sent by MINA. Completed traces are kept
+ * in a ring buffer and can be dumped to see whether latency comes from the
+ * dispatch queue, rule evaluation, or socket backpressure.
+ * <p>
+ * Samples are chosen by their identity hash, so checking whether a sample is
+ * traced takes no lock. Only traced samples are looked up in the table of
+ * active traces. That table is bounded; traces of samples that are never sent
+ * are eventually evicted. Samples created by the aggregator, such as
+ * aggregation summaries and samples read back from a spill queue, are not
+ * traced.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class SampleTracer {
+
+	/**
+	 * Sample stage: handed to the aggregator by the sensor codec.
+	 */
+	public static final int DECODED = 0;
+
+	/**
+	 * Sample stage: queued for the dispatch thread pool.
+	 */
+	public static final int ENQUEUED = 1;
+
+	/**
+	 * Sample stage: dispatch started.
+	 */
+	public static final int DISPATCHED = 2;
+
+	/**
+	 * Solver stage: accepted by the solver's rules.
+	 */
+	public static final int ACCEPTED = 0;
+
+	/**
+	 * Solver stage: written to the solver's session or queue.
+	 */
+	public static final int WRITTEN = 1;
+
+	/**
+	 * Solver stage: sent to the solver.
+	 */
+	public static final int SENT = 2;
+
+	/**
+	 * Maximum number of traces in progress.
+	 */
+	private static final int MAX_ACTIVE = 1024;
+
+	/**
+	 * A traced sample in progress.
+	 */
+	private static final class Trace {
+		final byte[] deviceId;
+		final long[] stages = new long[3];
+		final Map<SolverInterface, long[]> solvers = new IdentityHashMap<SolverInterface, long[]>();
+		boolean reachedSolver = false;
+		boolean dispatchEnded = false;
+
+		Trace(final byte[] deviceId) {
+			this.deviceId = deviceId;
+		}
+	}
+
+	/**
+	 * A completed trace for one solver, or for no solver if the sample was
+	 * not accepted by any.
+	 */
+	private static final class Record {
+		final byte[] deviceId;
+		final String solver;
+		final long[] stages;
+		final long[] solverStages;
+
+		Record(final Trace trace, final String solver,
+				final long[] solverStages) {
+			this.deviceId = trace.deviceId;
+			this.solver = solver;
+			this.stages = trace.stages.clone();
+			this.solverStages = solverStages;
+		}
+	}
+
+	/**
+	 * Samples are traced if the low 31 bits of their mixed identity hash are
+	 * below this value.
+	 */
+	private final int threshold;
+
+	/**
+	 * Traces in progress, oldest first.
+	 */
+	private final LinkedHashMap<SampleMessage, Trace> active = new LinkedHashMap<SampleMessage, Trace>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<SampleMessage, Trace> eldest) {
+			return this.size() > MAX_ACTIVE;
+		}
+	};
+
+	/**
+	 * Completed traces.
+	 */
+	private final Record[] ring;
+
+	/**
+	 * Index of the next record in {@link #ring}.
+	 */
+	private int next = 0;
+
+	/**
+	 * Number of traces completed since the count was last cleared.
+	 */
+	private int numCompleted = 0;
+
+	/**
+	 * Creates a new tracer.
+	 * 
+	 * @param ratio
+	 *            the fraction of samples to trace, from 0 to 1.
+	 * @param capacity
+	 *            the number of completed traces kept.
+	 */
+	public SampleTracer(final double ratio, final int capacity) {
+		this.threshold = ratio >= 1 ? Integer.MAX_VALUE
+				: (int) (Math.max(0, ratio) * Integer.MAX_VALUE);
+		this.ring = new Record[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Checks whether a sample is chosen for tracing. Takes no lock.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return {@code true} if the sample is traced.
+	 */
+	public boolean isTraced(final SampleMessage sampleMessage) {
+		int hash = System.identityHashCode(sampleMessage) * 0x9E3779B9;
+		return (hash & Integer.MAX_VALUE) < this.threshold;
+	}
+
+	/**
+	 * Records a stage of a sample, starting its trace at
+	 * {@link #DECODED}. Does nothing if the sample is not traced.
+	 * 
+	 * @param sampleMessage
+	 *            the sample.
+	 * @param stage
+	 *            {@link #DECODED}, {@link #ENQUEUED} or {@link #DISPATCHED}.
+	 */
+	public void mark(final SampleMessage sampleMessage, final int stage) {
+		if (!this.isTraced(sampleMessage)) {
+			return;
+		}
+		long now = System.nanoTime();
+		synchronized (this) {
+			Trace trace = this.active.get(sampleMessage);
+			if (trace == null) {
+				if (stage != DECODED) {
+					return;
+				}
+				trace = new Trace(sampleMessage.getDeviceId());
+				this.active.put(sampleMessage, trace);
+			}
+			trace.stages[stage] = now;
+		}
+	}
+
+	/**
+	 * Records a stage of a sample for one solver. The trace for that solver
+	 * is completed at {@link #SENT}. Does nothing if the sample is not traced.
+	 * 
+	 * @param sampleMessage
+	 *            the sample.
+	 * @param solver
+	 *            the solver.
+	 * @param stage
+	 *            {@link #ACCEPTED}, {@link #WRITTEN} or {@link #SENT}.
+	 */
+	public void markSolver(final SampleMessage sampleMessage,
+			final SolverInterface solver, final int stage) {
+		if (!this.isTraced(sampleMessage)) {
+			return;
+		}
+		long now = System.nanoTime();
+		synchronized (this) {
+			Trace trace = this.active.get(sampleMessage);
+			if (trace == null) {
+				return;
+			}
+			trace.reachedSolver = true;
+			long[] stages = trace.solvers.get(solver);
+			if (stages == null) {
+				stages = new long[3];
+				trace.solvers.put(solver, stages);
+			}
+			stages[stage] = now;
+			if (stage == SENT) {
+				trace.solvers.remove(solver);
+				this.add(new Record(trace, solver.toString(), stages));
+				if (trace.dispatchEnded && trace.solvers.isEmpty()) {
+					this.active.remove(sampleMessage);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ends the dispatch of a sample. A traced sample that was not accepted for
+	 * any solver is recorded without solver stages; otherwise its trace ends
+	 * once it has been sent to every solver that accepted it.
+	 * 
+	 * @param sampleMessage
+	 *            the sample.
+	 */
+	public void endDispatch(final SampleMessage sampleMessage) {
+		if (!this.isTraced(sampleMessage)) {
+			return;
+		}
+		synchronized (this) {
+			Trace trace = this.active.get(sampleMessage);
+			if (trace == null) {
+				return;
+			}
+			trace.dispatchEnded = true;
+			if (!trace.reachedSolver) {
+				this.active.remove(sampleMessage);
+				this.add(new Record(trace, null, null));
+			} else if (trace.solvers.isEmpty()) {
+				this.active.remove(sampleMessage);
+			}
+		}
+	}
+
+	/**
+	 * Adds a completed trace to the ring buffer. Must be called while holding
+	 * this tracer's monitor.
+	 */
+	private void add(final Record record) {
+		this.ring[this.next] = record;
+		this.next = (this.next + 1) % this.ring.length;
+		++this.numCompleted;
+	}
+
+	/**
+	 * Returns the number of traces completed since the last call, then resets
+	 * the count.
+	 * 
+	 * @return the number of completed traces.
+	 */
+	public synchronized int getAndClearCompleted() {
+		int completed = this.numCompleted;
+		this.numCompleted = 0;
+		return completed;
+	}
+
+	/**
+	 * Formats the completed traces, oldest first. Each line is
+	 * {@code <device> <handoff> <queue> <filter> <write> <send> <total> <solver>},
+	 * with each stage's latency in microseconds, or {@code -} if the stage was
+	 * not reached.
+	 * 
+	 * @return the completed traces, one per line.
+	 */
+	public synchronized String dump() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < this.ring.length; ++i) {
+			Record record = this.ring[(this.next + i) % this.ring.length];
+			if (record == null) {
+				continue;
+			}
+			SampleQueryHandler.appendHex(sb, record.deviceId);
+			long[] s = record.stages;
+			appendLatency(sb, s[DECODED], s[ENQUEUED]);
+			appendLatency(sb, s[ENQUEUED], s[DISPATCHED]);
+			long end = s[DISPATCHED];
+			if (record.solverStages == null) {
+				sb.append(" - - -");
+			} else {
+				long[] solver = record.solverStages;
+				appendLatency(sb, s[DISPATCHED], solver[ACCEPTED]);
+				appendLatency(sb, solver[ACCEPTED], solver[WRITTEN]);
+				appendLatency(sb, solver[WRITTEN], solver[SENT]);
+				end = solver[SENT];
+			}
+			appendLatency(sb, s[DECODED], end);
+			sb.append(' ').append(record.solver == null ? "-" : record.solver)
+					.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends the time between two stages, in microseconds.
+	 */
+	private static void appendLatency(final StringBuffer sb, final long from,
+			final long to) {
+		sb.append(' ');
+		if (from == 0 || to == 0) {
+			sb.append('-');
+		} else {
+			sb.append((to - from) / 1000);
+		}
+	}
+}
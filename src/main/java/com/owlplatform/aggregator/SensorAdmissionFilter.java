@@ -0,0 +1,149 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the rate at which new sensor connections are admitted. When many
+ * sensors reconnect at once, such as after a restart, connections beyond the
+ * permitted rate are closed immediately, before any handshake is exchanged,
+ * and the sensors retry later. Events for refused sessions are not passed
+ * to the rest of the filter chain, so the aggregator never sees them.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SensorAdmissionFilter extends IoFilterAdapter {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(SensorAdmissionFilter.class);
+
+	/**
+	 * Name of the filter in the sensor filter chain.
+	 */
+	public static final String FILTER_NAME = "sensor admission";
+
+	/**
+	 * Session attribute set on refused sessions.
+	 */
+	private static final AttributeKey REFUSED_KEY = new AttributeKey(
+			SensorAdmissionFilter.class, "refused");
+
+	/**
+	 * Connections admitted per second, shared by all I/O threads.
+	 */
+	private final TokenBucket acceptRate;
+
+	/**
+	 * Number of connections admitted since the last report.
+	 */
+	private final AtomicLong numAdmitted = new AtomicLong(0);
+
+	/**
+	 * Number of connections refused since the last report.
+	 */
+	private final AtomicLong numRefused = new AtomicLong(0);
+
+	/**
+	 * Creates a new filter.
+	 * 
+	 * @param ratePerSecond
+	 *            the number of connections admitted each second.
+	 * @param burst
+	 *            the number of connections that can be admitted at once.
+	 */
+	public SensorAdmissionFilter(final double ratePerSecond, final int burst) {
+		this.acceptRate = new TokenBucket(ratePerSecond, burst);
+	}
+
+	@Override
+	public void sessionCreated(final NextFilter nextFilter,
+			final IoSession session) throws Exception {
+		boolean admitted;
+		synchronized (this.acceptRate) {
+			admitted = this.acceptRate.tryAcquire(System.nanoTime());
+		}
+		if (admitted) {
+			this.numAdmitted.incrementAndGet();
+			nextFilter.sessionCreated(session);
+			return;
+		}
+		this.numRefused.incrementAndGet();
+		session.setAttribute(REFUSED_KEY, Boolean.TRUE);
+		log.debug("Refused sensor connection from {}.",
+				session.getRemoteAddress());
+		session.close(true);
+	}
+
+	@Override
+	public void sessionOpened(final NextFilter nextFilter,
+			final IoSession session) throws Exception {
+		if (!session.containsAttribute(REFUSED_KEY)) {
+			nextFilter.sessionOpened(session);
+		}
+	}
+
+	@Override
+	public void sessionClosed(final NextFilter nextFilter,
+			final IoSession session) throws Exception {
+		if (!session.containsAttribute(REFUSED_KEY)) {
+			nextFilter.sessionClosed(session);
+		}
+	}
+
+	@Override
+	public void sessionIdle(final NextFilter nextFilter,
+			final IoSession session, final IdleStatus status) throws Exception {
+		if (!session.containsAttribute(REFUSED_KEY)) {
+			nextFilter.sessionIdle(session, status);
+		}
+	}
+
+	@Override
+	public void messageReceived(final NextFilter nextFilter,
+			final IoSession session, final Object message) throws Exception {
+		if (!session.containsAttribute(REFUSED_KEY)) {
+			nextFilter.messageReceived(session, message);
+		}
+	}
+
+	/**
+	 * Returns the number of admitted and refused connections since the last
+	 * call and resets the counters.
+	 * 
+	 * @return a human-readable summary of recent admissions.
+	 */
+	public String getAndClearStatistics() {
+		return String.format("%,d admitted, %,d refused",
+				Long.valueOf(this.numAdmitted.getAndSet(0)),
+				Long.valueOf(this.numRefused.getAndSet(0)));
+	}
+}
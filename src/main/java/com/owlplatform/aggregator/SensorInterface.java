@@ -18,6 +18,8 @@
  */
 package com.owlplatform.aggregator;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.mina.core.session.IoSession;
 import com.owlplatform.sensor.protocol.messages.HandshakeMessage;
 
@@ -28,6 +30,17 @@ public class SensorInterface {
 	
 	protected IoSession session;
 
+	/**
+	 * Limits the rate of samples accepted from this sensor, or {@code null}
+	 * if the sensor is not limited.
+	 */
+	protected TokenBucket quota = null;
+
+	/**
+	 * Number of samples dropped by the quota since the last report.
+	 */
+	protected final AtomicLong numThrottled = new AtomicLong(0);
+
 	public IoSession getSession() {
 		return session;
 	}
@@ -52,6 +65,29 @@ public class SensorInterface {
 		this.receivedHandshake = receivedHandshake;
 	}
 
+	public void setOptions(SensorOptions options) {
+		this.quota = options == null ? null : options.createQuota();
+	}
+
+	/**
+	 * Checks a newly-received sample against this sensor's quota. This must
+	 * only be called from the I/O thread of the sensor's session.
+	 * 
+	 * @return {@code true} if the sample should be processed, {@code false}
+	 *         if it exceeds the quota and should be dropped.
+	 */
+	public boolean admitSample() {
+		if (this.quota == null || this.quota.tryAcquire(System.nanoTime())) {
+			return true;
+		}
+		this.numThrottled.incrementAndGet();
+		return false;
+	}
+
+	public long getAndClearThrottledSamples() {
+		return this.numThrottled.getAndSet(0);
+	}
+
 	@Override
 	public String toString()
 	{
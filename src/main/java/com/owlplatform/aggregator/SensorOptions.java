@@ -0,0 +1,99 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+/**
+ * Per-sensor settings. Options are assigned to sensor sessions by remote
+ * address through the {@link AggregatorConfiguration}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SensorOptions {
+
+	/**
+	 * Maximum sustained sample rate, in samples per second, or 0 for no limit.
+	 */
+	private double maxSampleRate = 0;
+
+	/**
+	 * Number of samples that may arrive back-to-back above the sustained rate.
+	 */
+	private int sampleBurst = 1000;
+
+	/**
+	 * @return the maximum sustained sample rate in samples per second, or 0
+	 *         if the sensor is not limited.
+	 */
+	public double getMaxSampleRate() {
+		return this.maxSampleRate;
+	}
+
+	/**
+	 * @param maxSampleRate
+	 *            the maximum sustained sample rate in samples per second, or
+	 *            0 to disable the limit.
+	 */
+	public void setMaxSampleRate(double maxSampleRate) {
+		this.maxSampleRate = maxSampleRate;
+	}
+
+	/**
+	 * @return the number of samples that may arrive back-to-back above the
+	 *         sustained rate.
+	 */
+	public int getSampleBurst() {
+		return this.sampleBurst;
+	}
+
+	/**
+	 * @param sampleBurst
+	 *            the number of samples that may arrive back-to-back above the
+	 *            sustained rate.
+	 */
+	public void setSampleBurst(int sampleBurst) {
+		this.sampleBurst = sampleBurst;
+	}
+
+	/**
+	 * Creates a quota for a sensor using these options.
+	 * 
+	 * @return a new token bucket, or {@code null} if the sensor is not
+	 *         limited.
+	 */
+	public TokenBucket createQuota() {
+		if (this.maxSampleRate <= 0) {
+			return null;
+		}
+		return new TokenBucket(this.maxSampleRate, this.sampleBurst);
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("SensorOptions (");
+		if (this.maxSampleRate > 0) {
+			sb.append(this.maxSampleRate).append(" S/s, burst ")
+					.append(this.sampleBurst);
+		}
+		sb.append(')');
+		return sb.toString();
+	}
+}
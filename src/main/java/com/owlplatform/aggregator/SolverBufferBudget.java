@@ -0,0 +1,214 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Aggregator-wide accounting of the bytes waiting to be sent to networked
+ * solvers. Each solver reserves the encoded size of a sample before queuing
+ * it and releases it once the sample has been sent or the solver
+ * disconnects. Local solvers do not use socket buffers and are not counted.
+ * <p>
+ * A reservation fails if it would exceed the total budget. Once more than
+ * {@link #CONTENTION_PERCENT} percent of the budget is in use, a solver may
+ * only queue up to its fair share, the budget divided by the number of
+ * solvers, so that a few slow solvers cannot starve the others. A budget of
+ * 0 disables enforcement but still counts bytes.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SolverBufferBudget {
+
+	/**
+	 * Percentage of the budget in use above which solvers are limited to their
+	 * fair share.
+	 */
+	static final int CONTENTION_PERCENT = 75;
+
+	/**
+	 * Length of the solver protocol message type, which is not included in
+	 * {@link SampleEncoding#getEncodedLength(SampleMessage)}.
+	 */
+	private static final int MESSAGE_TYPE_LENGTH = 1;
+
+	/**
+	 * Maximum number of queued bytes, or 0 for no limit.
+	 */
+	private final long budget;
+
+	/**
+	 * Number of queued bytes above which solvers are limited to their fair
+	 * share.
+	 */
+	private final long contentionThreshold;
+
+	/**
+	 * Total bytes currently queued for all solvers.
+	 */
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+
+	/**
+	 * Highest value of {@link #queuedBytes} since the last report.
+	 */
+	private final AtomicLong peakBytes = new AtomicLong(0);
+
+	/**
+	 * Number of samples rejected since the last report.
+	 */
+	private final AtomicLong numRejected = new AtomicLong(0);
+
+	/**
+	 * Number of solvers sharing the budget.
+	 */
+	private final AtomicInteger numSolvers = new AtomicInteger(0);
+
+	/**
+	 * Creates a new budget.
+	 * 
+	 * @param budget
+	 *            the maximum number of queued bytes, or 0 for no limit.
+	 */
+	public SolverBufferBudget(final long budget) {
+		this.budget = budget;
+		this.contentionThreshold = budget / 100 * CONTENTION_PERCENT;
+	}
+
+	/**
+	 * Returns the number of bytes a sample occupies in a solver's queue.
+	 * 
+	 * @param sampleMessage
+	 *            the sample.
+	 * @return the encoded length of the sample in the solver protocol.
+	 */
+	public static int getQueuedLength(final SampleMessage sampleMessage) {
+		return SampleEncoding.getEncodedLength(sampleMessage)
+				+ MESSAGE_TYPE_LENGTH;
+	}
+
+	/**
+	 * Adds a solver to the solvers sharing the budget.
+	 */
+	public void register() {
+		this.numSolvers.incrementAndGet();
+	}
+
+	/**
+	 * Removes a solver from the solvers sharing the budget and releases
+	 * everything it still has queued.
+	 * 
+	 * @param solverBytes
+	 *            the solver's queued byte count.
+	 */
+	public void unregister(final AtomicLong solverBytes) {
+		this.numSolvers.decrementAndGet();
+		this.release(solverBytes, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Attempts to reserve space for a sample.
+	 * 
+	 * @param solverBytes
+	 *            the solver's queued byte count.
+	 * @param length
+	 *            the number of bytes to reserve.
+	 * @return {@code true} if the space was reserved, or {@code false} if the
+	 *         sample should be dropped.
+	 */
+	public boolean reserve(final AtomicLong solverBytes, final int length) {
+		long total = this.queuedBytes.addAndGet(length);
+		if (this.budget > 0) {
+			boolean overBudget = total > this.budget;
+			if (!overBudget && total > this.contentionThreshold) {
+				long fairShare = this.budget
+						/ Math.max(1, this.numSolvers.get());
+				overBudget = solverBytes.get() + length > fairShare;
+			}
+			if (overBudget) {
+				this.queuedBytes.addAndGet(-length);
+				this.numRejected.incrementAndGet();
+				return false;
+			}
+		}
+		solverBytes.addAndGet(length);
+		long peak = this.peakBytes.get();
+		while (total > peak && !this.peakBytes.compareAndSet(peak, total)) {
+			peak = this.peakBytes.get();
+		}
+		return true;
+	}
+
+	/**
+	 * Releases previously-reserved space. Never releases more than the solver
+	 * has reserved, so releases that arrive after the solver was unregistered
+	 * are ignored.
+	 * 
+	 * @param solverBytes
+	 *            the solver's queued byte count.
+	 * @param length
+	 *            the number of bytes to release.
+	 */
+	public void release(final AtomicLong solverBytes, final long length) {
+		long current;
+		long released;
+		do {
+			current = solverBytes.get();
+			released = Math.min(current, length);
+			if (released <= 0) {
+				return;
+			}
+		} while (!solverBytes.compareAndSet(current, current - released));
+		this.queuedBytes.addAndGet(-released);
+	}
+
+	/**
+	 * @return the total number of bytes currently queued for all solvers.
+	 */
+	public long getQueuedBytes() {
+		return this.queuedBytes.get();
+	}
+
+	/**
+	 * Returns a summary of the queued bytes since the last call and resets the
+	 * peak and rejection counters.
+	 * 
+	 * @return a human-readable summary of solver buffer usage.
+	 */
+	public String getAndClearStatistics() {
+		long queued = this.queuedBytes.get();
+		long peak = Math.max(queued, this.peakBytes.getAndSet(queued));
+		StringBuffer sb = new StringBuffer();
+		sb.append(String.format("%,d bytes queued, peak %,d",
+				Long.valueOf(queued), Long.valueOf(peak)));
+		if (this.budget > 0) {
+			sb.append(String.format(" of %,d (%1.1f%%)",
+					Long.valueOf(this.budget),
+					Float.valueOf(100f * peak / this.budget)));
+		}
+		sb.append(String.format(", %,d samples rejected",
+				Long.valueOf(this.numRejected.getAndSet(0))));
+		return sb.toString();
+	}
+}
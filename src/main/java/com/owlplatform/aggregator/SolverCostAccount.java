@@ -0,0 +1,147 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates how much work a solver causes: samples evaluated against its
+ * rules, samples forwarded to it, bytes queued for it, and CPU time spent on
+ * it. To keep accounting cheap, only one in {@link #SAMPLE_INTERVAL}
+ * dispatched samples is timed, and the evaluated, forwarded, and CPU counts
+ * are scaled up from those samples. Queued bytes are counted exactly. When
+ * solvers share a rule evaluation group, the group's evaluation time is
+ * divided evenly among them.
+ * <p>
+ * Counts are cumulative. {@link #getAndClearStatistics()} reports the change
+ * since its previous call.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class SolverCostAccount {
+
+	/**
+	 * One in this many dispatched samples is timed. Must be a power of two.
+	 */
+	public static final int SAMPLE_INTERVAL = 64;
+
+	/**
+	 * Estimated number of samples evaluated against the solver's rules.
+	 */
+	private final AtomicLong evaluated = new AtomicLong(0);
+
+	/**
+	 * Estimated number of samples forwarded to the solver.
+	 */
+	private final AtomicLong forwarded = new AtomicLong(0);
+
+	/**
+	 * Number of bytes queued for the solver, before compression.
+	 */
+	private final AtomicLong bytes = new AtomicLong(0);
+
+	/**
+	 * Estimated CPU time spent on the solver, in nanoseconds.
+	 */
+	private final AtomicLong cpuNanos = new AtomicLong(0);
+
+	/**
+	 * Counts at the last call to {@link #getAndClearStatistics()}, in the
+	 * order evaluated, forwarded, bytes, CPU nanoseconds.
+	 */
+	private final long[] lastReported = new long[4];
+
+	/**
+	 * Records a timed sample, scaled up to stand for the samples that were
+	 * not timed.
+	 * 
+	 * @param wasForwarded
+	 *            {@code true} if the sample was forwarded to the solver.
+	 * @param nanos
+	 *            the time spent evaluating and forwarding the sample, in
+	 *            nanoseconds.
+	 */
+	public void addSampled(final boolean wasForwarded, final long nanos) {
+		this.evaluated.addAndGet(SAMPLE_INTERVAL);
+		if (wasForwarded) {
+			this.forwarded.addAndGet(SAMPLE_INTERVAL);
+		}
+		this.cpuNanos.addAndGet(nanos * SAMPLE_INTERVAL);
+	}
+
+	/**
+	 * Records bytes queued for the solver.
+	 * 
+	 * @param length
+	 *            the number of bytes queued.
+	 */
+	public void addBytes(final long length) {
+		this.bytes.addAndGet(length);
+	}
+
+	/**
+	 * @return the estimated number of samples evaluated against the solver's
+	 *         rules.
+	 */
+	public long getEvaluated() {
+		return this.evaluated.get();
+	}
+
+	/**
+	 * @return the estimated number of samples forwarded to the solver.
+	 */
+	public long getForwarded() {
+		return this.forwarded.get();
+	}
+
+	/**
+	 * @return the number of bytes queued for the solver.
+	 */
+	public long getBytes() {
+		return this.bytes.get();
+	}
+
+	/**
+	 * @return the estimated CPU time spent on the solver, in nanoseconds.
+	 */
+	public long getCpuNanos() {
+		return this.cpuNanos.get();
+	}
+
+	/**
+	 * Returns a description of the cost since the last call.
+	 * 
+	 * @return the cost statistics.
+	 */
+	public synchronized String getAndClearStatistics() {
+		long[] current = new long[] { this.evaluated.get(),
+				this.forwarded.get(), this.bytes.get(), this.cpuNanos.get() };
+		String stats = String.format(
+				"~%,d evaluated, ~%,d forwarded, %,d bytes, ~%,d us CPU",
+				Long.valueOf(current[0] - this.lastReported[0]),
+				Long.valueOf(current[1] - this.lastReported[1]),
+				Long.valueOf(current[2] - this.lastReported[2]),
+				Long.valueOf((current[3] - this.lastReported[3]) / 1000));
+		System.arraycopy(current, 0, this.lastReported, 0, current.length);
+		return stats;
+	}
+}
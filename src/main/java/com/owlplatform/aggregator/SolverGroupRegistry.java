@@ -0,0 +1,258 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * Groups subscribed solvers by priority and rule set. Samples are dispatched
+ * by evaluating the rules of each group once and then delivering accepted
+ * samples to every member, so replicas of a solver with identical
+ * subscriptions share a single rule cache and rule evaluation.
+ * <p>
+ * A solver joins when its subscription is complete and leaves before its
+ * rules change or when it disconnects. A solver that
+ * leaves a group that still has other members is given a private copy of
+ * the rules, so changing its rules does not affect the other members.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SolverGroupRegistry {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(SolverGroupRegistry.class);
+
+	/**
+	 * Groups keyed by priority and canonical rule set.
+	 */
+	private final Map<String, RuleEvaluationGroup> groupsByKey = new HashMap<String, RuleEvaluationGroup>();
+
+	/**
+	 * Key of each group in {@link #groupsByKey}.
+	 */
+	private final Map<RuleEvaluationGroup, String> keysByGroup = new HashMap<RuleEvaluationGroup, String>();
+
+	/**
+	 * Groups for each priority, for dispatch.
+	 */
+	private final List<CopyOnWriteArrayList<RuleEvaluationGroup>> groupsByPriority;
+
+	/**
+	 * Number of samples dispatched at each priority, used to choose which
+	 * samples are timed for {@link SolverCostAccount}s. Each priority is
+	 * counted separately because every sample is dispatched once per
+	 * priority.
+	 */
+	private final AtomicIntegerArray numDispatched = new AtomicIntegerArray(
+			SolverPriority.values().length);
+
+	/**
+	 * Creates an empty registry.
+	 */
+	public SolverGroupRegistry() {
+		SolverPriority[] priorities = SolverPriority.values();
+		this.groupsByPriority = new ArrayList<CopyOnWriteArrayList<RuleEvaluationGroup>>(
+				priorities.length);
+		for (int i = 0; i < priorities.length; ++i) {
+			this.groupsByPriority
+					.add(new CopyOnWriteArrayList<RuleEvaluationGroup>());
+		}
+	}
+
+	/**
+	 * Adds a solver to the group for its priority and rules, creating the
+	 * group if needed. A solver that is already a member is not moved.
+	 * 
+	 * @param solver
+	 *            the subscribed solver.
+	 */
+	public synchronized void join(final CachingFilteringSolverInterface solver) {
+		if (solver.getGroupRegistry() == this) {
+			return;
+		}
+		SolverPriority priority = solver.getOptions().getPriority();
+		RuleEvaluationGroup own = solver.getGroup();
+		String key = priority.name() + ' ' + own.getCanonicalKey();
+		RuleEvaluationGroup group = this.groupsByKey.get(key);
+		if (group == null) {
+			group = own;
+			this.groupsByKey.put(key, group);
+			this.keysByGroup.put(group, key);
+			this.groupsByPriority.get(priority.ordinal()).add(group);
+		}
+		group.getMembers().add(solver);
+		solver.setGroup(group);
+		solver.setGroupRegistry(this);
+		log.debug("{} joined a group of {} solvers.", solver,
+				Integer.valueOf(group.getMembers().size()));
+	}
+
+	/**
+	 * Removes a solver from its group. The group is discarded once it has no
+	 * members; otherwise the solver is given a private copy of the rules.
+	 * 
+	 * @param solver
+	 *            the solver to remove.
+	 */
+	public synchronized void leave(final CachingFilteringSolverInterface solver) {
+		if (solver.getGroupRegistry() != this) {
+			return;
+		}
+		RuleEvaluationGroup group = solver.getGroup();
+		group.getMembers().remove(solver);
+		if (group.getMembers().isEmpty()) {
+			String key = this.keysByGroup.remove(group);
+			this.groupsByKey.remove(key);
+			for (List<RuleEvaluationGroup> groups : this.groupsByPriority) {
+				groups.remove(group);
+			}
+		} else {
+			solver.setGroup(group.copy());
+		}
+		solver.setGroupRegistry(null);
+	}
+
+	/**
+	 * @param priority
+	 *            a solver priority.
+	 * @return {@code true} if any solver with the priority has joined.
+	 */
+	public boolean hasSolvers(final SolverPriority priority) {
+		return !this.groupsByPriority.get(priority.ordinal()).isEmpty();
+	}
+
+	/**
+	 * Evaluates a sample once for each group of a priority and sends it to
+	 * every member of the groups that accept it.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to dispatch.
+	 * @param priority
+	 *            the priority of the solvers to send to.
+	 */
+	public void dispatch(final SampleMessage sampleMessage,
+			final SolverPriority priority) {
+		int dispatched = this.numDispatched.incrementAndGet(priority
+				.ordinal());
+		if ((dispatched & (SolverCostAccount.SAMPLE_INTERVAL - 1)) == 0) {
+			this.dispatchTimed(sampleMessage, priority);
+			return;
+		}
+		for (RuleEvaluationGroup group : this.groupsByPriority.get(priority
+				.ordinal())) {
+			if (isStaleForAll(group, sampleMessage)) {
+				continue;
+			}
+			if (group.accepts(sampleMessage)) {
+				for (CachingFilteringSolverInterface solver : group
+						.getMembers()) {
+					solver.deliverSample(sampleMessage);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Dispatches a sample like {@link #dispatch(SampleMessage, SolverPriority)},
+	 * timing the work done for each solver and recording it in the solver's
+	 * {@link SolverCostAccount}. Each group's evaluation time is divided
+	 * evenly among its members.
+	 */
+	private void dispatchTimed(final SampleMessage sampleMessage,
+			final SolverPriority priority) {
+		for (RuleEvaluationGroup group : this.groupsByPriority.get(priority
+				.ordinal())) {
+			if (isStaleForAll(group, sampleMessage)) {
+				continue;
+			}
+			long start = System.nanoTime();
+			boolean accepted = group.accepts(sampleMessage);
+			List<CachingFilteringSolverInterface> members = group.getMembers();
+			long share = (System.nanoTime() - start)
+					/ Math.max(1, members.size());
+			for (CachingFilteringSolverInterface solver : members) {
+				long nanos = share;
+				boolean forwarded = false;
+				if (accepted) {
+					long deliverStart = System.nanoTime();
+					forwarded = solver.deliverSample(sampleMessage);
+					nanos += System.nanoTime() - deliverStart;
+				}
+				solver.getCostAccount().addSampled(forwarded, nanos);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a sample is too old for every member of a group, so that
+	 * it can be dropped before it uses up the group's update intervals. The
+	 * drop is counted for each member.
+	 * 
+	 * @param group
+	 *            the group to check.
+	 * @param sampleMessage
+	 *            the sample to check.
+	 * @return {@code true} if no member of the group would send the sample.
+	 */
+	private static boolean isStaleForAll(final RuleEvaluationGroup group,
+			final SampleMessage sampleMessage) {
+		List<CachingFilteringSolverInterface> members = group.getMembers();
+		if (members.isEmpty()) {
+			return false;
+		}
+		for (CachingFilteringSolverInterface solver : members) {
+			if (!solver.isStale(sampleMessage)) {
+				return false;
+			}
+		}
+		for (CachingFilteringSolverInterface solver : members) {
+			solver.countStale();
+		}
+		return true;
+	}
+
+	/**
+	 * @return a summary of the number of solvers and groups.
+	 */
+	public synchronized String getStatistics() {
+		int numSolvers = 0;
+		for (RuleEvaluationGroup group : this.keysByGroup.keySet()) {
+			numSolvers += group.getMembers().size();
+		}
+		return String.format("%,d solvers in %,d groups",
+				Integer.valueOf(numSolvers),
+				Integer.valueOf(this.keysByGroup.size()));
+	}
+}
@@ -19,6 +19,8 @@
 
 package com.owlplatform.aggregator;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.mina.core.session.IoSession;
 import com.owlplatform.common.SampleMessage;
 import org.slf4j.Logger;
@@ -29,7 +31,40 @@ public class SolverInterface {
 
 	protected IoSession session;
 	protected boolean sentSubscriptionResponse = false;
+
+	/**
+	 * Options assigned to this solver by the aggregator configuration.
+	 */
+	protected SolverOptions options = new SolverOptions();
+
+	/**
+	 * Compression filter for this solver's session, if compression was
+	 * negotiated.
+	 */
+	protected SampleCompressionFilter compressionFilter = null;
 	
+	/**
+	 * Aggregator-wide budget for queued solver bytes, or {@code null} if
+	 * queued bytes are not accounted.
+	 */
+	protected volatile SolverBufferBudget bufferBudget = null;
+
+	/**
+	 * Bytes reserved in {@link #bufferBudget} for samples not yet sent.
+	 */
+	protected final AtomicLong queuedBytes = new AtomicLong(0);
+
+	/**
+	 * Estimated cost of this solver to the aggregator.
+	 */
+	protected final SolverCostAccount costAccount = new SolverCostAccount();
+
+	/**
+	 * Tracer for sampled latency traces, or {@code null} if tracing is
+	 * disabled.
+	 */
+	protected volatile SampleTracer tracer = null;
+
 	static final int MAX_OUTSTANDING_SAMPLES = 200;
 
 	/**
@@ -62,6 +97,145 @@ public class SolverInterface {
 		this.session = session;
 	}
 
+	/**
+	 * @return the options for this solver
+	 */
+	public SolverOptions getOptions() {
+		return this.options;
+	}
+
+	/**
+	 * @param options
+	 *            the options for this solver
+	 */
+	public void setOptions(SolverOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * @return the compression filter for this solver's session, or
+	 *         {@code null} if the stream is not compressed.
+	 */
+	public SampleCompressionFilter getCompressionFilter() {
+		return this.compressionFilter;
+	}
+
+	/**
+	 * @param compressionFilter
+	 *            the compression filter installed on this solver's session
+	 */
+	public void setCompressionFilter(SampleCompressionFilter compressionFilter) {
+		this.compressionFilter = compressionFilter;
+	}
+
+	/**
+	 * @return the budget for queued solver bytes, or {@code null} if queued
+	 *         bytes are not accounted.
+	 */
+	public SolverBufferBudget getBufferBudget() {
+		return this.bufferBudget;
+	}
+
+	/**
+	 * @param bufferBudget
+	 *            the budget for queued solver bytes, or {@code null} to stop
+	 *            accounting queued bytes.
+	 */
+	public void setBufferBudget(SolverBufferBudget bufferBudget) {
+		this.bufferBudget = bufferBudget;
+	}
+
+	/**
+	 * @return the bytes reserved for samples that have not yet been sent.
+	 */
+	public AtomicLong getQueuedBytes() {
+		return this.queuedBytes;
+	}
+
+	/**
+	 * @return the tracer for sampled latency traces, or {@code null} if
+	 *         tracing is disabled.
+	 */
+	public SampleTracer getTracer() {
+		return this.tracer;
+	}
+
+	/**
+	 * @param tracer
+	 *            the tracer for sampled latency traces, or {@code null} to
+	 *            disable tracing.
+	 */
+	public void setTracer(SampleTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Records a stage of a sample's trace for this solver, if tracing is
+	 * enabled.
+	 * 
+	 * @param sampleMessage
+	 *            the sample.
+	 * @param stage
+	 *            the {@link SampleTracer} solver stage.
+	 */
+	protected void trace(SampleMessage sampleMessage, int stage) {
+		SampleTracer sampleTracer = this.tracer;
+		if (sampleTracer != null) {
+			sampleTracer.markSolver(sampleMessage, this, stage);
+		}
+	}
+
+	/**
+	 * @return the estimated cost of this solver to the aggregator.
+	 */
+	public SolverCostAccount getCostAccount() {
+		return this.costAccount;
+	}
+
+	/**
+	 * Releases the space reserved for a sample once it has been sent, and
+	 * counts its bytes against this solver.
+	 * 
+	 * @param sampleMessage
+	 *            the sample that was sent.
+	 */
+	public void sampleSent(SampleMessage sampleMessage) {
+		this.trace(sampleMessage, SampleTracer.SENT);
+		this.costAccount.addBytes(SolverBufferBudget
+				.getQueuedLength(sampleMessage));
+		this.releaseReservation(sampleMessage);
+	}
+
+	/**
+	 * Releases the space reserved for a sample without counting it as sent,
+	 * for samples that were dropped after being reserved.
+	 * 
+	 * @param sampleMessage
+	 *            the sample that will not be sent.
+	 */
+	protected void releaseReservation(SampleMessage sampleMessage) {
+		SolverBufferBudget budget = this.bufferBudget;
+		if (budget != null) {
+			budget.release(this.queuedBytes,
+					SolverBufferBudget.getQueuedLength(sampleMessage));
+		}
+	}
+
+	/**
+	 * Reserves space for a sample in the buffer budget.
+	 * 
+	 * @param sampleMessage
+	 *            the sample about to be queued.
+	 * @return {@code false} if the budget is exhausted and the sample should
+	 *         be dropped.
+	 */
+	protected boolean reserve(SampleMessage sampleMessage) {
+		SolverBufferBudget budget = this.bufferBudget;
+		return budget == null
+				|| budget.reserve(this.queuedBytes,
+						SolverBufferBudget.getQueuedLength(sampleMessage));
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (o instanceof SolverInterface) {
@@ -75,6 +249,41 @@ public class SolverInterface {
 	}
 
 	public boolean sendSample(SampleMessage sampleMessage) {
+		return this.write(sampleMessage);
+	}
+
+	/**
+	 * Returns the number of samples that have been handed to this solver but
+	 * not yet delivered.
+	 * 
+	 * @return the number of samples waiting to be sent to the solver.
+	 */
+	protected int getScheduledSamples() {
+		return this.session.getScheduledWriteMessages();
+	}
+
+	/**
+	 * Delivers a sample to the solver without any filtering.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to deliver.
+	 * @return {@code true} if the sample was delivered or queued for delivery.
+	 */
+	protected boolean write(SampleMessage sampleMessage) {
+		if (!this.isWritable() || !this.reserve(sampleMessage)) {
+			return false;
+		}
+		this.writeReserved(sampleMessage);
+		return true;
+	}
+
+	/**
+	 * Checks whether the solver's session can be written to, logging why if
+	 * it cannot.
+	 * 
+	 * @return {@code true} if the session is connected and not closing.
+	 */
+	protected boolean isWritable() {
 		if (this.session == null) {
 			log.error("Solver IoSession is null, cannot send sample.");
 			return false;
@@ -85,12 +294,23 @@ public class SolverInterface {
 			return false;
 		}
 		if (this.session.isConnected()) {
-			this.session.write(sampleMessage);
 			return true;
 		}
 		log.warn("Solver IoSession is not connected, cannot send sample.");
 		return false;
 	}
+
+	/**
+	 * Writes a sample to the solver's session once space for it has been
+	 * reserved.
+	 * 
+	 * @param sampleMessage
+	 *            the sample to write.
+	 */
+	protected void writeReserved(SampleMessage sampleMessage) {
+		this.session.write(sampleMessage);
+		this.trace(sampleMessage, SampleTracer.WRITTEN);
+	}
 	
 	@Override
 	public String toString()
@@ -0,0 +1,510 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.util.zip.Deflater;
+
+import com.owlplatform.solver.protocol.messages.Transmitter;
+
+/**
+ * Per-solver settings that cannot be expressed in the solver protocol. Options
+ * are assigned to solver sessions by remote address through the
+ * {@link AggregatorConfiguration}.
+ *
+ * @author Robert Moore
+ *
+ */
+public class SolverOptions {
+
+	/**
+	 * Whether samples sent to the solver are compressed after the
+	 * subscription response.
+	 */
+	private boolean compressionEnabled = false;
+
+	/**
+	 * The Deflate level used when compression is enabled.
+	 */
+	private int compressionLevel = Deflater.BEST_SPEED;
+
+	/**
+	 * The priority class of the solver.
+	 */
+	private SolverPriority priority = SolverPriority.NORMAL;
+
+	/**
+	 * Whether the solver is sent the latest matching samples right after its
+	 * subscription response.
+	 */
+	private boolean replayLatestSamples = false;
+
+	/**
+	 * Maximum age of a sample sent to the solver, in milliseconds, or 0 to
+	 * use the aggregator's limit.
+	 */
+	private long maxSampleAge = 0;
+
+	/**
+	 * Length of the RSSI aggregation windows, in milliseconds, or 0 to send
+	 * samples as they arrive.
+	 */
+	private long aggregationWindow = 0;
+
+	/**
+	 * Maximum number of open aggregation windows.
+	 */
+	private int aggregationCapacity = 4096;
+
+	/**
+	 * Length of the window in which copies of a transmission from different
+	 * receivers are collapsed, in milliseconds, or 0 to send every copy.
+	 */
+	private long reductionWindow = 0;
+
+	/**
+	 * Number of strongest copies of each transmission kept by reduction.
+	 */
+	private int reductionReceivers = 1;
+
+	/**
+	 * Maximum number of transmissions being reduced at once.
+	 */
+	private int reductionCapacity = 4096;
+
+	/**
+	 * Receiver base IDs and masks the solver is sent samples from, or
+	 * {@code null} for any receiver.
+	 */
+	private Transmitter[] receivers = null;
+
+	/**
+	 * Lowest RSSI of a sample sent to the solver.
+	 */
+	private float minRssi = Float.NEGATIVE_INFINITY;
+
+	/**
+	 * Highest RSSI of a sample sent to the solver.
+	 */
+	private float maxRssi = Float.POSITIVE_INFINITY;
+
+	/**
+	 * Fraction of devices the solver is sent samples from, chosen by a
+	 * consistent hash of the device ID.
+	 */
+	private double samplingRatio = 1;
+
+	/**
+	 * Whether sampling chooses device/receiver pairs instead of devices.
+	 */
+	private boolean samplingByReceiver = false;
+
+	/**
+	 * How long samples are held to be sent in creation timestamp order, in
+	 * milliseconds, or 0 to send samples as they are dispatched.
+	 */
+	private long reorderWindow = 0;
+
+	/**
+	 * Maximum number of samples held for reordering.
+	 */
+	private int reorderCapacity = 65536;
+
+	/**
+	 * Directory for samples that arrive while the solver is backed up, or
+	 * {@code null} to drop them.
+	 */
+	private String spillDirectory = null;
+
+	/**
+	 * Size of each spill file, in bytes.
+	 */
+	private int spillSegmentSize = 16 * 1024 * 1024;
+
+	/**
+	 * Maximum number of bytes spilled for the solver.
+	 */
+	private long maxSpillBytes = 1024l * 1024 * 1024;
+
+	/**
+	 * @return {@code true} if samples sent to the solver should be
+	 *         compressed.
+	 */
+	public boolean isCompressionEnabled() {
+		return this.compressionEnabled;
+	}
+
+	/**
+	 * @param compressionEnabled
+	 *            {@code true} to compress samples sent to the solver.
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+
+	/**
+	 * @return the Deflate level used when compression is enabled.
+	 */
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel
+	 *            the Deflate level (1-9) used when compression is enabled.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * @return the priority class of the solver.
+	 */
+	public SolverPriority getPriority() {
+		return this.priority;
+	}
+
+	/**
+	 * @param priority
+	 *            the priority class of the solver.
+	 */
+	public void setPriority(SolverPriority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * @return {@code true} if the solver is sent the latest matching samples
+	 *         right after its subscription response.
+	 */
+	public boolean isReplayLatestSamples() {
+		return this.replayLatestSamples;
+	}
+
+	/**
+	 * @param replayLatestSamples
+	 *            {@code true} to send the solver the latest matching samples
+	 *            right after its subscription response.
+	 */
+	public void setReplayLatestSamples(boolean replayLatestSamples) {
+		this.replayLatestSamples = replayLatestSamples;
+	}
+
+	/**
+	 * @return the maximum age of a sample sent to the solver, in
+	 *         milliseconds, or 0 to use the aggregator's limit.
+	 */
+	public long getMaxSampleAge() {
+		return this.maxSampleAge;
+	}
+
+	/**
+	 * @param maxSampleAge
+	 *            the maximum age of a sample sent to the solver, in
+	 *            milliseconds, or 0 to use the aggregator's limit.
+	 */
+	public void setMaxSampleAge(long maxSampleAge) {
+		this.maxSampleAge = maxSampleAge;
+	}
+
+	/**
+	 * @return the length of the RSSI aggregation windows, in milliseconds, or
+	 *         0 if samples are sent as they arrive.
+	 */
+	public long getAggregationWindow() {
+		return this.aggregationWindow;
+	}
+
+	/**
+	 * @param aggregationWindow
+	 *            the length of the RSSI aggregation windows, in milliseconds,
+	 *            or 0 to send samples as they arrive.
+	 */
+	public void setAggregationWindow(long aggregationWindow) {
+		this.aggregationWindow = aggregationWindow;
+	}
+
+	/**
+	 * @return the maximum number of open aggregation windows.
+	 */
+	public int getAggregationCapacity() {
+		return this.aggregationCapacity;
+	}
+
+	/**
+	 * @param aggregationCapacity
+	 *            the maximum number of open aggregation windows.
+	 */
+	public void setAggregationCapacity(int aggregationCapacity) {
+		this.aggregationCapacity = aggregationCapacity;
+	}
+
+	/**
+	 * @return the length of the receiver reduction window, in milliseconds, or
+	 *         0 if every copy of a transmission is sent.
+	 */
+	public long getReductionWindow() {
+		return this.reductionWindow;
+	}
+
+	/**
+	 * @param reductionWindow
+	 *            the length of the receiver reduction window, in milliseconds,
+	 *            or 0 to send every copy of a transmission.
+	 */
+	public void setReductionWindow(long reductionWindow) {
+		this.reductionWindow = reductionWindow;
+	}
+
+	/**
+	 * @return the number of strongest copies of each transmission kept by
+	 *         reduction.
+	 */
+	public int getReductionReceivers() {
+		return this.reductionReceivers;
+	}
+
+	/**
+	 * @param reductionReceivers
+	 *            the number of strongest copies of each transmission kept by
+	 *            reduction.
+	 */
+	public void setReductionReceivers(int reductionReceivers) {
+		this.reductionReceivers = reductionReceivers;
+	}
+
+	/**
+	 * @return the maximum number of transmissions being reduced at once.
+	 */
+	public int getReductionCapacity() {
+		return this.reductionCapacity;
+	}
+
+	/**
+	 * @param reductionCapacity
+	 *            the maximum number of transmissions being reduced at once.
+	 */
+	public void setReductionCapacity(int reductionCapacity) {
+		this.reductionCapacity = reductionCapacity;
+	}
+
+	/**
+	 * @return the receiver base IDs and masks the solver is sent samples from,
+	 *         or {@code null} for any receiver.
+	 */
+	public Transmitter[] getReceivers() {
+		return this.receivers;
+	}
+
+	/**
+	 * @param receivers
+	 *            the receiver base IDs and masks the solver is sent samples
+	 *            from, or {@code null} for any receiver.
+	 */
+	public void setReceivers(Transmitter[] receivers) {
+		this.receivers = receivers;
+	}
+
+	/**
+	 * @return the lowest RSSI of a sample sent to the solver.
+	 */
+	public float getMinRssi() {
+		return this.minRssi;
+	}
+
+	/**
+	 * @param minRssi
+	 *            the lowest RSSI of a sample sent to the solver.
+	 */
+	public void setMinRssi(float minRssi) {
+		this.minRssi = minRssi;
+	}
+
+	/**
+	 * @return the highest RSSI of a sample sent to the solver.
+	 */
+	public float getMaxRssi() {
+		return this.maxRssi;
+	}
+
+	/**
+	 * @param maxRssi
+	 *            the highest RSSI of a sample sent to the solver.
+	 */
+	public void setMaxRssi(float maxRssi) {
+		this.maxRssi = maxRssi;
+	}
+
+	/**
+	 * @return the fraction of devices the solver is sent samples from.
+	 */
+	public double getSamplingRatio() {
+		return this.samplingRatio;
+	}
+
+	/**
+	 * @param samplingRatio
+	 *            the fraction of devices the solver is sent samples from, from
+	 *            0 to 1.
+	 */
+	public void setSamplingRatio(double samplingRatio) {
+		this.samplingRatio = samplingRatio;
+	}
+
+	/**
+	 * @return {@code true} if sampling chooses device/receiver pairs instead of
+	 *         devices.
+	 */
+	public boolean isSamplingByReceiver() {
+		return this.samplingByReceiver;
+	}
+
+	/**
+	 * @param samplingByReceiver
+	 *            {@code true} to sample device/receiver pairs instead of
+	 *            devices.
+	 */
+	public void setSamplingByReceiver(boolean samplingByReceiver) {
+		this.samplingByReceiver = samplingByReceiver;
+	}
+
+	/**
+	 * @return how long samples are held to be sent in creation timestamp
+	 *         order, in milliseconds, or 0 if samples are sent as they are
+	 *         dispatched.
+	 */
+	public long getReorderWindow() {
+		return this.reorderWindow;
+	}
+
+	/**
+	 * @param reorderWindow
+	 *            how long samples are held to be sent in creation timestamp
+	 *            order, in milliseconds, or 0 to send samples as they are
+	 *            dispatched.
+	 */
+	public void setReorderWindow(long reorderWindow) {
+		this.reorderWindow = reorderWindow;
+	}
+
+	/**
+	 * @return the maximum number of samples held for reordering.
+	 */
+	public int getReorderCapacity() {
+		return this.reorderCapacity;
+	}
+
+	/**
+	 * @param reorderCapacity
+	 *            the maximum number of samples held for reordering.
+	 */
+	public void setReorderCapacity(int reorderCapacity) {
+		this.reorderCapacity = reorderCapacity;
+	}
+
+	/**
+	 * @return the directory for samples that arrive while the solver is
+	 *         backed up, or {@code null} if they are dropped.
+	 */
+	public String getSpillDirectory() {
+		return this.spillDirectory;
+	}
+
+	/**
+	 * @param spillDirectory
+	 *            the directory for samples that arrive while the solver is
+	 *            backed up, or {@code null} to drop them.
+	 */
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * @return the size of each spill file, in bytes.
+	 */
+	public int getSpillSegmentSize() {
+		return this.spillSegmentSize;
+	}
+
+	/**
+	 * @param spillSegmentSize
+	 *            the size of each spill file, in bytes.
+	 */
+	public void setSpillSegmentSize(int spillSegmentSize) {
+		this.spillSegmentSize = spillSegmentSize;
+	}
+
+	/**
+	 * @return the maximum number of bytes spilled for the solver.
+	 */
+	public long getMaxSpillBytes() {
+		return this.maxSpillBytes;
+	}
+
+	/**
+	 * @param maxSpillBytes
+	 *            the maximum number of bytes spilled for the solver.
+	 */
+	public void setMaxSpillBytes(long maxSpillBytes) {
+		this.maxSpillBytes = maxSpillBytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("SolverOptions (").append(this.priority);
+		if (this.compressionEnabled) {
+			sb.append(", compression=").append(this.compressionLevel);
+		}
+		if (this.replayLatestSamples) {
+			sb.append(", replay");
+		}
+		if (this.maxSampleAge > 0) {
+			sb.append(", maxAge=").append(this.maxSampleAge);
+		}
+		if (this.aggregationWindow > 0) {
+			sb.append(", window=").append(this.aggregationWindow);
+		}
+		if (this.reductionWindow > 0) {
+			sb.append(", reduce=").append(this.reductionReceivers).append('/')
+					.append(this.reductionWindow);
+		}
+		if (this.receivers != null && this.receivers.length > 0) {
+			sb.append(", receivers=").append(this.receivers.length);
+		}
+		if (this.minRssi != Float.NEGATIVE_INFINITY
+				|| this.maxRssi != Float.POSITIVE_INFINITY) {
+			sb.append(", rssi=[").append(this.minRssi).append(", ")
+					.append(this.maxRssi).append(']');
+		}
+		if (this.reorderWindow > 0) {
+			sb.append(", reorder=").append(this.reorderWindow);
+		}
+		if (this.spillDirectory != null) {
+			sb.append(", spill=").append(this.spillDirectory);
+		}
+		if (this.samplingRatio < 1) {
+			sb.append(", sampling=").append(this.samplingRatio);
+			if (this.samplingByReceiver) {
+				sb.append("/receiver");
+			}
+		}
+		sb.append(')');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+/**
+ * Priority classes for solvers. High-priority solvers are dispatched by a
+ * dedicated set of worker threads ahead of all other solvers. Low-priority
+ * solvers are served last and are the first to be shed when the aggregator
+ * is overloaded.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public enum SolverPriority {
+	/**
+	 * Latency-critical solvers, such as real-time tracking.
+	 */
+	HIGH(SolverInterface.MAX_OUTSTANDING_SAMPLES * 2),
+	/**
+	 * The default priority.
+	 */
+	NORMAL(SolverInterface.MAX_OUTSTANDING_SAMPLES),
+	/**
+	 * Bulk consumers, such as archival, that can tolerate delay and loss.
+	 */
+	LOW(SolverInterface.MAX_OUTSTANDING_SAMPLES / 2);
+
+	/**
+	 * Number of samples that can be waiting for the solver before new samples
+	 * are dropped.
+	 */
+	private final int maxOutstandingSamples;
+
+	private SolverPriority(final int maxOutstandingSamples) {
+		this.maxOutstandingSamples = maxOutstandingSamples;
+	}
+
+	/**
+	 * @return the number of samples that can be waiting for a solver of this
+	 *         priority before new samples are dropped.
+	 */
+	public int getMaxOutstandingSamples() {
+		return this.maxOutstandingSamples;
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+
+/**
+ * A first-in, first-out queue of samples stored in memory-mapped segment
+ * files. Used to hold the backlog of a lossless solver that cannot keep up,
+ * so that the backlog does not grow the heap. Each record is the time the
+ * sample was spilled (8 bytes) followed by the sample in
+ * {@link SampleEncoding} form. Segments that have been read are kept and
+ * reused for later samples rather than deleted, since a mapped file's blocks
+ * are not released until its mapping is garbage collected. The files are
+ * only deleted when the queue is closed.
+ * <p>
+ * The queue only lives as long as its solver's connection, so segment
+ * boundaries are tracked in memory rather than written to disk. The spill
+ * directory is created on the first spilled sample.
+ * </p>
+ * <p>
+ * This class is not thread-safe. It is only used while holding the owning
+ * solver's monitor.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class SpillQueue {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = LoggerFactory
+			.getLogger(SpillQueue.class);
+
+	/**
+	 * Length of the spill time before each record.
+	 */
+	private static final int TIME_LENGTH = 8;
+
+	/**
+	 * A single mapped segment file.
+	 */
+	private static final class Segment {
+		final File file;
+
+		/**
+		 * Buffer for appending records; its position is the end of the
+		 * written data.
+		 */
+		final IoBuffer writeBuffer;
+
+		/**
+		 * Buffer for reading records; its position is the next record.
+		 */
+		final IoBuffer readBuffer;
+
+		Segment(final File file, final MappedByteBuffer map) {
+			this.file = file;
+			this.writeBuffer = IoBuffer.wrap(map.duplicate());
+			this.readBuffer = IoBuffer.wrap(map.duplicate());
+		}
+	}
+
+	/**
+	 * Parent directory for this queue's directory.
+	 */
+	private final File parent;
+
+	/**
+	 * Size of each segment file, in bytes.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Maximum number of bytes in all segment files.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * Directory holding this queue's segments, or {@code null} until the
+	 * first sample is spilled.
+	 */
+	private File directory = null;
+
+	/**
+	 * Segments in the order they were written. The first is being read and
+	 * the last is being written.
+	 */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	/**
+	 * Segments that have been completely read, ready to be reused.
+	 */
+	private final LinkedList<Segment> free = new LinkedList<Segment>();
+
+	/**
+	 * Sequence number of the next segment file.
+	 */
+	private long nextSegment = 0;
+
+	/**
+	 * Number of samples in the queue.
+	 */
+	private long size = 0;
+
+	/**
+	 * The sample at the head of the queue, once decoded by {@link #peek()},
+	 * or {@code null}.
+	 */
+	private SampleMessage head = null;
+
+	/**
+	 * Position in the head segment just after {@link #head}'s record.
+	 */
+	private int headEnd = 0;
+
+	/**
+	 * Number of samples that could not be spilled since the statistics were
+	 * last cleared.
+	 */
+	private long numDropped = 0;
+
+	/**
+	 * Creates a new, empty queue.
+	 * 
+	 * @param parent
+	 *            the directory to create the queue's directory in.
+	 * @param segmentSize
+	 *            the size of each segment file, in bytes.
+	 * @param maxBytes
+	 *            the maximum number of bytes in all segment files.
+	 */
+	public SpillQueue(final File parent, final int segmentSize,
+			final long maxBytes) {
+		this.parent = parent;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds a sample to the end of the queue.
+	 * 
+	 * @param sample
+	 *            the sample to add.
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @return {@code true} if the sample was added, or {@code false} if it was
+	 *         dropped because the disk limit was reached or the sample could
+	 *         not be written.
+	 */
+	public boolean offer(final SampleMessage sample, final long now) {
+		int length = TIME_LENGTH + SampleEncoding.getEncodedLength(sample);
+		Segment tail = this.segments.isEmpty() ? null : this.segments
+				.getLast();
+		if (tail == null || tail.writeBuffer.remaining() < length) {
+			if (length > this.segmentSize) {
+				++this.numDropped;
+				return false;
+			}
+			if (!this.free.isEmpty()) {
+				tail = this.free.removeFirst();
+			} else if (this.getDiskBytes() + this.segmentSize > this.maxBytes) {
+				++this.numDropped;
+				return false;
+			} else {
+				try {
+					tail = this.createSegment();
+				} catch (IOException ioe) {
+					log.error("Unable to create spill segment in {}: {}",
+							this.parent, ioe.getMessage());
+					++this.numDropped;
+					return false;
+				}
+			}
+			this.segments.add(tail);
+		}
+		tail.writeBuffer.putLong(now);
+		SampleEncoding.encode(sample, tail.writeBuffer);
+		++this.size;
+		return true;
+	}
+
+	/**
+	 * Returns the sample at the head of the queue without removing it.
+	 * 
+	 * @return the oldest sample, or {@code null} if the queue is empty.
+	 */
+	public SampleMessage peek() {
+		if (this.head == null) {
+			Segment segment = this.advance();
+			if (segment == null) {
+				return null;
+			}
+			int start = segment.readBuffer.position();
+			segment.readBuffer.skip(TIME_LENGTH);
+			this.head = SampleEncoding.decode(segment.readBuffer);
+			this.headEnd = segment.readBuffer.position();
+			segment.readBuffer.position(start);
+		}
+		return this.head;
+	}
+
+	/**
+	 * Removes the sample at the head of the queue.
+	 * 
+	 * @return the oldest sample, or {@code null} if the queue is empty.
+	 */
+	public SampleMessage poll() {
+		SampleMessage sample = this.peek();
+		if (sample == null) {
+			return null;
+		}
+		this.segments.getFirst().readBuffer.position(this.headEnd);
+		this.head = null;
+		--this.size;
+		return sample;
+	}
+
+	/**
+	 * Returns the time the oldest sample in the queue was spilled.
+	 * 
+	 * @return the spill time of the oldest sample, in milliseconds, or -1 if
+	 *         the queue is empty.
+	 */
+	public long getOldestSpillTime() {
+		Segment head = this.advance();
+		if (head == null) {
+			return -1;
+		}
+		return head.readBuffer.getLong(head.readBuffer.position());
+	}
+
+	/**
+	 * Moves segments that have been completely read to the free list.
+	 * 
+	 * @return the segment holding the head of the queue, or {@code null} if
+	 *         the queue is empty.
+	 */
+	private Segment advance() {
+		while (!this.segments.isEmpty()) {
+			Segment head = this.segments.getFirst();
+			if (head.readBuffer.position() < head.writeBuffer.position()) {
+				return head;
+			}
+			if (head == this.segments.getLast()) {
+				// Reuse the segment from the start
+				head.readBuffer.clear();
+				head.writeBuffer.clear();
+				return null;
+			}
+			this.segments.removeFirst();
+			head.readBuffer.clear();
+			head.writeBuffer.clear();
+			this.free.add(head);
+		}
+		return null;
+	}
+
+	/**
+	 * Creates and maps the next segment file.
+	 */
+	private Segment createSegment() throws IOException {
+		if (this.directory == null) {
+			File dir = File.createTempFile("spill", "", this.parent);
+			if (!dir.delete() || !dir.mkdir()) {
+				throw new IOException("Unable to create directory " + dir);
+			}
+			this.directory = dir;
+			log.info("Spilling samples to {}.", dir);
+		}
+		File file = new File(this.directory, String.format("%016d.seg",
+				Long.valueOf(this.nextSegment++)));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(this.segmentSize);
+			MappedByteBuffer map = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+			return new Segment(file, map);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Deletes a file, logging if it could not be deleted.
+	 */
+	private void delete(final File file) {
+		if (!file.delete()) {
+			log.warn("Unable to delete spill file {}.", file);
+			file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Discards every sample and deletes the queue's files.
+	 */
+	public void close() {
+		for (Segment segment : this.segments) {
+			this.delete(segment.file);
+		}
+		for (Segment segment : this.free) {
+			this.delete(segment.file);
+		}
+		this.segments.clear();
+		this.free.clear();
+		this.size = 0;
+		this.head = null;
+		if (this.directory != null) {
+			this.delete(this.directory);
+			this.directory = null;
+		}
+	}
+
+	/**
+	 * @return {@code true} if there are no samples in the queue.
+	 */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * @return the number of samples in the queue.
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of bytes in the queue's segment files, including
+	 *         segments waiting to be reused.
+	 */
+	public long getDiskBytes() {
+		return (long) (this.segments.size() + this.free.size())
+				* this.segmentSize;
+	}
+
+	/**
+	 * Returns a description of the queue's backlog, then resets the count of
+	 * dropped samples.
+	 * 
+	 * @param now
+	 *            the current time, in milliseconds.
+	 * @return the spill statistics.
+	 */
+	public String getAndClearStatistics(final long now) {
+		long oldest = this.getOldestSpillTime();
+		String stats = String.format(
+				"%,d samples, %,d bytes on disk, lag %,d ms, %,d dropped",
+				Long.valueOf(this.size), Long.valueOf(this.getDiskBytes()),
+				Long.valueOf(oldest < 0 ? 0 : now - oldest),
+				Long.valueOf(this.numDropped));
+		this.numDropped = 0;
+		return stats;
+	}
+}
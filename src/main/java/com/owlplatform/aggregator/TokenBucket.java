@@ -0,0 +1,92 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+/**
+ * A token bucket used to limit the rate of events such as samples from a
+ * single sensor. Tokens are added continuously at a fixed rate up to a
+ * maximum burst size, and each event consumes one token.
+ * <p>
+ * Buckets are not thread-safe. Each bucket is expected to be used by a single
+ * thread at a time, such as the I/O processor thread of a session.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class TokenBucket {
+
+	/**
+	 * Tokens added per nanosecond.
+	 */
+	private final double tokensPerNano;
+
+	/**
+	 * Maximum number of tokens in the bucket.
+	 */
+	private final double capacity;
+
+	/**
+	 * Tokens currently available.
+	 */
+	private double tokens;
+
+	/**
+	 * Time of the last refill, in nanoseconds.
+	 */
+	private long lastRefill;
+
+	/**
+	 * Creates a new, full token bucket.
+	 * 
+	 * @param ratePerSecond
+	 *            the number of tokens added each second.
+	 * @param burst
+	 *            the maximum number of tokens that can accumulate.
+	 */
+	public TokenBucket(final double ratePerSecond, final int burst) {
+		this.tokensPerNano = ratePerSecond / 1e9;
+		this.capacity = Math.max(1, burst);
+		this.tokens = this.capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes a single token from the bucket if one is available.
+	 * 
+	 * @param nowNanos
+	 *            the current time from {@link System#nanoTime()}.
+	 * @return {@code true} if a token was taken, {@code false} if the bucket
+	 *         is empty.
+	 */
+	public boolean tryAcquire(final long nowNanos) {
+		long elapsed = nowNanos - this.lastRefill;
+		if (elapsed > 0) {
+			this.tokens = Math.min(this.capacity, this.tokens + elapsed
+					* this.tokensPerNano);
+			this.lastRefill = nowNanos;
+		}
+		if (this.tokens >= 1) {
+			this.tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+}
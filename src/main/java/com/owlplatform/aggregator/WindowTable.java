@@ -0,0 +1,166 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+/**
+ * Bounded, open-addressed table of time windows, keyed by four words and a
+ * metadata integer. Only the keys and window start times are kept here;
+ * users of the table keep their per-window state in their own arrays,
+ * indexed by the same slots.
+ * <p>
+ * A key is looked up in at most {@link #MAX_PROBES} slots. If the key has no
+ * open window, the first empty slot is chosen, or if there is none, the slot
+ * with the oldest window, which the caller must close before reusing it.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ * 
+ * @author Robert Moore
+ * 
+ */
+final class WindowTable {
+
+	/**
+	 * Number of slots examined for each key.
+	 */
+	static final int MAX_PROBES = 8;
+
+	/**
+	 * Length of each window, in milliseconds.
+	 */
+	private final long window;
+
+	private final long[] key0;
+	private final long[] key1;
+	private final long[] key2;
+	private final long[] key3;
+	private final int[] meta;
+
+	/**
+	 * Start of each open window, in milliseconds.
+	 */
+	private final long[] windowStart;
+
+	/**
+	 * Whether each slot holds an open window.
+	 */
+	private final boolean[] open;
+
+	private final int slotMask;
+
+	/**
+	 * Creates a new, empty table.
+	 * 
+	 * @param window
+	 *            the length of each window, in milliseconds.
+	 * @param capacity
+	 *            the maximum number of open windows, rounded up to a power of
+	 *            two.
+	 */
+	WindowTable(final long window, final int capacity) {
+		int slots = Integer.highestOneBit(Math.max(MAX_PROBES, capacity - 1)) << 1;
+		this.window = window;
+		this.key0 = new long[slots];
+		this.key1 = new long[slots];
+		this.key2 = new long[slots];
+		this.key3 = new long[slots];
+		this.meta = new int[slots];
+		this.windowStart = new long[slots];
+		this.open = new boolean[slots];
+		this.slotMask = slots - 1;
+	}
+
+	/**
+	 * @return the number of slots in the table.
+	 */
+	int getSlots() {
+		return this.open.length;
+	}
+
+	/**
+	 * Finds the slot for a key.
+	 * 
+	 * @return the slot of the key's open window, or the bitwise complement of
+	 *         the slot to open a new window in. That slot may still hold
+	 *         another key's window, which must be closed first.
+	 */
+	int lookup(final long k0, final long k1, final long k2, final long k3,
+			final int m) {
+		int hash = LatestSampleTable.hashKey(k0, k1, k2, k3, m);
+		// Slots are emptied by flushes, so check the whole probe range
+		int free = -1;
+		int oldest = -1;
+		for (int i = 0; i < MAX_PROBES; ++i) {
+			int index = (hash + i) & this.slotMask;
+			if (!this.open[index]) {
+				if (free < 0) {
+					free = index;
+				}
+				continue;
+			}
+			if (this.key1[index] == k1 && this.key3[index] == k3
+					&& this.key0[index] == k0 && this.key2[index] == k2
+					&& this.meta[index] == m) {
+				return index;
+			}
+			if (oldest < 0
+					|| this.windowStart[index] < this.windowStart[oldest]) {
+				oldest = index;
+			}
+		}
+		return ~(free < 0 ? oldest : free);
+	}
+
+	/**
+	 * Starts a window for a key in a slot.
+	 */
+	void open(final int index, final long k0, final long k1, final long k2,
+			final long k3, final int m, final long now) {
+		this.key0[index] = k0;
+		this.key1[index] = k1;
+		this.key2[index] = k2;
+		this.key3[index] = k3;
+		this.meta[index] = m;
+		this.windowStart[index] = now;
+		this.open[index] = true;
+	}
+
+	/**
+	 * Empties a slot.
+	 */
+	void close(final int index) {
+		this.open[index] = false;
+	}
+
+	/**
+	 * @return {@code true} if the slot holds an open window.
+	 */
+	boolean isOpen(final int index) {
+		return this.open[index];
+	}
+
+	/**
+	 * @return {@code true} if the slot's window has reached its full length.
+	 */
+	boolean isExpired(final int index, final long now) {
+		return now - this.windowStart[index] >= this.window;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptivePoolSizerTest {
+
+	private static final long SECOND = 1000000000l;
+
+	@Test
+	public void growsAfterSustainedBacklog() {
+		AdaptivePoolSizer sizer = new AdaptivePoolSizer(2, 16, 5);
+		long now = SECOND;
+		assertEquals(2, sizer.update(0, 0, 0, now));
+		// Two busy threads with a long queue, completing 100 tasks a second
+		now += SECOND;
+		assertEquals(2, sizer.update(1000, 2, 100, now));
+		now += SECOND;
+		assertEquals(4, sizer.update(1000, 2, 200, now));
+		now += SECOND;
+		assertEquals(4, sizer.update(1000, 4, 300, now));
+		now += SECOND;
+		assertEquals(8, sizer.update(1000, 4, 400, now));
+		for (int i = 0; i < 10; ++i) {
+			now += SECOND;
+			sizer.update(1000, 8, 500 + i * 100, now);
+		}
+		assertEquals(16, sizer.getSize());
+	}
+
+	@Test
+	public void shrinksSlowlyWhenIdle() {
+		AdaptivePoolSizer sizer = new AdaptivePoolSizer(2, 4, 5);
+		long now = SECOND;
+		sizer.update(0, 0, 0, now);
+		long completed = 0;
+		for (int i = 0; i < 2; ++i) {
+			now += SECOND;
+			completed += 100;
+			sizer.update(1000, 2, completed, now);
+		}
+		assertEquals(4, sizer.getSize());
+
+		// Let the smoothed queue length decay below one
+		int checks = 0;
+		while (sizer.getSize() == 4) {
+			now += SECOND;
+			sizer.update(0, 0, completed, now);
+			++checks;
+		}
+		assertEquals(3, sizer.getSize());
+		assertTrue(checks >= AdaptivePoolSizer.SHRINK_CHECKS);
+
+		for (int i = 0; i < 100; ++i) {
+			now += SECOND;
+			sizer.update(0, 0, completed, now);
+		}
+		assertEquals(2, sizer.getSize());
+	}
+
+	@Test
+	public void holdsSizeUnderSteadyLoad() {
+		AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 8, 5);
+		long now = SECOND;
+		sizer.update(0, 0, 0, now);
+		// Half-busy thread keeping up with its input
+		for (int i = 1; i <= 50; ++i) {
+			now += SECOND;
+			sizer.update(0, i % 2, i * 1000, now);
+		}
+		assertEquals(1, sizer.getSize());
+	}
+
+	@Test
+	public void appliesSizeToPool() throws Exception {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 4, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			AdaptivePoolSizer sizer = new AdaptivePoolSizer(1, 4, 1);
+			final Object lock = new Object();
+			synchronized (lock) {
+				for (int i = 0; i < 20; ++i) {
+					pool.execute(new Runnable() {
+						@Override
+						public void run() {
+							synchronized (lock) {
+								// Blocks until the test releases the lock
+							}
+						}
+					});
+				}
+				for (int i = 0; i < 10; ++i) {
+					sizer.adjust(pool);
+					Thread.sleep(5);
+				}
+				assertEquals(4, pool.getCorePoolSize());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
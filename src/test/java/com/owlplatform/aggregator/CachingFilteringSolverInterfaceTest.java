@@ -0,0 +1,208 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static com.owlplatform.aggregator.TestSamples.makeRule;
+import static com.owlplatform.aggregator.TestSamples.makeSample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+public class CachingFilteringSolverInterfaceTest {
+
+	private static LocalSolverInterface makeSolver() {
+		return new LocalSolverInterface(new LocalSolver() {
+			@Override
+			public void sampleReceived(SampleMessage sample) {
+				// Ignored
+			}
+		}, 0);
+	}
+
+	@Test
+	public void addedRuleAdmitsRejectedDevice() {
+		LocalSolverInterface solver = makeSolver();
+		solver.addEffectiveRule(makeRule(1));
+		assertFalse(solver.sendSample(makeSample(2)));
+
+		solver.addEffectiveRule(makeRule(2));
+		assertTrue(solver.sendSample(makeSample(2)));
+		assertTrue(solver.sendSample(makeSample(1)));
+	}
+
+	@Test
+	public void removedRuleRejectsCachedDevice() {
+		LocalSolverInterface solver = makeSolver();
+		SubscriptionRequestRule rule1 = makeRule(1);
+		solver.addEffectiveRule(rule1);
+		solver.addEffectiveRule(makeRule(2));
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertTrue(solver.sendSample(makeSample(2)));
+
+		assertTrue(solver.removeEffectiveRule(rule1));
+		assertFalse(solver.removeEffectiveRule(rule1));
+		assertFalse(solver.sendSample(makeSample(1)));
+		assertTrue(solver.sendSample(makeSample(2)));
+	}
+
+	@Test
+	public void clearedRulesDoNotLeaveStaleResults() {
+		LocalSolverInterface solver = makeSolver();
+		solver.addEffectiveRule(makeRule(1));
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertFalse(solver.sendSample(makeSample(2)));
+
+		solver.clearEffectiveRules();
+		solver.addEffectiveRule(makeRule(2));
+		assertFalse(solver.sendSample(makeSample(1)));
+		assertTrue(solver.sendSample(makeSample(2)));
+	}
+
+	@Test
+	public void replacedRulesKeepCommonRules() {
+		LocalSolverInterface solver = makeSolver();
+		SubscriptionRequestRule rule1 = makeRule(1);
+		SubscriptionRequestRule rule2 = makeRule(2);
+		solver.addEffectiveRule(rule1);
+		solver.addEffectiveRule(rule2);
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertTrue(solver.sendSample(makeSample(2)));
+		assertFalse(solver.sendSample(makeSample(3)));
+
+		solver.replaceEffectiveRules(Arrays.asList(rule2, makeRule(3)));
+		assertFalse(solver.sendSample(makeSample(1)));
+		assertTrue(solver.sendSample(makeSample(2)));
+		assertTrue(solver.sendSample(makeSample(3)));
+		assertEquals(2, solver.getEffectiveRules().size());
+	}
+
+	@Test
+	public void staleSamplesAreDropped() throws InterruptedException {
+		LocalSolverInterface solver = makeSolver();
+		solver.addEffectiveRule(makeRule(1));
+		solver.setMaxSampleAge(5);
+		SampleMessage old = makeSample(1);
+		Thread.sleep(20);
+		assertFalse(solver.sendSample(old));
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertEquals(1, solver.getAndClearStaleSamples());
+	}
+
+	@Test
+	public void staleSamplesKeepUpdateInterval() throws InterruptedException {
+		LocalSolverInterface solver = makeSolver();
+		SubscriptionRequestRule rule = makeRule(1);
+		rule.setUpdateInterval(60000);
+		solver.addEffectiveRule(rule);
+		solver.setMaxSampleAge(50);
+		SampleMessage old = makeSample(1);
+		Thread.sleep(100);
+		assertFalse(solver.sendSample(old));
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertEquals(1, solver.getAndClearStaleSamples());
+	}
+
+	@Test
+	public void replacedRulesKeepRequestOrder() {
+		LocalSolverInterface solver = makeSolver();
+		SubscriptionRequestRule slow = makeRule(1);
+		slow.setUpdateInterval(60000);
+		SubscriptionRequestRule any = makeRule(0);
+		any.getTransmitters()[0].setMask(new byte[16]);
+		solver.replaceEffectiveRules(Arrays.asList(slow, any));
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertFalse(solver.sendSample(makeSample(1)));
+
+		// The unlimited rule now matches first
+		solver.replaceEffectiveRules(Arrays.asList(any, slow));
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertEquals(any, solver.getEffectiveRules().iterator().next());
+	}
+
+	@Test
+	public void spillsSamplesOverBudget() throws IOException {
+		File directory = File.createTempFile("spilltest", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+		final List<SampleMessage> written = new ArrayList<SampleMessage>();
+		DummySession session = new DummySession();
+		session.setHandler(new IoHandlerAdapter() {
+			@Override
+			public void messageSent(IoSession ioSession, Object message) {
+				written.add((SampleMessage) message);
+			}
+		});
+		CachingFilteringSolverInterface solver = new CachingFilteringSolverInterface();
+		solver.setSession(session);
+		solver.setSentSubscriptionResponse(true);
+		SolverOptions options = new SolverOptions();
+		options.setSpillDirectory(directory.getPath());
+		solver.setOptions(options);
+		SubscriptionRequestRule rule = makeRule(0);
+		rule.getTransmitters()[0].setMask(new byte[16]);
+		solver.addEffectiveRule(rule);
+		// Room for exactly 3 samples
+		SolverBufferBudget budget = new SolverBufferBudget(
+				3 * SolverBufferBudget.getQueuedLength(makeSample(0)));
+		budget.register();
+		solver.setBufferBudget(budget);
+		try {
+			for (int i = 0; i < 10; ++i) {
+				assertTrue(solver.sendSample(makeSample(i)));
+			}
+			assertEquals(3, written.size());
+
+			// Nothing is lost while the budget stays exhausted
+			assertEquals(0, solver.drainSpillQueue());
+
+			int released = 0;
+			for (int round = 0; round < 10 && written.size() < 10; ++round) {
+				while (released < written.size()) {
+					solver.sampleSent(written.get(released++));
+				}
+				solver.drainSpillQueue();
+			}
+			assertEquals(10, written.size());
+			for (int i = 0; i < 10; ++i) {
+				assertTrue(Arrays.equals(makeSample(i).getDeviceId(), written
+						.get(i).getDeviceId()));
+			}
+		} finally {
+			solver.closeSpillQueue();
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.protocol.messages.Transmitter;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+public class CompiledRuleSetTest {
+
+	Logger log = LoggerFactory.getLogger(CompiledRuleSetTest.class);
+
+	public static final int NUM_TRANSMITTERS = 500;
+
+	public static final int NUM_SAMPLES = 1000;
+
+	public static final int BENCHMARK_ROUNDS = 200;
+
+	private final Random random = new Random(42);
+
+	private byte[] randomId() {
+		byte[] id = new byte[16];
+		this.random.nextBytes(id);
+		return id;
+	}
+
+	private Transmitter randomTransmitter() {
+		byte[] mask = new byte[16];
+		// Mask off a random suffix so that some samples match
+		int maskBytes = 14 + this.random.nextInt(3);
+		for (int i = 0; i < maskBytes; ++i) {
+			mask[i] = (byte) 0xFF;
+		}
+		byte[] baseId = this.randomId();
+		for (int i = 0; i < baseId.length; ++i) {
+			baseId[i] &= mask[i];
+		}
+		Transmitter txer = new Transmitter();
+		txer.setBaseId(baseId);
+		txer.setMask(mask);
+		return txer;
+	}
+
+	private List<SubscriptionRequestRule> makeRules() {
+		List<SubscriptionRequestRule> rules = new ArrayList<SubscriptionRequestRule>();
+		for (int r = 0; r < 4; ++r) {
+			SubscriptionRequestRule rule = new SubscriptionRequestRule();
+			rule.setPhysicalLayer((byte) r);
+			Transmitter[] txers = new Transmitter[NUM_TRANSMITTERS / 4];
+			for (int i = 0; i < txers.length; ++i) {
+				txers[i] = this.randomTransmitter();
+			}
+			rule.setTransmitters(txers);
+			rules.add(rule);
+		}
+		return rules;
+	}
+
+	private SampleMessage[] makeSamples(List<SubscriptionRequestRule> rules) {
+		SampleMessage[] samples = new SampleMessage[NUM_SAMPLES];
+		for (int i = 0; i < samples.length; ++i) {
+			samples[i] = SampleMessage.getTestMessage();
+			samples[i].setPhysicalLayer((byte) this.random.nextInt(4));
+			if ((i & 1) == 0) {
+				// Derive from a rule so roughly half the samples can match
+				SubscriptionRequestRule rule = rules.get(this.random
+						.nextInt(rules.size()));
+				byte[] id = rule.getTransmitters()[this.random.nextInt(rule
+						.getNumTransmitters())].getBaseId().clone();
+				id[15] ^= (byte) this.random.nextInt(4);
+				samples[i].setDeviceId(id);
+			} else {
+				samples[i].setDeviceId(this.randomId());
+			}
+		}
+		return samples;
+	}
+
+	private static SubscriptionRequestRule applyRules(
+			List<SubscriptionRequestRule> rules, SampleMessage sample) {
+		for (SubscriptionRequestRule rule : rules) {
+			if (SubscriptionRuleFilter.applyRule(rule, sample)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void equivalenceTest() {
+		List<SubscriptionRequestRule> rules = this.makeRules();
+		CompiledRuleSet compiled = new CompiledRuleSet(rules);
+		for (SampleMessage sample : this.makeSamples(rules)) {
+			SubscriptionRequestRule expected = applyRules(rules, sample);
+			CompiledRule actual = compiled.match(sample);
+			assertEquals(expected, actual == null ? null : actual.getRule());
+		}
+	}
+
+	@Test
+	public void matchBenchmark() {
+		List<SubscriptionRequestRule> rules = this.makeRules();
+		CompiledRuleSet compiled = new CompiledRuleSet(rules);
+		SampleMessage[] samples = this.makeSamples(rules);
+
+		int matched = 0;
+		long start = System.nanoTime();
+		for (int round = 0; round < BENCHMARK_ROUNDS; ++round) {
+			for (SampleMessage sample : samples) {
+				if (applyRules(rules, sample) != null) {
+					++matched;
+				}
+			}
+		}
+		long filterTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int round = 0; round < BENCHMARK_ROUNDS; ++round) {
+			for (SampleMessage sample : samples) {
+				if (compiled.match(sample) != null) {
+					--matched;
+				}
+			}
+		}
+		long compiledTime = System.nanoTime() - start;
+		assertEquals(0, matched);
+
+		float evaluations = (float) BENCHMARK_ROUNDS * samples.length;
+		this.log.info(String.format(
+				"%d transmitter masks: SubscriptionRuleFilter %,1.1f ns/sample, CompiledRuleSet %,1.1f ns/sample",
+				Integer.valueOf(NUM_TRANSMITTERS),
+				Float.valueOf(filterTime / evaluations),
+				Float.valueOf(compiledTime / evaluations)));
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import junit.framework.Assert;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+import com.owlplatform.sensor.listeners.ConnectionListener;
+import com.owlplatform.solver.SolverAggregatorInterface;
+import com.owlplatform.solver.listeners.SampleListener;
+import com.owlplatform.solver.protocol.messages.SubscriptionMessage;
+
+/**
+ * Loopback benchmark comparing TCP and UDP sensor ingest.
+ */
+public class DatagramIngestTest implements SampleListener, ConnectionListener,
+		com.owlplatform.solver.listeners.ConnectionListener {
+
+	Logger log = LoggerFactory.getLogger(DatagramIngestTest.class);
+
+	public static int SOLVER_PORT = 8108;
+	public static int SENSOR_PORT = 8107;
+	public static int DATAGRAM_PORT = 8109;
+
+	public static final int BENCHMARK_SAMPLES = 10000;
+
+	public static final int SAMPLES_PER_DATAGRAM = 8;
+
+	private volatile int receivedSampleIndex = 0;
+
+	private volatile boolean readySensor = false;
+
+	private volatile boolean readySolver = false;
+
+	private volatile long startReceive = 0l;
+	private volatile long endReceive = 0l;
+
+	private static Aggregator aggregator;
+
+	@BeforeClass
+	public static void setupAggregator() {
+		AggregatorConfiguration config = new AggregatorConfiguration();
+		config.setSensorListenPort(SENSOR_PORT);
+		config.setSolverListenPort(SOLVER_PORT);
+		config.setSensorDatagramPort(DATAGRAM_PORT);
+		DatagramIngestTest.aggregator = new Aggregator();
+		DatagramIngestTest.aggregator.setConfig(config);
+
+		DatagramIngestTest.aggregator.init();
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			// Ignored
+		}
+	}
+
+	@AfterClass
+	public static void destroyAggregator() {
+		if (DatagramIngestTest.aggregator != null) {
+			DatagramIngestTest.aggregator.shutdown();
+		}
+	}
+
+	@Before
+	public void prepVariables() {
+		this.readySensor = false;
+		this.readySolver = false;
+		this.startReceive = 0l;
+		this.endReceive = 0l;
+		this.receivedSampleIndex = 0;
+	}
+
+	@Test
+	public void ingestBenchmark() throws Exception {
+		SampleMessage[] samples = new SampleMessage[BENCHMARK_SAMPLES];
+		for (int i = 0; i < samples.length; ++i) {
+			samples[i] = SampleMessage.getTestMessage();
+			samples[i].setRssi(i * 0.01f);
+		}
+
+		SolverAggregatorInterface solverAgg = new SolverAggregatorInterface();
+		solverAgg.setHost("localhost");
+		solverAgg.setPort(SOLVER_PORT);
+		solverAgg.addSampleListener(this);
+		solverAgg.addConnectionListener(this);
+		assertTrue("Unable to start Solver-Aggregator interface.",
+				solverAgg.doConnectionSetup());
+		while (!this.readySolver) {
+			Thread.sleep(100);
+		}
+
+		// TCP ingest
+		SensorAggregatorInterface senseAgg = new SensorAggregatorInterface();
+		senseAgg.setHost("localhost");
+		senseAgg.setPort(SENSOR_PORT);
+		senseAgg.addConnectionListener(this);
+		assertTrue("Unable to start Sensor-Aggregator interface.",
+				senseAgg.doConnectionSetup());
+		while (!this.readySensor) {
+			Thread.sleep(100);
+		}
+
+		long tcpStart = System.currentTimeMillis();
+		for (int i = 0; i < samples.length; ++i) {
+			assertTrue("Unable to send sample " + samples[i],
+					senseAgg.sendSample(samples[i]));
+			if ((i & 0x0F) == 0) {
+				Thread.sleep(1);
+			}
+		}
+		this.awaitSamples();
+		int tcpReceived = this.receivedSampleIndex;
+		long tcpTime = this.endReceive - tcpStart;
+		senseAgg.disconnect();
+
+		// UDP ingest
+		this.receivedSampleIndex = 0;
+		DatagramSocket socket = new DatagramSocket();
+		InetAddress localhost = InetAddress.getByName("localhost");
+		IoBuffer buffer = IoBuffer.allocate(65535);
+		long udpStart = System.currentTimeMillis();
+		for (int i = 0; i < samples.length; i += SAMPLES_PER_DATAGRAM) {
+			buffer.clear();
+			for (int j = i; j < i + SAMPLES_PER_DATAGRAM && j < samples.length; ++j) {
+				SampleEncoding.encode(samples[j], buffer);
+			}
+			buffer.flip();
+			socket.send(new DatagramPacket(buffer.array(), buffer.limit(),
+					localhost, DATAGRAM_PORT));
+			if ((i & 0x0F) == 0) {
+				Thread.sleep(1);
+			}
+		}
+		this.awaitSamples();
+		int udpReceived = this.receivedSampleIndex;
+		long udpTime = this.endReceive - udpStart;
+		socket.close();
+
+		solverAgg.disconnect();
+
+		this.log.info(String.format(
+				"TCP: %d/%d samples in %d ms (%.2f S/s)\n"
+						+ "UDP: %d/%d samples in %d ms (%.2f S/s)",
+				Integer.valueOf(tcpReceived), Integer.valueOf(samples.length),
+				Long.valueOf(tcpTime),
+				Float.valueOf(tcpReceived * 1000f / tcpTime),
+				Integer.valueOf(udpReceived), Integer.valueOf(samples.length),
+				Long.valueOf(udpTime),
+				Float.valueOf(udpReceived * 1000f / udpTime)));
+
+		Assert.assertEquals("Didn't receive all TCP samples.", samples.length,
+				tcpReceived);
+		assertTrue("Didn't receive any UDP samples.", udpReceived > 0);
+	}
+
+	private void awaitSamples() throws InterruptedException {
+		Thread.sleep(100);
+		while (this.endReceive > (System.currentTimeMillis() - 200)) {
+			Thread.sleep(100);
+		}
+	}
+
+	@Override
+	public void sampleReceived(SolverAggregatorInterface aggregator,
+			SampleMessage sample) {
+		if (this.receivedSampleIndex == 0) {
+			this.startReceive = System.currentTimeMillis();
+		}
+		++this.receivedSampleIndex;
+		this.endReceive = System.currentTimeMillis();
+	}
+
+	@Override
+	public void connectionEnded(SensorAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void connectionEstablished(SensorAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void connectionInterrupted(SensorAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void readyForSamples(SensorAggregatorInterface aggregator) {
+		this.readySensor = true;
+	}
+
+	@Override
+	public void connectionEnded(SolverAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void connectionEstablished(SolverAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void connectionInterrupted(SolverAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void subscriptionReceived(SolverAggregatorInterface aggregator,
+			SubscriptionMessage response) {
+		this.readySolver = true;
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares a fixed-size dispatch pool with one sized by an
+ * {@link AdaptivePoolSizer} from a quarter of the CPUs up to the fixed size.
+ * At low load, tasks arrive about every half millisecond and the queueing
+ * delay of each is measured. At peak load, bursts of tasks are queued as fast
+ * as possible; the adaptive pool is given a second of bursts to grow before
+ * the best throughput of several bursts is measured. The adaptive pool must
+ * have no worse low-load tail latency and, within noise, no lower peak
+ * throughput. The number of tasks can be changed
+ * with the {@code benchmark.lowLoadTasks} and {@code benchmark.peakTasks}
+ * system properties.
+ */
+public class DispatchPoolBenchmarkTest {
+
+	static final Logger log = LoggerFactory
+			.getLogger(DispatchPoolBenchmarkTest.class);
+
+	public static final int LOW_LOAD_TASKS = Integer.getInteger(
+			"benchmark.lowLoadTasks", 2000).intValue();
+
+	public static final int PEAK_TASKS = Integer.getInteger(
+			"benchmark.peakTasks", 100000).intValue();
+
+	/**
+	 * Iterations of busy work done by each task, roughly a microsecond.
+	 */
+	private static final int WORK_ROUNDS = 200;
+
+	/**
+	 * How long the pools are loaded before peak throughput is measured.
+	 */
+	private static final long WARMUP_NANOS = 1000000000l;
+
+	/**
+	 * Number of bursts measured at peak load; the best is kept.
+	 */
+	private static final int PEAK_TRIALS = 3;
+
+	/**
+	 * Percentage by which adaptive peak throughput may fall below fixed
+	 * throughput and still count as equal.
+	 */
+	private static final int NOISE_PERCENT = 10;
+
+	private static final int MAX_THREADS = Runtime.getRuntime()
+			.availableProcessors() * 2;
+
+	private static final int MIN_THREADS = Math.max(1, Runtime.getRuntime()
+			.availableProcessors() / 4);
+
+	/**
+	 * Keeps the busy work from being optimized away.
+	 */
+	static volatile long sink = 0;
+
+	@Test
+	public void compareFixedAndAdaptive() throws Exception {
+		long[] fixed = run(MAX_THREADS, null);
+		long[] adaptive = run(MIN_THREADS, new AdaptivePoolSizer(MIN_THREADS,
+				MAX_THREADS, 5));
+
+		log.info(String.format(
+				"Fixed %d threads: p50 %,d ns, p99 %,d ns at low load, %,d tasks/s at peak",
+				Integer.valueOf(MAX_THREADS), Long.valueOf(fixed[0]),
+				Long.valueOf(fixed[1]), Long.valueOf(fixed[2])));
+		log.info(String.format(
+				"Adaptive %d-%d threads: p50 %,d ns, p99 %,d ns at low load, %,d tasks/s at peak",
+				Integer.valueOf(MIN_THREADS), Integer.valueOf(MAX_THREADS),
+				Long.valueOf(adaptive[0]), Long.valueOf(adaptive[1]),
+				Long.valueOf(adaptive[2])));
+		assertTrue("Adaptive low-load p99 latency exceeded fixed.",
+				adaptive[1] <= fixed[1]);
+		assertTrue("Adaptive peak throughput fell below fixed.",
+				adaptive[2] * 100 >= fixed[2] * (100 - NOISE_PERCENT));
+	}
+
+	/**
+	 * Runs the low-load and peak phases on a new pool.
+	 * 
+	 * @return the median and 99th-percentile low-load queueing delay, in
+	 *         nanoseconds, and the best peak throughput, in tasks per second.
+	 */
+	private static long[] run(final int coreThreads,
+			final AdaptivePoolSizer sizer) throws InterruptedException {
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(coreThreads,
+				MAX_THREADS, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		Timer timer = new Timer(true);
+		if (sizer != null) {
+			timer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					sizer.adjust(pool);
+				}
+			}, 250, 250);
+		}
+		try {
+			long[] result = new long[3];
+			long[] latencies = lowLoad(pool);
+			Arrays.sort(latencies);
+			result[0] = latencies[latencies.length / 2];
+			result[1] = latencies[(int) ((latencies.length - 1) * 0.99f)];
+
+			long warmupStart = System.nanoTime();
+			while (System.nanoTime() - warmupStart < WARMUP_NANOS) {
+				burst(pool);
+			}
+			for (int i = 0; i < PEAK_TRIALS; ++i) {
+				long start = System.nanoTime();
+				burst(pool);
+				result[2] = Math.max(result[2], PEAK_TASKS * 1000000000l
+						/ Math.max(1, System.nanoTime() - start));
+			}
+			return result;
+		} finally {
+			timer.cancel();
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Queues tasks at a low, steady rate.
+	 * 
+	 * @return the queueing delay of each task, in nanoseconds.
+	 */
+	private static long[] lowLoad(final ThreadPoolExecutor pool)
+			throws InterruptedException {
+		final long[] latencies = new long[LOW_LOAD_TASKS];
+		final CountDownLatch done = new CountDownLatch(LOW_LOAD_TASKS);
+		for (int i = 0; i < LOW_LOAD_TASKS; ++i) {
+			final int index = i;
+			final long queued = System.nanoTime();
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					latencies[index] = System.nanoTime() - queued;
+					work();
+					done.countDown();
+				}
+			});
+			if ((i & 1) == 0) {
+				Thread.sleep(1);
+			}
+		}
+		done.await();
+		return latencies;
+	}
+
+	/**
+	 * Queues {@link #PEAK_TASKS} tasks at once and waits for all of them.
+	 */
+	private static void burst(final ThreadPoolExecutor pool)
+			throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(PEAK_TASKS);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				work();
+				done.countDown();
+			}
+		};
+		for (int i = 0; i < PEAK_TASKS; ++i) {
+			pool.execute(task);
+		}
+		done.await();
+	}
+
+	/**
+	 * Does about a microsecond of work, like evaluating a sample.
+	 */
+	static void work() {
+		long value = System.nanoTime();
+		for (int i = 0; i < WORK_ROUNDS; ++i) {
+			value = LatestSampleTable.hashKey(value, i, value >>> 7, i, 0)
+					* 31 + i;
+		}
+		sink = value;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HeavyHitterSketchTest {
+
+	private static final HeavyHitterSketch.Labeler<String> LABELER = new HeavyHitterSketch.Labeler<String>() {
+		@Override
+		public String getLabel(final String source) {
+			return source;
+		}
+	};
+
+	private static void add(HeavyHitterSketch sketch, String key) {
+		sketch.add(HeavyHitterSketch.hashId(key.getBytes()), key, LABELER);
+	}
+
+	@Test
+	public void findsHeavyHitters() {
+		HeavyHitterSketch sketch = new HeavyHitterSketch(256, 4, 3);
+		for (int i = 0; i < 5000; ++i) {
+			add(sketch, "noise" + i);
+			if (i % 5 == 0) {
+				add(sketch, "chatty");
+			}
+			if (i % 10 == 0) {
+				add(sketch, "busy");
+			}
+		}
+		HeavyHitterSketch.HeavyHitter[] top = sketch.getAndClear();
+		assertEquals(3, top.length);
+		assertEquals("chatty", top[0].getLabel());
+		assertTrue(top[0].getCount() >= 1000);
+		assertEquals("busy", top[1].getLabel());
+		assertTrue(top[1].getCount() >= 500);
+	}
+
+	@Test
+	public void startsNewInterval() {
+		HeavyHitterSketch sketch = new HeavyHitterSketch(256, 4, 3);
+		add(sketch, "a");
+		add(sketch, "a");
+		assertEquals(2, sketch.getAndClear()[0].getCount());
+		assertEquals(2, sketch.getLastInterval()[0].getCount());
+		add(sketch, "a");
+		assertEquals(1, sketch.getAndClear()[0].getCount());
+	}
+}
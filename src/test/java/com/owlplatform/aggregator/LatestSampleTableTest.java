@@ -0,0 +1,97 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static com.owlplatform.aggregator.TestSamples.makeSample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class LatestSampleTableTest {
+
+	@Test
+	public void keepsLatestPerReceiver() {
+		LatestSampleTable table = new LatestSampleTable(1024, 1000);
+		table.update(makeSample(1, 1), 0);
+		table.update(makeSample(1, 2), 0);
+		SampleMessage latest = makeSample(1, 1);
+		table.update(latest, 10);
+
+		List<SampleMessage> snapshot = new ArrayList<SampleMessage>();
+		assertEquals(2, table.snapshot(snapshot, 10));
+		assertTrue(snapshot.contains(latest));
+	}
+
+	@Test
+	public void excludesExpiredSamples() {
+		LatestSampleTable table = new LatestSampleTable(1024, 1000);
+		table.update(makeSample(1, 1), 0);
+		SampleMessage recent = makeSample(2, 1);
+		table.update(recent, 1500);
+
+		List<SampleMessage> snapshot = new ArrayList<SampleMessage>();
+		assertEquals(1, table.snapshot(snapshot, 1600));
+		assertSame(recent, snapshot.get(0));
+	}
+
+	@Test
+	public void boundedByCapacity() {
+		LatestSampleTable table = new LatestSampleTable(256, 100000);
+		for (int i = 0; i < 2000; ++i) {
+			table.update(makeSample(i, 1), i);
+		}
+		List<SampleMessage> snapshot = new ArrayList<SampleMessage>();
+		int size = table.snapshot(snapshot, 2000);
+		assertTrue(size <= 256);
+		assertTrue(size > 128);
+	}
+
+	@Test
+	public void queryByDeviceMaskAndReceiver() {
+		LatestSampleTable table = new LatestSampleTable(1024, 1000);
+		for (int device = 0; device < 8; ++device) {
+			for (int receiver = 1; receiver <= 3; ++receiver) {
+				table.update(makeSample(device, receiver), 0);
+			}
+		}
+		byte[] device = new byte[] { 5 };
+		byte[] receiver = new byte[] { 2 };
+		List<SampleMessage> result = new ArrayList<SampleMessage>();
+		assertEquals(3, table.query(result, 0, device, null, null));
+
+		result.clear();
+		assertEquals(1, table.query(result, 0, device, null, receiver));
+
+		result.clear();
+		// Even device IDs only
+		assertEquals(12, table.query(result, 0, new byte[] { 0 },
+				new byte[] { 1 }, null));
+
+		result.clear();
+		assertEquals(8, table.query(result, 0, null, null, receiver));
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static com.owlplatform.aggregator.TestSamples.makeRule;
+import static com.owlplatform.aggregator.TestSamples.makeSample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class LocalSolverInterfaceTest {
+
+	@Test
+	public void directDeliveryTest() {
+		final List<SampleMessage> received = new ArrayList<SampleMessage>();
+		LocalSolverInterface solver = new LocalSolverInterface(
+				new LocalSolver() {
+					@Override
+					public void sampleReceived(SampleMessage sample) {
+						received.add(sample);
+					}
+				}, 0);
+		solver.addEffectiveRule(makeRule(1));
+
+		assertTrue(solver.sendSample(makeSample(1)));
+		assertFalse(solver.sendSample(makeSample(2)));
+		assertEquals(1, received.size());
+	}
+
+	@Test
+	public void queuedDeliveryTest() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger delivered = new AtomicInteger(0);
+		LocalSolverInterface solver = new LocalSolverInterface(
+				new LocalSolver() {
+					@Override
+					public void sampleReceived(SampleMessage sample) {
+						try {
+							release.await();
+						} catch (InterruptedException ie) {
+							return;
+						}
+						delivered.incrementAndGet();
+					}
+				}, 2);
+
+		int accepted = 0;
+		for (int i = 0; i < 10; ++i) {
+			if (solver.sendSample(makeSample(i))) {
+				++accepted;
+			}
+		}
+		// One sample held by the delivery thread, two queued
+		assertTrue(accepted <= 3);
+		assertEquals(10 - accepted, solver.getAndClearDroppedPackets());
+		release.countDown();
+		for (int i = 0; i < 100 && delivered.get() < accepted; ++i) {
+			Thread.sleep(10);
+		}
+		assertEquals(accepted, delivered.get());
+		solver.close();
+	}
+
+	@Test
+	public void countsOnlyDeliveredBytes() throws InterruptedException {
+		long length = SolverBufferBudget.getQueuedLength(makeSample(1));
+		LocalSolverInterface direct = new LocalSolverInterface(
+				new LocalSolver() {
+					@Override
+					public void sampleReceived(SampleMessage sample) {
+						// Ignored
+					}
+				}, 0);
+		direct.addEffectiveRule(makeRule(1));
+		assertTrue(direct.sendSample(makeSample(1)));
+		assertEquals(length, direct.getCostAccount().getBytes());
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger delivered = new AtomicInteger(0);
+		LocalSolverInterface queued = new LocalSolverInterface(
+				new LocalSolver() {
+					@Override
+					public void sampleReceived(SampleMessage sample) {
+						try {
+							release.await();
+						} catch (InterruptedException ie) {
+							return;
+						}
+						delivered.incrementAndGet();
+					}
+				}, 1);
+		int accepted = 0;
+		for (int i = 0; i < 10; ++i) {
+			if (queued.sendSample(makeSample(i))) {
+				++accepted;
+			}
+		}
+		assertTrue(accepted < 10);
+		release.countDown();
+		for (int i = 0; i < 100
+				&& queued.getCostAccount().getBytes() < accepted * length; ++i) {
+			Thread.sleep(10);
+		}
+		// Dropped samples are not billed
+		assertEquals(accepted, delivered.get());
+		assertEquals(accepted * length, queued.getCostAccount().getBytes());
+		queued.close();
+	}
+
+	@Test
+	public void nullOptionsUseDefaults() {
+		AggregatorConfiguration config = new AggregatorConfiguration();
+		Aggregator aggregator = new Aggregator();
+		aggregator.setConfig(config);
+		try {
+			LocalSolverInterface solver = aggregator.addLocalSolver(
+					new LocalSolver() {
+						@Override
+						public void sampleReceived(SampleMessage sample) {
+							// Ignored
+						}
+					}, null, 0, null);
+			assertSame(config.getDefaultSolverOptions(), solver.getOptions());
+			aggregator.removeLocalSolver(solver);
+		} finally {
+			aggregator.shutdown();
+		}
+	}
+
+	@Test
+	public void solverLimitCanExceedAggregatorLimit()
+			throws InterruptedException {
+		AggregatorConfiguration config = new AggregatorConfiguration();
+		config.setMaxSampleAge(10);
+		Aggregator aggregator = new Aggregator();
+		aggregator.setConfig(config);
+		LocalSolver ignored = new LocalSolver() {
+			@Override
+			public void sampleReceived(SampleMessage sample) {
+				// Ignored
+			}
+		};
+		try {
+			SampleMessage old = makeSample(1);
+			Thread.sleep(50);
+			LocalSolverInterface global = aggregator.addLocalSolver(ignored,
+					null, 0, new SolverOptions());
+			assertEquals(10, global.getMaxSampleAge());
+			assertTrue(aggregator.isStale(old));
+
+			SolverOptions options = new SolverOptions();
+			options.setMaxSampleAge(60000);
+			LocalSolverInterface patient = aggregator.addLocalSolver(ignored,
+					null, 0, options);
+			assertEquals(60000, patient.getMaxSampleAge());
+			assertFalse(aggregator.isStale(old));
+			aggregator.removeLocalSolver(global);
+			aggregator.removeLocalSolver(patient);
+		} finally {
+			aggregator.shutdown();
+		}
+	}
+}
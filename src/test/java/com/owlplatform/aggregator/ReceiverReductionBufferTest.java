@@ -0,0 +1,101 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class ReceiverReductionBufferTest {
+
+	private static SampleMessage makeSample(int device, int receiver,
+			float rssi, byte sequence) {
+		SampleMessage sample = TestSamples.makeSample(device, receiver);
+		sample.setRssi(rssi);
+		sample.setSensedData(new byte[] { sequence });
+		return sample;
+	}
+
+	@Test
+	public void keepsStrongestCopy() {
+		ReceiverReductionBuffer buffer = new ReceiverReductionBuffer(50, 1, 64);
+		List<SampleMessage> out = new ArrayList<SampleMessage>();
+		buffer.add(makeSample(1, 1, -70f, (byte) 1), 0, out);
+		SampleMessage strongest = makeSample(1, 2, -40f, (byte) 1);
+		buffer.add(strongest, 5, out);
+		buffer.add(makeSample(1, 3, -55f, (byte) 1), 10, out);
+		assertEquals(0, out.size());
+
+		assertEquals(1, buffer.flush(50, out));
+		assertSame(strongest, out.get(0));
+	}
+
+	@Test
+	public void keepsTopReceiversInOrder() {
+		ReceiverReductionBuffer buffer = new ReceiverReductionBuffer(50, 2, 64);
+		List<SampleMessage> out = new ArrayList<SampleMessage>();
+		for (int i = 0; i < 6; ++i) {
+			buffer.add(makeSample(1, i, -90f + 10 * (i % 4), (byte) 1), i, out);
+		}
+		buffer.flush(100, out);
+		assertEquals(2, out.size());
+		assertEquals(-60f, out.get(0).getRssi(), 0f);
+		assertEquals(-70f, out.get(1).getRssi(), 0f);
+	}
+
+	@Test
+	public void separatesTransmissions() {
+		ReceiverReductionBuffer buffer = new ReceiverReductionBuffer(50, 1, 64);
+		List<SampleMessage> out = new ArrayList<SampleMessage>();
+		buffer.add(makeSample(1, 1, -70f, (byte) 1), 0, out);
+		buffer.add(makeSample(1, 1, -70f, (byte) 2), 0, out);
+		buffer.add(makeSample(2, 1, -70f, (byte) 1), 0, out);
+		// A later copy of the first transmission closes its window
+		assertEquals(1, buffer.add(makeSample(1, 2, -70f, (byte) 1), 60, out));
+		assertEquals(2, buffer.flush(60, out));
+		assertEquals(1, buffer.flush(110, out));
+		assertEquals(4, out.size());
+	}
+
+	@Test
+	public void separatesCollidingPayloads() {
+		ReceiverReductionBuffer buffer = new ReceiverReductionBuffer(50, 1, 64);
+		List<SampleMessage> out = new ArrayList<SampleMessage>();
+		SampleMessage first = makeSample(1, 1, -70f, (byte) 0);
+		first.setSensedData(new byte[] { 0, 31 });
+		SampleMessage other = makeSample(1, 2, -40f, (byte) 0);
+		other.setSensedData(new byte[] { 1, 0 });
+		assertEquals(Arrays.hashCode(first.getSensedData()),
+				Arrays.hashCode(other.getSensedData()));
+
+		buffer.add(first, 0, out);
+		assertEquals(1, buffer.add(other, 5, out));
+		assertSame(other, out.get(0));
+		assertEquals(1, buffer.flush(50, out));
+		assertSame(first, out.get(1));
+	}
+}
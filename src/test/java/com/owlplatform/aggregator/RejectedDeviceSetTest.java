@@ -0,0 +1,65 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RejectedDeviceSetTest {
+
+	public static final int NUM_DEVICES = 20000;
+
+	private static byte[] deviceId(Random rand, int length) {
+		byte[] id = new byte[length];
+		rand.nextBytes(id);
+		return id;
+	}
+
+	@Test
+	public void addAndClear() {
+		RejectedDeviceSet set = new RejectedDeviceSet(64);
+		byte[] id = new byte[] { 1, 2, 3 };
+		assertFalse(set.contains(id));
+		set.add(id);
+		assertTrue(set.contains(id));
+		// Same value, different length
+		assertFalse(set.contains(new byte[] { 0, 1, 2, 3 }));
+		set.clear();
+		assertFalse(set.contains(id));
+	}
+
+	@Test
+	public void noFalsePositives() {
+		RejectedDeviceSet set = new RejectedDeviceSet(1024);
+		Random rand = new Random(7);
+		for (int i = 0; i < NUM_DEVICES; ++i) {
+			set.add(deviceId(rand, 16));
+		}
+		// A different seed never produces an added device
+		rand = new Random(8);
+		for (int i = 0; i < NUM_DEVICES; ++i) {
+			assertFalse(set.contains(deviceId(rand, 16)));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class ReorderBufferTest {
+
+	private static SampleMessage makeSample(long sequence) {
+		SampleMessage sample = SampleMessage.getTestMessage();
+		sample.setReceiverTimestamp(sequence);
+		return sample;
+	}
+
+	@Test
+	public void releasesInTimestampOrder() {
+		ReorderBuffer buffer = new ReorderBuffer(50, 1024);
+		List<SampleMessage> out = new ArrayList<SampleMessage>();
+		Random random = new Random(1);
+		for (int i = 0; i < 500; ++i) {
+			long timestamp = 1000 + i + random.nextInt(40);
+			assertTrue(buffer.add(makeSample(timestamp), timestamp,
+					1000 + i + 40, out));
+		}
+		buffer.flush(Long.MAX_VALUE, out);
+		assertEquals(500, out.size());
+		for (int i = 1; i < out.size(); ++i) {
+			assertTrue(out.get(i - 1).getReceiverTimestamp() <= out.get(i)
+					.getReceiverTimestamp());
+		}
+	}
+
+	@Test
+	public void dropsLateSamples() {
+		ReorderBuffer buffer = new ReorderBuffer(10, 16);
+		List<SampleMessage> out = new ArrayList<SampleMessage>();
+		buffer.add(makeSample(100), 100, 100, out);
+		assertEquals(1, buffer.flush(110, out));
+		assertFalse(buffer.add(makeSample(95), 95, 110, out));
+		assertTrue(buffer.getAndClearStatistics().contains("1 late"));
+	}
+
+	@Test
+	public void releasesEarlyWhenFull() {
+		ReorderBuffer buffer = new ReorderBuffer(1000, 4);
+		List<SampleMessage> out = new ArrayList<SampleMessage>();
+		for (int i = 5; i > 0; --i) {
+			buffer.add(makeSample(i), i, 0, out);
+		}
+		assertEquals(1, out.size());
+		assertEquals(1, out.get(0).getReceiverTimestamp());
+		buffer.add(makeSample(6), 6, 0, out);
+		assertEquals(2, out.get(1).getReceiverTimestamp());
+		assertEquals(4, buffer.size());
+	}
+}
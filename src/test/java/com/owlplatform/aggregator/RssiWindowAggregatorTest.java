@@ -0,0 +1,94 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class RssiWindowAggregatorTest {
+
+	private static SampleMessage makeSample(int device, float rssi,
+			long timestamp) {
+		SampleMessage sample = TestSamples.makeSample(device, 0);
+		sample.setRssi(rssi);
+		sample.setReceiverTimestamp(timestamp);
+		return sample;
+	}
+
+	@Test
+	public void summarizesWindow() {
+		RssiWindowAggregator aggregator = new RssiWindowAggregator(100, 64);
+		assertNull(aggregator.add(makeSample(1, -60f, 1), 0));
+		assertNull(aggregator.add(makeSample(1, -70f, 2), 50));
+		assertNull(aggregator.add(makeSample(1, -80f, 3), 99));
+
+		SampleMessage summary = aggregator.add(makeSample(1, -50f, 4), 100);
+		assertEquals(-70f, summary.getRssi(), 0.001f);
+		assertEquals(3, summary.getReceiverTimestamp());
+		ByteBuffer data = ByteBuffer.wrap(summary.getSensedData());
+		assertEquals(-80f, data.getFloat(), 0f);
+		assertEquals(-60f, data.getFloat(), 0f);
+		assertEquals(3, data.getInt());
+	}
+
+	@Test
+	public void flushesExpiredWindows() {
+		RssiWindowAggregator aggregator = new RssiWindowAggregator(100, 64);
+		aggregator.add(makeSample(1, -60f, 1), 0);
+		aggregator.add(makeSample(2, -60f, 1), 80);
+
+		List<SampleMessage> summaries = new ArrayList<SampleMessage>();
+		assertEquals(1, aggregator.flush(100, summaries));
+		assertEquals(1, aggregator.flush(180, summaries));
+		assertEquals(0, aggregator.flush(1000, summaries));
+		assertEquals(2, summaries.size());
+	}
+
+	@Test
+	public void passesLongIdentifiers() {
+		RssiWindowAggregator aggregator = new RssiWindowAggregator(100, 64);
+		SampleMessage sample = makeSample(1, -60f, 1);
+		sample.setDeviceId(new byte[20]);
+		assertSame(sample, aggregator.add(sample, 0));
+	}
+
+	@Test
+	public void boundedByCapacity() {
+		RssiWindowAggregator aggregator = new RssiWindowAggregator(100000, 16);
+		int emitted = 0;
+		for (int i = 0; i < 1000; ++i) {
+			if (aggregator.add(makeSample(i, -60f, i), i) != null) {
+				++emitted;
+			}
+		}
+		List<SampleMessage> summaries = new ArrayList<SampleMessage>();
+		aggregator.flush(Long.MAX_VALUE / 2, summaries);
+		assertEquals(1000, emitted + summaries.size());
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.Test;
+
+public class SampleCompressionFilterTest {
+
+	@Test
+	public void roundTripTest() throws Exception {
+		SampleCompressionFilter filter = new SampleCompressionFilter(1);
+		SampleCompressionFilter.Decompressor decompressor = new SampleCompressionFilter.Decompressor();
+
+		long rawTotal = 0;
+		long compressedTotal = 0;
+		for (int i = 0; i < 1000; ++i) {
+			byte[] raw = new byte[50];
+			// Repeated device/receiver identifiers, varying timestamp/RSSI
+			raw[5] = (byte) (i % 7);
+			raw[21] = (byte) (i % 3);
+			raw[40] = (byte) i;
+			raw[45] = (byte) (i * 31);
+
+			IoBuffer frame = (IoBuffer) filter.doFilterWrite(null, null,
+					new DefaultWriteRequest(IoBuffer.wrap(raw)));
+			int compressedLength = frame.getInt();
+			int rawLength = frame.getInt();
+			byte[] compressed = new byte[compressedLength];
+			frame.get(compressed);
+
+			assertArrayEquals(raw,
+					decompressor.decompress(compressed, rawLength));
+			rawTotal += raw.length;
+			compressedTotal += SampleCompressionFilter.FRAME_HEADER_LENGTH
+					+ compressedLength;
+		}
+		assertTrue("Stream did not compress (" + rawTotal + " -> "
+				+ compressedTotal + ").", compressedTotal < rawTotal);
+		filter.dispose();
+		decompressor.dispose();
+	}
+
+	@Test
+	public void concurrentWritesTest() throws Exception {
+		final SampleCompressionFilter filter = new SampleCompressionFilter(1);
+		final List<IoBuffer> frames = new ArrayList<IoBuffer>();
+		final NextFilter next = new FrameCollector(frames);
+
+		final int numThreads = 4;
+		final int numWrites = 2000;
+		Thread[] writers = new Thread[numThreads];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < numThreads; ++t) {
+			final int thread = t;
+			writers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < numWrites; ++i) {
+							filter.filterWrite(next, null,
+									new DefaultWriteRequest(IoBuffer
+											.wrap(makeRaw(thread, i))));
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+
+		SampleCompressionFilter.Decompressor decompressor = new SampleCompressionFilter.Decompressor();
+		Set<ByteBuffer> received = new HashSet<ByteBuffer>();
+		for (IoBuffer frame : frames) {
+			int compressedLength = frame.getInt();
+			int rawLength = frame.getInt();
+			byte[] compressed = new byte[compressedLength];
+			frame.get(compressed);
+			received.add(ByteBuffer.wrap(decompressor.decompress(compressed,
+					rawLength)));
+		}
+		assertEquals(numThreads * numWrites, frames.size());
+		for (int t = 0; t < numThreads; ++t) {
+			for (int i = 0; i < numWrites; ++i) {
+				assertTrue(received.contains(ByteBuffer.wrap(makeRaw(t, i))));
+			}
+		}
+		filter.dispose();
+		decompressor.dispose();
+	}
+
+	/**
+	 * Builds a sample-like message that is unique to a writer and index.
+	 */
+	static byte[] makeRaw(final int thread, final int index) {
+		byte[] raw = new byte[50];
+		raw[5] = (byte) thread;
+		raw[21] = (byte) (index % 3);
+		raw[40] = (byte) index;
+		raw[41] = (byte) (index >> 8);
+		return raw;
+	}
+
+	/**
+	 * Records the frames written by a filter, in order.
+	 */
+	static class FrameCollector implements NextFilter {
+		private final List<IoBuffer> frames;
+
+		FrameCollector(final List<IoBuffer> frames) {
+			this.frames = frames;
+		}
+
+		@Override
+		public void filterWrite(IoSession session, WriteRequest writeRequest) {
+			synchronized (this.frames) {
+				this.frames.add((IoBuffer) writeRequest.getMessage());
+			}
+		}
+
+		@Override
+		public void sessionCreated(IoSession session) {
+		}
+
+		@Override
+		public void sessionOpened(IoSession session) {
+		}
+
+		@Override
+		public void sessionClosed(IoSession session) {
+		}
+
+		@Override
+		public void sessionIdle(IoSession session, IdleStatus status) {
+		}
+
+		@Override
+		public void exceptionCaught(IoSession session, Throwable cause) {
+		}
+
+		@Override
+		public void messageReceived(IoSession session, Object message) {
+		}
+
+		@Override
+		public void messageSent(IoSession session, WriteRequest writeRequest) {
+		}
+
+		@Override
+		public void filterClose(IoSession session) {
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.protocol.messages.Transmitter;
+
+public class SampleFilterTest {
+
+	private static SampleMessage makeSample(int receiver, float rssi) {
+		SampleMessage sample = TestSamples.makeSample(0, receiver);
+		sample.setRssi(rssi);
+		return sample;
+	}
+
+	private static Transmitter makeReceivers(int base, int mask) {
+		Transmitter txer = new Transmitter();
+		byte[] baseId = new byte[16];
+		baseId[14] = (byte) (base >> 8);
+		baseId[15] = (byte) base;
+		txer.setBaseId(baseId);
+		byte[] maskId = new byte[16];
+		for (int i = 0; i < 14; ++i) {
+			maskId[i] = (byte) 0xFF;
+		}
+		maskId[14] = (byte) (mask >> 8);
+		maskId[15] = (byte) mask;
+		txer.setMask(maskId);
+		return txer;
+	}
+
+	@Test
+	public void defaultOptionsMatchAll() {
+		assertSame(SampleFilter.ANY, SampleFilter.forOptions(new SolverOptions()));
+		assertTrue(SampleFilter.ANY.matches(makeSample(1, -100f)));
+	}
+
+	@Test
+	public void filtersReceivers() {
+		SampleFilter filter = new SampleFilter(
+				new Transmitter[] { makeReceivers(0x100, 0xFF00) },
+				Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+		assertTrue(filter.matches(makeSample(0x1AB, -50f)));
+		assertFalse(filter.matches(makeSample(0x2AB, -50f)));
+	}
+
+	@Test
+	public void filtersRssi() {
+		SolverOptions options = new SolverOptions();
+		options.setMinRssi(-80f);
+		options.setMaxRssi(-20f);
+		SampleFilter filter = SampleFilter.forOptions(options);
+		assertTrue(filter.matches(makeSample(1, -50f)));
+		assertFalse(filter.matches(makeSample(1, -90f)));
+		assertFalse(filter.matches(makeSample(1, -10f)));
+	}
+
+	@Test
+	public void samplesConsistentFraction() {
+		SolverOptions options = new SolverOptions();
+		options.setSamplingRatio(0.25);
+		SampleFilter filter = SampleFilter.forOptions(options);
+		SampleFilter same = SampleFilter.forOptions(options);
+		int kept = 0;
+		for (int i = 0; i < 4000; ++i) {
+			SampleMessage sample = makeSample(1, -50f);
+			byte[] deviceId = new byte[16];
+			deviceId[14] = (byte) (i >> 8);
+			deviceId[15] = (byte) i;
+			sample.setDeviceId(deviceId);
+			boolean matched = filter.matches(sample);
+			assertEquals(Boolean.valueOf(matched),
+					Boolean.valueOf(same.matches(sample)));
+			if (matched) {
+				++kept;
+			}
+		}
+		assertTrue(kept > 800 && kept < 1200);
+	}
+
+	@Test
+	public void filterIsPartOfGroupKey() {
+		RuleEvaluationGroup plain = new RuleEvaluationGroup();
+		RuleEvaluationGroup filtered = new RuleEvaluationGroup();
+		filtered.setFilter(new SampleFilter(null, -80f,
+				Float.POSITIVE_INFINITY));
+		assertFalse(plain.getCanonicalKey().equals(filtered.getCanonicalKey()));
+		assertEquals(filtered.getCanonicalKey(), filtered.copy()
+				.getCanonicalKey());
+		assertFalse(filtered.accepts(makeSample(1, -90f)));
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static com.owlplatform.aggregator.TestSamples.makeSample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class SampleQueryHandlerTest {
+
+	public static int SENSOR_PORT = 8307;
+	public static int SOLVER_PORT = 8308;
+
+	private static Aggregator aggregator;
+
+	private static SampleQueryHandler handler;
+
+	@BeforeClass
+	public static void setupAggregator() {
+		AggregatorConfiguration config = new AggregatorConfiguration();
+		config.setSensorListenPort(SENSOR_PORT);
+		config.setSolverListenPort(SOLVER_PORT);
+		config.setLatestSampleCapacity(1024);
+		aggregator = new Aggregator();
+		aggregator.setConfig(config);
+		aggregator.init();
+		handler = new SampleQueryHandler(aggregator);
+	}
+
+	@AfterClass
+	public static void destroyAggregator() {
+		if (aggregator != null) {
+			aggregator.shutdown();
+		}
+	}
+
+	private static void assertError(String request, String reason) {
+		try {
+			handler.answer(request);
+			fail("No error for \"" + request + "\".");
+		} catch (IllegalArgumentException iae) {
+			assertEquals(reason, iae.getMessage());
+		}
+	}
+
+	@Test
+	public void answersDeviceQuery() {
+		SampleMessage sample = makeSample(0x1234, 2);
+		aggregator.getLatestSamples().update(sample,
+				System.currentTimeMillis());
+		StringBuffer device = new StringBuffer();
+		SampleQueryHandler.appendHex(device, sample.getDeviceId());
+		StringBuffer receiver = new StringBuffer();
+		SampleQueryHandler.appendHex(receiver, sample.getReceiverId());
+
+		String expected = (sample.getPhysicalLayer() & 0xFF) + " " + device
+				+ " " + receiver + " " + sample.getReceiverTimestamp() + " "
+				+ sample.getRssi() + "\nEND 1";
+		assertEquals(expected, handler.answer("DEVICE 0x" + device));
+		assertEquals(expected, handler.answer("device 1234 MASK ffff"));
+		assertEquals("END 0", handler.answer("DEVICE 1235"));
+	}
+
+	@Test
+	public void rejectsMalformedHex() {
+		assertError("DEVICE 12G4", "Invalid identifier 12G4.");
+		assertError("DEVICE 0x", "Empty identifier.");
+		assertError("DEVICE", "Expected keyword/value pairs.");
+		assertError("MASK FF", "MASK requires DEVICE.");
+	}
+
+	@Test
+	public void rejectsUnknownCommand() {
+		assertError("SENSOR 01", "Unknown keyword SENSOR.");
+		assertError("HELP", "Expected keyword/value pairs.");
+	}
+
+	@Test
+	public void reportsDisabledFeatures() {
+		assertError("TRACE", "Samples are not being traced.");
+		assertError("TOP", "Heavy hitters are not being tracked.");
+	}
+
+	@Test
+	public void answersStats() {
+		assertEquals("END 0", handler.answer("STATS"));
+	}
+}
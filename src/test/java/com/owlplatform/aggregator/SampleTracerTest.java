@@ -0,0 +1,95 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class SampleTracerTest {
+
+	private static SolverInterface makeSolver() {
+		return new SolverInterface() {
+			@Override
+			public String toString() {
+				return "test solver";
+			}
+		};
+	}
+
+	@Test
+	public void recordsSolverStages() {
+		SampleTracer tracer = new SampleTracer(1, 16);
+		SolverInterface solver = makeSolver();
+		SampleMessage sample = SampleMessage.getTestMessage();
+		tracer.mark(sample, SampleTracer.DECODED);
+		tracer.mark(sample, SampleTracer.ENQUEUED);
+		tracer.mark(sample, SampleTracer.DISPATCHED);
+		tracer.markSolver(sample, solver, SampleTracer.ACCEPTED);
+		tracer.markSolver(sample, solver, SampleTracer.WRITTEN);
+		tracer.endDispatch(sample);
+		assertEquals(0, tracer.getAndClearCompleted());
+		tracer.markSolver(sample, solver, SampleTracer.SENT);
+
+		assertEquals(1, tracer.getAndClearCompleted());
+		String dump = tracer.dump();
+		assertTrue(dump.endsWith(" test solver\n"));
+		assertFalse(dump.contains(" - "));
+	}
+
+	@Test
+	public void recordsFilteredSamples() {
+		SampleTracer tracer = new SampleTracer(1, 16);
+		SampleMessage sample = SampleMessage.getTestMessage();
+		tracer.mark(sample, SampleTracer.DECODED);
+		tracer.mark(sample, SampleTracer.DISPATCHED);
+		tracer.endDispatch(sample);
+		assertEquals(1, tracer.getAndClearCompleted());
+		// No solver stages and no solver
+		assertTrue(tracer.dump().contains(" - - -"));
+		assertTrue(tracer.dump().endsWith(" -\n"));
+	}
+
+	@Test
+	public void keepsOnlyRecentTraces() {
+		SampleTracer tracer = new SampleTracer(1, 4);
+		for (int i = 0; i < 10; ++i) {
+			SampleMessage sample = SampleMessage.getTestMessage();
+			tracer.mark(sample, SampleTracer.DECODED);
+			tracer.endDispatch(sample);
+		}
+		assertEquals(10, tracer.getAndClearCompleted());
+		assertEquals(4, tracer.dump().split("\n").length);
+	}
+
+	@Test
+	public void tracesNothingAtZeroRatio() {
+		SampleTracer tracer = new SampleTracer(0, 4);
+		SampleMessage sample = SampleMessage.getTestMessage();
+		assertFalse(tracer.isTraced(sample));
+		tracer.mark(sample, SampleTracer.DECODED);
+		tracer.endDispatch(sample);
+		assertEquals(0, tracer.getAndClearCompleted());
+	}
+}
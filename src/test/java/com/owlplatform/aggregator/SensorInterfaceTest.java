@@ -0,0 +1,53 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SensorInterfaceTest {
+
+	@Test
+	public void floodingSensorDoesNotThrottleOthers() {
+		SensorOptions options = new SensorOptions();
+		options.setMaxSampleRate(10);
+		options.setSampleBurst(5);
+		SensorInterface flooding = new SensorInterface();
+		flooding.setOptions(options);
+		SensorInterface quiet = new SensorInterface();
+		quiet.setOptions(options);
+
+		int admitted = 0;
+		for (int i = 0; i < 1000; ++i) {
+			if (flooding.admitSample()) {
+				++admitted;
+			}
+		}
+		for (int i = 0; i < 3; ++i) {
+			assertTrue(quiet.admitSample());
+		}
+		assertTrue("Admitted " + admitted + " flooded samples.",
+				admitted >= 5 && admitted < 20);
+		assertEquals(1000 - admitted, flooding.getAndClearThrottledSamples());
+		assertEquals(0, quiet.getAndClearThrottledSamples());
+	}
+}
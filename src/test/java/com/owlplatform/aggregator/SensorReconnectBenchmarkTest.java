@@ -0,0 +1,177 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionInitializer;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.sensor.protocol.codecs.AggregatorSensorProtocolCodecFactory;
+import com.owlplatform.sensor.protocol.messages.HandshakeMessage;
+
+/**
+ * Opens many sensor connections at once, as after an aggregator restart, and
+ * measures the time until every sensor is streaming. By default only a
+ * small storm is run so that the benchmark is cheap enough for the normal
+ * test run; a realistic storm can be run by setting the
+ * {@code benchmark.sensors} system property, e.g.
+ * {@code -Dbenchmark.sensors=10000}. The process needs two file descriptors
+ * per sensor.
+ */
+public class SensorReconnectBenchmarkTest {
+
+	static final Logger log = LoggerFactory
+			.getLogger(SensorReconnectBenchmarkTest.class);
+
+	public static int SENSOR_PORT = 8407;
+	public static int SOLVER_PORT = 8408;
+
+	public static final int NUM_SENSORS = Integer.getInteger(
+			"benchmark.sensors", 100).intValue();
+
+	static final AttributeKey INDEX_KEY = new AttributeKey(
+			SensorReconnectBenchmarkTest.class, "index");
+
+	private static Aggregator aggregator;
+
+	@BeforeClass
+	public static void setupAggregator() {
+		AggregatorConfiguration config = new AggregatorConfiguration();
+		config.setSensorListenPort(SENSOR_PORT);
+		config.setSolverListenPort(SOLVER_PORT);
+		config.setSensorAcceptBacklog(NUM_SENSORS);
+		aggregator = new Aggregator();
+		aggregator.setConfig(config);
+		aggregator.init();
+	}
+
+	@AfterClass
+	public static void destroyAggregator() {
+		if (aggregator != null) {
+			aggregator.shutdown();
+		}
+	}
+
+	@Test
+	public void reconnectStorm() throws Exception {
+		final AtomicInteger streaming = new AtomicInteger(0);
+		aggregator.addLocalSolver(new LocalSolver() {
+			@Override
+			public void sampleReceived(SampleMessage sample) {
+				streaming.incrementAndGet();
+			}
+		}, null, 0);
+
+		NioSocketConnector connector = new NioSocketConnector();
+		try {
+			this.connectSensors(connector, streaming);
+		} finally {
+			connector.dispose();
+		}
+	}
+
+	/**
+	 * Connects {@link #NUM_SENSORS} sensors and waits for all of them to send
+	 * a sample.
+	 */
+	private void connectSensors(final NioSocketConnector connector,
+			final AtomicInteger streaming) throws InterruptedException {
+		connector.getFilterChain().addLast(
+				"sensor codec",
+				new ProtocolCodecFilter(
+						new AggregatorSensorProtocolCodecFactory(false)));
+		connector.setHandler(new IoHandlerAdapter() {
+			@Override
+			public void messageReceived(IoSession session, Object message) {
+				if (!(message instanceof HandshakeMessage)) {
+					return;
+				}
+				session.write(HandshakeMessage.getDefaultMessage());
+				int index = ((Integer) session.getAttribute(INDEX_KEY))
+						.intValue();
+				SampleMessage sample = SampleMessage.getTestMessage();
+				byte[] deviceId = new byte[16];
+				deviceId[12] = (byte) (index >> 24);
+				deviceId[13] = (byte) (index >> 16);
+				deviceId[14] = (byte) (index >> 8);
+				deviceId[15] = (byte) index;
+				sample.setDeviceId(deviceId);
+				session.write(sample);
+			}
+		});
+
+		InetSocketAddress address = new InetSocketAddress("localhost",
+				SENSOR_PORT);
+		List<ConnectFuture> futures = new ArrayList<ConnectFuture>(NUM_SENSORS);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < NUM_SENSORS; ++i) {
+			final Integer index = Integer.valueOf(i);
+			futures.add(connector.connect(address,
+					new IoSessionInitializer<ConnectFuture>() {
+						@Override
+						public void initializeSession(IoSession session,
+								ConnectFuture future) {
+							session.setAttribute(INDEX_KEY, index);
+						}
+					}));
+		}
+		int connected = 0;
+		for (ConnectFuture future : futures) {
+			future.awaitUninterruptibly();
+			if (future.isConnected()) {
+				++connected;
+			}
+		}
+		long connectTime = System.currentTimeMillis() - start;
+
+		long deadline = System.currentTimeMillis() + 60000;
+		while (streaming.get() < connected
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		long streamTime = System.currentTimeMillis() - start;
+
+		log.info(String.format(
+				"%,d/%,d sensors connected in %,d ms, %,d streaming after %,d ms",
+				Integer.valueOf(connected), Integer.valueOf(NUM_SENSORS),
+				Long.valueOf(connectTime), Integer.valueOf(streaming.get()),
+				Long.valueOf(streamTime)));
+
+		assertEquals(NUM_SENSORS, connected);
+		assertEquals(connected, streaming.get());
+	}
+}
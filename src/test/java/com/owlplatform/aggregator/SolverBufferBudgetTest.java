@@ -0,0 +1,80 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SolverBufferBudgetTest {
+
+	@Test
+	public void enforcesTotalBudget() {
+		SolverBufferBudget budget = new SolverBufferBudget(1000);
+		AtomicLong solver = new AtomicLong();
+		budget.register();
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(budget.reserve(solver, 100));
+		}
+		assertFalse(budget.reserve(solver, 1));
+		assertEquals(1000, budget.getQueuedBytes());
+
+		budget.release(solver, 100);
+		assertTrue(budget.reserve(solver, 100));
+	}
+
+	@Test
+	public void limitsSolversToFairShareUnderContention() {
+		SolverBufferBudget budget = new SolverBufferBudget(1000);
+		AtomicLong slow = new AtomicLong();
+		AtomicLong fast = new AtomicLong();
+		budget.register();
+		budget.register();
+
+		// Alone, the slow solver may use most of the budget
+		int reserved = 0;
+		while (budget.reserve(slow, 10)) {
+			reserved += 10;
+		}
+		assertEquals(750, reserved);
+
+		// But the fast solver can still use its fair share
+		assertTrue(budget.reserve(fast, 240));
+		assertFalse(budget.reserve(slow, 10));
+	}
+
+	@Test
+	public void unregisterReleasesQueuedBytes() {
+		SolverBufferBudget budget = new SolverBufferBudget(0);
+		AtomicLong solver = new AtomicLong();
+		budget.register();
+		assertTrue(budget.reserve(solver, 500));
+		budget.unregister(solver);
+		assertEquals(0, budget.getQueuedBytes());
+
+		// Late notifications for the departed solver are ignored
+		budget.release(solver, 100);
+		assertEquals(0, budget.getQueuedBytes());
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SolverCostAccountTest {
+
+	@Test
+	public void scalesSampledCosts() {
+		SolverCostAccount account = new SolverCostAccount();
+		account.addSampled(true, 1000);
+		account.addSampled(false, 500);
+		account.addBytes(100);
+		assertEquals(2 * SolverCostAccount.SAMPLE_INTERVAL,
+				account.getEvaluated());
+		assertEquals(SolverCostAccount.SAMPLE_INTERVAL, account.getForwarded());
+		assertEquals(1500 * SolverCostAccount.SAMPLE_INTERVAL,
+				account.getCpuNanos());
+		assertEquals(100, account.getBytes());
+	}
+
+	@Test
+	public void reportsChangeSinceLastStatistics() {
+		SolverCostAccount account = new SolverCostAccount();
+		account.addBytes(123);
+		assertTrue(account.getAndClearStatistics().contains(" 123 bytes"));
+		account.addBytes(10);
+		assertTrue(account.getAndClearStatistics().contains(" 10 bytes"));
+		assertEquals(133, account.getBytes());
+	}
+}
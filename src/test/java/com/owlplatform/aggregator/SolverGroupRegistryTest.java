@@ -0,0 +1,166 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static com.owlplatform.aggregator.TestSamples.makeRule;
+import static com.owlplatform.aggregator.TestSamples.makeSample;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+public class SolverGroupRegistryTest {
+
+	private static SubscriptionRequestRule makeSlowRule(int device) {
+		SubscriptionRequestRule rule = makeRule(device);
+		rule.setUpdateInterval(60000);
+		return rule;
+	}
+
+	private static LocalSolverInterface makeSolver(final AtomicInteger count) {
+		return new LocalSolverInterface(new LocalSolver() {
+			@Override
+			public void sampleReceived(SampleMessage sample) {
+				count.incrementAndGet();
+			}
+		}, 0);
+	}
+
+	@Test
+	public void identicalRulesShareGroup() {
+		SolverGroupRegistry registry = new SolverGroupRegistry();
+		AtomicInteger count1 = new AtomicInteger();
+		AtomicInteger count2 = new AtomicInteger();
+		LocalSolverInterface solver1 = makeSolver(count1);
+		LocalSolverInterface solver2 = makeSolver(count2);
+		// Separate but equal rule objects
+		solver1.addEffectiveRule(makeSlowRule(1));
+		solver2.addEffectiveRule(makeSlowRule(1));
+		registry.join(solver1);
+		registry.join(solver2);
+		assertSame(solver1.getGroup(), solver2.getGroup());
+
+		// Evaluated once, so the update interval does not block the second
+		registry.dispatch(makeSample(1), SolverPriority.NORMAL);
+		registry.dispatch(makeSample(1), SolverPriority.NORMAL);
+		registry.dispatch(makeSample(2), SolverPriority.NORMAL);
+		assertEquals(1, count1.get());
+		assertEquals(1, count2.get());
+	}
+
+	@Test
+	public void changedRulesLeaveGroup() {
+		SolverGroupRegistry registry = new SolverGroupRegistry();
+		AtomicInteger count1 = new AtomicInteger();
+		AtomicInteger count2 = new AtomicInteger();
+		LocalSolverInterface solver1 = makeSolver(count1);
+		LocalSolverInterface solver2 = makeSolver(count2);
+		solver1.addEffectiveRule(makeSlowRule(1));
+		solver2.addEffectiveRule(makeSlowRule(1));
+		registry.join(solver1);
+		registry.join(solver2);
+
+		solver1.replaceEffectiveRules(Arrays.asList(makeSlowRule(2)));
+		assertNotSame(solver1.getGroup(), solver2.getGroup());
+		assertEquals("2 solvers in 2 groups", registry.getStatistics());
+
+		registry.dispatch(makeSample(1), SolverPriority.NORMAL);
+		registry.dispatch(makeSample(2), SolverPriority.NORMAL);
+		assertEquals(1, count1.get());
+		assertEquals(1, count2.get());
+
+		registry.leave(solver1);
+		registry.leave(solver2);
+		assertEquals("0 solvers in 0 groups", registry.getStatistics());
+	}
+
+	@Test
+	public void baseBitsOutsideMaskSeparateGroups() {
+		SolverGroupRegistry registry = new SolverGroupRegistry();
+		AtomicInteger count1 = new AtomicInteger();
+		AtomicInteger count2 = new AtomicInteger();
+		LocalSolverInterface solver1 = makeSolver(count1);
+		LocalSolverInterface solver2 = makeSolver(count2);
+		// Same masked base, but only the first can match anything
+		SubscriptionRequestRule rule1 = makeRule(0x0F);
+		SubscriptionRequestRule rule2 = makeRule(0xFF);
+		rule1.getTransmitters()[0].getMask()[15] = 0x0F;
+		rule2.getTransmitters()[0].getMask()[15] = 0x0F;
+		solver1.addEffectiveRule(rule1);
+		solver2.addEffectiveRule(rule2);
+		registry.join(solver1);
+		registry.join(solver2);
+		assertNotSame(solver1.getGroup(), solver2.getGroup());
+
+		registry.dispatch(makeSample(0x0F), SolverPriority.NORMAL);
+		registry.dispatch(makeSample(0xFF), SolverPriority.NORMAL);
+		assertEquals(2, count1.get());
+		assertEquals(0, count2.get());
+	}
+
+	@Test
+	public void timesEveryPriority() {
+		SolverGroupRegistry registry = new SolverGroupRegistry();
+		LocalSolverInterface normal = makeSolver(new AtomicInteger());
+		LocalSolverInterface low = makeSolver(new AtomicInteger());
+		SolverOptions lowOptions = new SolverOptions();
+		lowOptions.setPriority(SolverPriority.LOW);
+		low.setOptions(lowOptions);
+		normal.addEffectiveRule(makeSlowRule(1));
+		low.addEffectiveRule(makeSlowRule(1));
+		registry.join(normal);
+		registry.join(low);
+
+		// Dispatched to each priority in turn, as the aggregator does
+		for (int i = 0; i < 4 * SolverCostAccount.SAMPLE_INTERVAL; ++i) {
+			SampleMessage sample = makeSample(1);
+			registry.dispatch(sample, SolverPriority.NORMAL);
+			registry.dispatch(sample, SolverPriority.LOW);
+		}
+		assertEquals(4 * SolverCostAccount.SAMPLE_INTERVAL, normal
+				.getCostAccount().getEvaluated());
+		assertEquals(4 * SolverCostAccount.SAMPLE_INTERVAL, low
+				.getCostAccount().getEvaluated());
+	}
+
+	@Test
+	public void staleSamplesKeepUpdateInterval() throws InterruptedException {
+		SolverGroupRegistry registry = new SolverGroupRegistry();
+		AtomicInteger count = new AtomicInteger();
+		LocalSolverInterface solver = makeSolver(count);
+		solver.addEffectiveRule(makeSlowRule(1));
+		solver.setMaxSampleAge(50);
+		registry.join(solver);
+
+		SampleMessage old = makeSample(1);
+		Thread.sleep(100);
+		registry.dispatch(old, SolverPriority.NORMAL);
+		registry.dispatch(makeSample(1), SolverPriority.NORMAL);
+		assertEquals(1, count.get());
+		assertEquals(1, solver.getAndClearStaleSamples());
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.sensor.SensorAggregatorInterface;
+import com.owlplatform.sensor.listeners.ConnectionListener;
+
+/**
+ * Checks that a saturated low-priority solver does not delay a high-priority
+ * solver. Samples carry their send time (from {@link System#nanoTime()}) in
+ * the receiver timestamp so that latency can be measured with nanosecond
+ * resolution in a single JVM.
+ */
+public class SolverPriorityTest implements ConnectionListener {
+
+	Logger log = LoggerFactory.getLogger(SolverPriorityTest.class);
+
+	public static int SOLVER_PORT = 8208;
+	public static int SENSOR_PORT = 8207;
+
+	public static final int LATENCY_SAMPLES = 2000;
+
+	/**
+	 * Time the low-priority solver spends on each sample.
+	 */
+	public static final long LOW_PRIORITY_DELAY = 2;
+
+	private volatile boolean readySensor = false;
+
+	private static Aggregator aggregator;
+
+	@BeforeClass
+	public static void setupAggregator() {
+		AggregatorConfiguration config = new AggregatorConfiguration();
+		config.setSensorListenPort(SENSOR_PORT);
+		config.setSolverListenPort(SOLVER_PORT);
+		SolverPriorityTest.aggregator = new Aggregator();
+		SolverPriorityTest.aggregator.setConfig(config);
+
+		SolverPriorityTest.aggregator.init();
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			// Ignored
+		}
+	}
+
+	@AfterClass
+	public static void destroyAggregator() {
+		if (SolverPriorityTest.aggregator != null) {
+			SolverPriorityTest.aggregator.shutdown();
+		}
+	}
+
+	@Test
+	public void highPriorityLatencyTest() throws Exception {
+		SensorAggregatorInterface senseAgg = new SensorAggregatorInterface();
+		senseAgg.setHost("localhost");
+		senseAgg.setPort(SENSOR_PORT);
+		senseAgg.addConnectionListener(this);
+		assertTrue("Unable to start Sensor-Aggregator interface.",
+				senseAgg.doConnectionSetup());
+		while (!this.readySensor) {
+			Thread.sleep(100);
+		}
+
+		SolverOptions highOptions = new SolverOptions();
+		highOptions.setPriority(SolverPriority.HIGH);
+		LatencyRecorder highSolver = new LatencyRecorder(LATENCY_SAMPLES);
+		LocalSolverInterface high = aggregator.addLocalSolver(highSolver,
+				null, 0, highOptions);
+
+		this.sendSamples(senseAgg);
+		assertTrue("No samples reached the high-priority solver.",
+				highSolver.getCount() > 0);
+		long baselineP99 = highSolver.getAndClearPercentile(0.99f);
+
+		SolverOptions lowOptions = new SolverOptions();
+		lowOptions.setPriority(SolverPriority.LOW);
+		LocalSolverInterface low = aggregator.addLocalSolver(
+				new LocalSolver() {
+					@Override
+					public void sampleReceived(SampleMessage sample) {
+						try {
+							Thread.sleep(LOW_PRIORITY_DELAY);
+						} catch (InterruptedException ie) {
+							// Ignored
+						}
+					}
+				}, null, 0, lowOptions);
+
+		this.sendSamples(senseAgg);
+		assertTrue("No samples reached the high-priority solver under load.",
+				highSolver.getCount() > 0);
+		long loadedP99 = highSolver.getAndClearPercentile(0.99f);
+
+		aggregator.removeLocalSolver(low);
+		aggregator.removeLocalSolver(high);
+		senseAgg.disconnect();
+
+		this.log.info(String.format(
+				"High-priority p99 latency: %,d ns idle, %,d ns with saturated low-priority solver.",
+				Long.valueOf(baselineP99), Long.valueOf(loadedP99)));
+		assertTrue("High-priority latency increased under low-priority load.",
+				loadedP99 <= Math.max(baselineP99 * 3, baselineP99 + 5000000L));
+	}
+
+	private void sendSamples(SensorAggregatorInterface senseAgg)
+			throws InterruptedException {
+		for (int i = 0; i < LATENCY_SAMPLES; ++i) {
+			SampleMessage sample = SampleMessage.getTestMessage();
+			sample.setReceiverTimestamp(System.nanoTime());
+			assertTrue("Unable to send sample " + sample,
+					senseAgg.sendSample(sample));
+			if ((i & 0x0F) == 0) {
+				Thread.sleep(1);
+			}
+		}
+		Thread.sleep(500);
+	}
+
+	/**
+	 * Records the latency of each sample it receives.
+	 */
+	private static class LatencyRecorder implements LocalSolver {
+		private final long[] latencies;
+		private int numLatencies = 0;
+
+		LatencyRecorder(int capacity) {
+			this.latencies = new long[capacity];
+		}
+
+		@Override
+		public synchronized void sampleReceived(SampleMessage sample) {
+			if (this.numLatencies < this.latencies.length) {
+				this.latencies[this.numLatencies++] = System.nanoTime()
+						- sample.getReceiverTimestamp();
+			}
+		}
+
+		synchronized int getCount() {
+			return this.numLatencies;
+		}
+
+		synchronized long getAndClearPercentile(float percentile) {
+			if (this.numLatencies == 0) {
+				return 0;
+			}
+			Arrays.sort(this.latencies, 0, this.numLatencies);
+			long value = this.latencies[(int) ((this.numLatencies - 1) * percentile)];
+			this.numLatencies = 0;
+			return value;
+		}
+	}
+
+	@Override
+	public void connectionEnded(SensorAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void connectionEstablished(SensorAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void connectionInterrupted(SensorAggregatorInterface aggregator) {
+		// Not used
+	}
+
+	@Override
+	public void readyForSamples(SensorAggregatorInterface aggregator) {
+		this.readySensor = true;
+	}
+}
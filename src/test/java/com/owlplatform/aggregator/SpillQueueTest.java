@@ -0,0 +1,159 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.owlplatform.common.SampleMessage;
+
+public class SpillQueueTest {
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		this.directory = File.createTempFile("spilltest", "");
+		assertTrue(this.directory.delete());
+		assertTrue(this.directory.mkdir());
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		this.directory.delete();
+	}
+
+	private static SampleMessage makeSample(int sequence) {
+		SampleMessage sample = SampleMessage.getTestMessage();
+		sample.setReceiverTimestamp(sequence);
+		sample.setSensedData(new byte[] { (byte) sequence });
+		return sample;
+	}
+
+	@Test
+	public void preservesOrderAcrossSegments() {
+		SpillQueue queue = new SpillQueue(this.directory, 512, 1024 * 1024);
+		for (int i = 0; i < 100; ++i) {
+			assertTrue(queue.offer(makeSample(i), i));
+		}
+		assertEquals(100, queue.size());
+		assertTrue(queue.getDiskBytes() > 512);
+		assertEquals(0, queue.getOldestSpillTime());
+
+		long diskBytes = queue.getDiskBytes();
+		for (int i = 0; i < 100; ++i) {
+			SampleMessage sample = queue.poll();
+			assertEquals(i, sample.getReceiverTimestamp());
+		}
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(diskBytes, queue.getDiskBytes());
+		queue.close();
+	}
+
+	@Test
+	public void reusesReadSegments() {
+		SpillQueue queue = new SpillQueue(this.directory, 512, 1024 * 1024);
+		for (int i = 0; i < 100; ++i) {
+			queue.offer(makeSample(i), i);
+		}
+		long diskBytes = 0;
+		List<String> files = null;
+		for (int round = 0; round < 5; ++round) {
+			for (int i = 0; i < 100; ++i) {
+				assertEquals(i, queue.poll().getReceiverTimestamp());
+				assertTrue(queue.offer(makeSample(i), i));
+			}
+			if (round == 0) {
+				// A steady backlog needs at most one more segment
+				diskBytes = queue.getDiskBytes();
+				files = Arrays.asList(this.directory.listFiles()[0].list());
+			}
+		}
+		assertEquals(diskBytes, queue.getDiskBytes());
+		// No segment files were created or deleted
+		assertEquals(new HashSet<String>(files), new HashSet<String>(Arrays
+				.asList(this.directory.listFiles()[0].list())));
+		queue.close();
+	}
+
+	@Test
+	public void dropsAtDiskLimit() {
+		SpillQueue queue = new SpillQueue(this.directory, 512, 1024);
+		int accepted = 0;
+		for (int i = 0; i < 100; ++i) {
+			if (queue.offer(makeSample(i), i)) {
+				++accepted;
+			}
+		}
+		assertTrue(accepted > 0 && accepted < 100);
+		assertEquals(1024, queue.getDiskBytes());
+		assertTrue(queue.getAndClearStatistics(100).endsWith(
+				(100 - accepted) + " dropped"));
+		queue.close();
+	}
+
+	@Test
+	public void peekKeepsHead() {
+		SpillQueue queue = new SpillQueue(this.directory, 512, 1024 * 1024);
+		assertNull(queue.peek());
+		for (int i = 0; i < 50; ++i) {
+			queue.offer(makeSample(i), i);
+		}
+		for (int i = 0; i < 50; ++i) {
+			assertEquals(i, queue.peek().getReceiverTimestamp());
+			assertEquals(i, queue.peek().getReceiverTimestamp());
+			assertEquals(50 - i, queue.size());
+			assertEquals(i, queue.poll().getReceiverTimestamp());
+		}
+		assertNull(queue.peek());
+		queue.close();
+	}
+
+	@Test
+	public void closeDeletesFiles() {
+		SpillQueue queue = new SpillQueue(this.directory, 512, 1024 * 1024);
+		for (int i = 0; i < 20; ++i) {
+			queue.offer(makeSample(i), i);
+		}
+		assertFalse(this.directory.list().length == 0);
+		queue.close();
+		assertEquals(0, this.directory.list().length);
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import com.owlplatform.common.SampleMessage;
+import com.owlplatform.solver.protocol.messages.Transmitter;
+import com.owlplatform.solver.rules.SubscriptionRequestRule;
+
+/**
+ * Builds the samples and rules shared by the aggregator tests.
+ */
+final class TestSamples {
+
+	private TestSamples() {
+		// Static helpers only
+	}
+
+	/**
+	 * @param value
+	 *            the low 16 bits of the identifier.
+	 * @return a 16-byte device or receiver identifier.
+	 */
+	static byte[] makeId(int value) {
+		byte[] id = new byte[16];
+		id[14] = (byte) (value >> 8);
+		id[15] = (byte) value;
+		return id;
+	}
+
+	/**
+	 * @param device
+	 *            the device identifier.
+	 * @return a test sample from the device.
+	 */
+	static SampleMessage makeSample(int device) {
+		SampleMessage sample = SampleMessage.getTestMessage();
+		sample.setDeviceId(makeId(device));
+		return sample;
+	}
+
+	/**
+	 * @param device
+	 *            the device identifier.
+	 * @param receiver
+	 *            the receiver identifier.
+	 * @return a test sample from the device, heard by the receiver.
+	 */
+	static SampleMessage makeSample(int device, int receiver) {
+		SampleMessage sample = makeSample(device);
+		sample.setReceiverId(makeId(receiver));
+		return sample;
+	}
+
+	/**
+	 * @param device
+	 *            the device identifier.
+	 * @return a rule matching exactly one device, with no update interval.
+	 */
+	static SubscriptionRequestRule makeRule(int device) {
+		SubscriptionRequestRule rule = new SubscriptionRequestRule();
+		Transmitter txer = new Transmitter();
+		byte[] mask = new byte[16];
+		for (int i = 0; i < mask.length; ++i) {
+			mask[i] = (byte) 0xFF;
+		}
+		txer.setBaseId(makeId(device));
+		txer.setMask(mask);
+		rule.setTransmitters(new Transmitter[] { txer });
+		return rule;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Aggregator for the Owl Platform
+ * Copyright (C) 2012 Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.owlplatform.aggregator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	private static final long SECOND = 1000000000l;
+
+	@Test
+	public void allowsBurstThenLimits() {
+		TokenBucket bucket = new TokenBucket(10, 5);
+		long now = System.nanoTime();
+		for (int i = 0; i < 5; ++i) {
+			assertTrue(bucket.tryAcquire(now));
+		}
+		assertFalse(bucket.tryAcquire(now));
+	}
+
+	@Test
+	public void refillsAtRate() {
+		TokenBucket bucket = new TokenBucket(10, 5);
+		long now = System.nanoTime();
+		while (bucket.tryAcquire(now)) {
+			// Empty the bucket
+		}
+		// One token every 100 ms
+		now += SECOND / 20;
+		assertFalse(bucket.tryAcquire(now));
+		now += SECOND / 20;
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+	}
+
+	@Test
+	public void refillStopsAtBurst() {
+		TokenBucket bucket = new TokenBucket(10, 5);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryAcquire(now));
+		now += 60 * SECOND;
+		int taken = 0;
+		while (bucket.tryAcquire(now)) {
+			++taken;
+		}
+		assertEquals(5, taken);
+	}
+}